@@ -0,0 +1,258 @@
+package tragdor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Per-attribute cost profile, keyed by (node type, attribute name) and split by
+ * phase ('reference' for the traced reference run, 'search' for everything
+ * else). Records wall time and, when the JVM supports it, the number of bytes
+ * allocated by the evaluating thread.
+ * <p>
+ * Times are inclusive: an evaluation is charged for everything it computes,
+ * including other attributes that weren't cached yet.
+ * <p>
+ * Evaluations in the traced reference run are profiled from the COMPUTE_BEGIN
+ * and COMPUTE_END events of the trace instead, see
+ * {@link #recordTraced(String, String, long, long)}. That covers every
+ * attribute computed in the run, not only the entry points, and also gives the
+ * self time (excluding nested computations). Allocations are not measured for
+ * those.
+ * <p>
+ * Enabled by setting 'tragdor.profile_attributes' to true.
+ */
+public class AttributeProfiler {
+
+	private static final boolean enabled = "true".equals(System.getProperty("tragdor.profile_attributes"));
+
+	public static final String PHASE_REFERENCE = "reference";
+	public static final String PHASE_SEARCH = "search";
+
+	private static final ThreadLocal<String> phase = ThreadLocal.withInitial(() -> PHASE_SEARCH);
+	private static final ThreadLocal<Boolean> traced = ThreadLocal.withInitial(() -> false);
+
+	private static final Map<String, AttrStats> stats = new ConcurrentHashMap<>();
+
+	private static final com.sun.management.ThreadMXBean allocBean = getAllocBean();
+
+	private static class AttrStats {
+		public final String nodeType;
+		public final String attrName;
+		public final String phase;
+		public long numEvaluations;
+		public long nanos;
+		public long maxNanos;
+		public long allocatedBytes;
+		public boolean allocationsMeasured;
+		public long selfNanos;
+		public boolean selfMeasured;
+
+		public AttrStats(String nodeType, String attrName, String phase) {
+			this.nodeType = nodeType;
+			this.attrName = attrName;
+			this.phase = phase;
+		}
+	}
+
+	/**
+	 * An ongoing measurement, see {@link AttributeProfiler#begin()}.
+	 */
+	public static class Sample {
+		private final long startNanos;
+		private final long startAllocated;
+
+		private Sample(long startNanos, long startAllocated) {
+			this.startNanos = startNanos;
+			this.startAllocated = startAllocated;
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean getAllocBean() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		try {
+			if (!sunBean.isThreadAllocatedMemorySupported()) {
+				return null;
+			}
+			if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+				sunBean.setThreadAllocatedMemoryEnabled(true);
+			}
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+		return sunBean;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Set the phase that evaluations on the current thread are attributed to.
+	 *
+	 * @return the previous phase
+	 */
+	public static String setPhase(String newPhase) {
+		final String prev = phase.get();
+		phase.set(newPhase);
+		return prev;
+	}
+
+	private static long getAllocatedBytes() {
+		return allocBean != null ? allocBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0L;
+	}
+
+	/**
+	 * Mark that evaluations on the current thread are traced. Their times are then
+	 * taken from the trace, and {@link #begin()} does nothing.
+	 *
+	 * @return the previous value
+	 */
+	public static boolean setTraced(boolean newTraced) {
+		final boolean prev = traced.get();
+		traced.set(newTraced);
+		return prev;
+	}
+
+	/**
+	 * Start measuring an evaluation on the current thread.
+	 *
+	 * @return a sample to pass to {@link #end(LocatedProp, Sample)}, or null if
+	 *         profiling is disabled or the current thread is traced.
+	 */
+	public static Sample begin() {
+		if (!enabled || traced.get()) {
+			return null;
+		}
+		return new Sample(System.nanoTime(), getAllocatedBytes());
+	}
+
+	public static void end(LocatedProp prop, Sample sample) {
+		if (sample == null) {
+			return;
+		}
+		final long nanos = System.nanoTime() - sample.startNanos;
+		final long allocated = getAllocatedBytes() - sample.startAllocated;
+		final AttrStats astats = getStats(prop.locator.result.type, prop.prop.name);
+		synchronized (astats) {
+			++astats.numEvaluations;
+			astats.nanos += nanos;
+			astats.maxNanos = Math.max(astats.maxNanos, nanos);
+			astats.allocatedBytes += allocated;
+			astats.allocationsMeasured = true;
+		}
+	}
+
+	/**
+	 * Record a computation seen in a trace on the current thread.
+	 *
+	 * @param nanos     time between COMPUTE_BEGIN and COMPUTE_END
+	 * @param selfNanos same as 'nanos', minus the time of nested computations
+	 */
+	public static void recordTraced(String nodeType, String attrName, long nanos, long selfNanos) {
+		if (!enabled) {
+			return;
+		}
+		final AttrStats astats = getStats(nodeType, attrName);
+		synchronized (astats) {
+			++astats.numEvaluations;
+			astats.nanos += nanos;
+			astats.maxNanos = Math.max(astats.maxNanos, nanos);
+			astats.selfNanos += selfNanos;
+			astats.selfMeasured = true;
+		}
+	}
+
+	private static AttrStats getStats(String nodeType, String attrName) {
+		final String curPhase = phase.get();
+		return stats.computeIfAbsent(curPhase + ":" + nodeType + "." + attrName,
+				x -> new AttrStats(nodeType, attrName, curPhase));
+	}
+
+	public static boolean isEmpty() {
+		return stats.isEmpty();
+	}
+
+	private static List<AttrStats> getRanked() {
+		final List<AttrStats> ret = new ArrayList<>(stats.values());
+		ret.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+		return ret;
+	}
+
+	public static JSONObject toJSON() {
+		final JSONArray attrs = new JSONArray();
+		for (AttrStats astats : getRanked()) {
+			synchronized (astats) {
+				attrs.put(new JSONObject() //
+						.put("phase", astats.phase) //
+						.put("nodeType", astats.nodeType) //
+						.put("attribute", astats.attrName) //
+						.put("evaluations", astats.numEvaluations) //
+						.put("totalMs", astats.nanos / 1_000_000.0) //
+						.put("maxMs", astats.maxNanos / 1_000_000.0) //
+						.put("selfMs", astats.selfMeasured ? astats.selfNanos / 1_000_000.0 : -1.0) //
+						.put("allocatedBytes",
+								allocBean != null && astats.allocationsMeasured ? astats.allocatedBytes : -1L));
+			}
+		}
+		return new JSONObject() //
+				.put("allocationsMeasured", allocBean != null) //
+				.put("attributes", attrs);
+	}
+
+	/**
+	 * Print the most expensive attributes, ranked by total time.
+	 */
+	public static void print(int limit) {
+		final List<AttrStats> ranked = getRanked();
+		System.out.printf("Most expensive attributes (%d of %d):%n", Math.min(limit, ranked.size()), ranked.size());
+		System.out.printf("| %9s | %40s | %11s | %13s | %13s | %10s | %14s |%n", "Phase", "Attribute",
+				"Evaluations", "Total (ms)", "Self (ms)", "Max (ms)", "Allocated (MB)");
+		for (int i = 0; i < ranked.size() && i < limit; ++i) {
+			final AttrStats astats = ranked.get(i);
+			final String[] typeParts = astats.nodeType.split("\\.");
+			final String attr = (typeParts.length == 0 ? astats.nodeType : typeParts[typeParts.length - 1]) + "."
+					+ astats.attrName;
+			synchronized (astats) {
+				System.out.printf("| %9s | %40s | %11d | %13.1f | %13s | %10.1f | %14s |%n", astats.phase, attr,
+						astats.numEvaluations, astats.nanos / 1_000_000.0,
+						astats.selfMeasured ? String.format("%.1f", astats.selfNanos / 1_000_000.0) : "-",
+						astats.maxNanos / 1_000_000.0,
+						allocBean != null && astats.allocationsMeasured
+								? String.format("%.1f", astats.allocatedBytes / (1024.0 * 1024.0))
+								: "-");
+			}
+		}
+	}
+
+	/**
+	 * Print the profile and save it as JSON, if profiling is enabled.
+	 */
+	public static void report() {
+		if (!enabled || isEmpty()) {
+			return;
+		}
+		print(Integer.parseInt(System.getProperty("tragdor.profile_attributes.limit", "25")));
+		final Integer workerId = Tragdor.getWorkerId();
+		final String fileName = workerId == null ? "attribute_profile.json"
+				: String.format("attribute_profile_%d.json", workerId);
+		try {
+			Tragdor.saveReportsAsIs(fileName, toJSON());
+			System.out.println("Saved attribute profile to '" + fileName + "'");
+		} catch (Exception e) {
+			System.err.println("Failed saving attribute profile");
+			e.printStackTrace();
+		}
+	}
+}
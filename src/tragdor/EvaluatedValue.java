@@ -1,10 +1,14 @@
 package tragdor;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.json.JSONObject;
 
@@ -23,7 +27,30 @@ public class EvaluatedValue {
 
 //	private String valueStr;
 	private int hashCode;
-	private byte[] identityArr;
+
+	// 128-bit digest of the kind and value, used instead of comparing the values
+	// themselves. Computed lazily.
+	private boolean hasDigest;
+	private long digestHigh;
+	private long digestLow;
+
+	private static final ThreadLocal<MessageDigest> digesters = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	});
+
+	private static final OutputStream nullStream = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
 
 	public EvaluatedValue(Kind kind, RpcBodyLine value) {
 		this.kind = kind;
@@ -40,29 +67,45 @@ public class EvaluatedValue {
 		this.value = new RpcBodyLine(src);
 	}
 
-	private byte[] getIdentityArr() {
-		if (identityArr == null) {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			DataOutputStream dos = new DataOutputStream(baos);
-			try {
-				dos.writeByte(kind.ordinal());
-				value.writeTo(dos);
-			} catch (IOException impossible) {
-				System.out.println("Impossible exception happened");
-				impossible.printStackTrace();
-				System.exit(1);
-			}
-			identityArr = baos.toByteArray();
-
-//			return JSONStringifier.jsonToString(value.toJSON());
+	private void computeDigest() {
+		if (hasDigest) {
+			return;
 		}
-		return identityArr;
+		final MessageDigest md = digesters.get();
+		md.reset();
+		// Stream the encoding straight into the digest, without collecting the bytes
+		final DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new DigestOutputStream(nullStream, md), 1024));
+		try {
+			dos.writeByte(kind.ordinal());
+			value.writeTo(dos);
+			dos.flush();
+		} catch (IOException impossible) {
+			System.out.println("Impossible exception happened");
+			impossible.printStackTrace();
+			System.exit(1);
+		}
+		final ByteBuffer digest = ByteBuffer.wrap(md.digest());
+		digestHigh = digest.getLong(0);
+		digestLow = digest.getLong(8);
+		hasDigest = true;
+	}
+
+	public long getDigestHigh() {
+		computeDigest();
+		return digestHigh;
+	}
+
+	public long getDigestLow() {
+		computeDigest();
+		return digestLow;
 	}
 
 	@Override
 	public int hashCode() {
 		if (hashCode == 0) {
-			hashCode = Arrays.hashCode(getIdentityArr());
+			computeDigest();
+			hashCode = (int) (digestHigh ^ (digestHigh >>> 32));
 		}
 		return hashCode;
 	}
@@ -81,7 +124,9 @@ public class EvaluatedValue {
 		if (getClass() != obj.getClass())
 			return false;
 		final EvaluatedValue other = (EvaluatedValue) obj;
-		return Arrays.equals(getIdentityArr(), other.getIdentityArr());
+		computeDigest();
+		other.computeDigest();
+		return digestHigh == other.digestHigh && digestLow == other.digestLow;
 	}
 
 	public static final EvaluatedValue dummy = new EvaluatedValue(Kind.EXCEPTION, RpcBodyLine.fromPlain("<dummy>"));
@@ -0,0 +1,279 @@
+package tragdor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Abandons property evaluations that run for too long, so that a single
+ * looping or pathologically slow equation cannot eat the whole search budget.
+ * <p>
+ * Evaluations are registered with {@link #start(LocatedProp)}. A background
+ * thread checks them periodically, and marks an evaluation as timed out once it
+ * exceeds the limit. Callers must check {@link Watch#isTimedOut()} both when
+ * catching a {@link ThreadDeath} and after a normal return.
+ * <p>
+ * Calls into the tool go through {@link #callTool(ToolCall)}. If the evaluation
+ * is inside such a call when it times out, the evaluating thread is stopped
+ * with {@link Thread#stop()}, which it sees as a {@link ThreadDeath}. Tragdor's
+ * own code is never stopped, since that could corrupt global state like
+ * {@link LocatedPropTable}. Callbacks from the tool into Tragdor (trace
+ * receivers) are excluded with {@link #leaveTool()}/{@link #returnToTool(Watch)}.
+ * The AST that was being evaluated is left in an unknown state and must be
+ * replaced.
+ * <p>
+ * Abandoning a running evaluation only works where {@link Thread#stop()} is
+ * available (removed in JDK 20). Elsewhere the thread is interrupted, which
+ * attribute code rarely checks, so the evaluation runs to completion and is
+ * then handled as timed out.
+ * <p>
+ * The limit is set with 'tragdor.eval_timeout_ms', 0 disables the watchdog.
+ */
+public class EvaluationWatchdog {
+
+	private static final long timeoutMs = Long.parseLong(System.getProperty("tragdor.eval_timeout_ms", "60000"));
+
+	// Thread.stop is asynchronous, the ThreadDeath may be thrown a bit after the
+	// tool call returned
+	private static final long pendingStopWaitMs = 1000L;
+
+	private static final Set<Watch> activeWatches = ConcurrentHashMap.newKeySet();
+	private static final ThreadLocal<Watch> currentWatch = new ThreadLocal<>();
+	private static Thread watchdogThread;
+	private static boolean warnedStopUnsupported = false;
+
+	public static class Watch {
+		public final LocatedProp prop;
+		private final Thread thread;
+		private final long startNanos;
+		private final Watch previous;
+		private volatile boolean timedOut;
+		// All below are guarded by 'this'
+		private boolean done;
+		private boolean inTool;
+		private boolean stopPending;
+		// Both Thread.stop and Thread.interrupt leave the interrupt flag set
+		private boolean interruptFlagSet;
+
+		private Watch(LocatedProp prop, Watch previous) {
+			this.prop = prop;
+			this.thread = Thread.currentThread();
+			this.startNanos = System.nanoTime();
+			this.previous = previous;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		public long getElapsedMs() {
+			return (System.nanoTime() - startNanos) / 1_000_000L;
+		}
+	}
+
+	/**
+	 * A call into the tool, typically {@link PropMethodCache.Invoker#invoke}.
+	 */
+	public interface ToolCall<T> {
+		T call() throws InvocationTargetException;
+	}
+
+	public static long getTimeoutMs() {
+		return timeoutMs;
+	}
+
+	/**
+	 * Start watching an evaluation on the current thread.
+	 *
+	 * @return a watch to pass to {@link #stop(Watch)}, or null if the watchdog is
+	 *         disabled.
+	 */
+	public static Watch start(LocatedProp prop) {
+		if (timeoutMs <= 0) {
+			return null;
+		}
+		ensureWatchdogRunning();
+		final Watch watch = new Watch(prop, currentWatch.get());
+		currentWatch.set(watch);
+		activeWatches.add(watch);
+		return watch;
+	}
+
+	public static void stop(Watch watch) {
+		if (watch == null) {
+			return;
+		}
+		synchronized (watch) {
+			watch.done = true;
+		}
+		activeWatches.remove(watch);
+		if (watch.previous != null) {
+			currentWatch.set(watch.previous);
+		} else {
+			currentWatch.remove();
+		}
+	}
+
+	/**
+	 * Call into the tool. If the current evaluation times out during the call, the
+	 * call is stopped with a {@link ThreadDeath}. If it has already timed out, the
+	 * call is not made at all.
+	 */
+	public static <T> T callTool(ToolCall<T> call) throws InvocationTargetException {
+		final Watch watch = currentWatch.get();
+		if (watch == null) {
+			return call.call();
+		}
+		synchronized (watch) {
+			if (watch.timedOut) {
+				throw new ThreadDeath();
+			}
+			watch.inTool = true;
+		}
+		boolean stopThrown = false;
+		try {
+			return call.call();
+		} catch (ThreadDeath td) {
+			stopThrown = true;
+			throw td;
+		} catch (InvocationTargetException e) {
+			stopThrown = e.getCause() instanceof ThreadDeath;
+			throw e;
+		} finally {
+			leaveToolCall(watch, stopThrown);
+		}
+	}
+
+	private static void leaveToolCall(Watch watch, boolean stopThrown) {
+		final boolean awaitStop;
+		synchronized (watch) {
+			watch.inTool = false;
+			awaitStop = watch.stopPending && !stopThrown;
+			watch.stopPending = false;
+		}
+		if (awaitStop) {
+			// The caller checks isTimedOut()
+			awaitPendingStop();
+		}
+		synchronized (watch) {
+			if (watch.interruptFlagSet) {
+				watch.interruptFlagSet = false;
+				// Don't leave the interrupt flag set for unrelated code
+				Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * Let a ThreadDeath sent by {@link #abandon(Watch)} arrive here, rather than
+	 * somewhere in Tragdor later on.
+	 */
+	private static void awaitPendingStop() {
+		try {
+			final long deadline = System.nanoTime() + pendingStopWaitMs * 1_000_000L;
+			while (System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+		} catch (ThreadDeath td) {
+			// Expected
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Mark that the tool called back into Tragdor, for example to deliver a trace
+	 * event. The current thread is not stopped until {@link #returnToTool(Watch)}.
+	 *
+	 * @return a watch to pass to {@link #returnToTool(Watch)}, or null if the
+	 *         current thread isn't inside a watched tool call.
+	 */
+	public static Watch leaveTool() {
+		final Watch watch = currentWatch.get();
+		if (watch == null) {
+			return null;
+		}
+		final boolean awaitStop;
+		synchronized (watch) {
+			if (!watch.inTool) {
+				return null;
+			}
+			watch.inTool = false;
+			awaitStop = watch.stopPending;
+			watch.stopPending = false;
+		}
+		if (awaitStop) {
+			// Stopped just before the callback. Don't run the callback, unwind the tool.
+			awaitPendingStop();
+			throw new ThreadDeath();
+		}
+		return watch;
+	}
+
+	public static void returnToTool(Watch watch) {
+		if (watch == null) {
+			return;
+		}
+		synchronized (watch) {
+			watch.inTool = true;
+			if (watch.timedOut && !watch.stopPending) {
+				// Timed out during the callback, stop the tool now instead
+				throw new ThreadDeath();
+			}
+		}
+	}
+
+	private static synchronized void ensureWatchdogRunning() {
+		if (watchdogThread != null) {
+			return;
+		}
+		watchdogThread = new Thread(() -> {
+			final long pollMs = Math.max(10L, Math.min(500L, timeoutMs / 10));
+			while (true) {
+				try {
+					Thread.sleep(pollMs);
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (Watch watch : activeWatches) {
+					if (watch.getElapsedMs() >= timeoutMs) {
+						abandon(watch);
+					}
+				}
+			}
+		}, "tragdor-eval-watchdog");
+		watchdogThread.setDaemon(true);
+		watchdogThread.start();
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void abandon(Watch watch) {
+		synchronized (watch) {
+			if (watch.done || watch.timedOut) {
+				return;
+			}
+			watch.timedOut = true;
+			activeWatches.remove(watch);
+			System.err.println("Evaluation of " + watch.prop.prop.name + " exceeded " + timeoutMs
+					+ "ms, abandoning it");
+			if (!watch.inTool) {
+				// The evaluating thread checks for the timeout when it calls or returns to the
+				// tool, and after the evaluation.
+				return;
+			}
+			try {
+				watch.thread.stop();
+				watch.stopPending = true;
+				watch.interruptFlagSet = true;
+			} catch (UnsupportedOperationException e) {
+				if (!warnedStopUnsupported) {
+					warnedStopUnsupported = true;
+					System.err.println(
+							"This JVM cannot stop threads, slow evaluations are only interrupted and handled after they finish");
+				}
+				watch.interruptFlagSet = true;
+				watch.thread.interrupt();
+			}
+		}
+	}
+}
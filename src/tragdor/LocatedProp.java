@@ -24,6 +24,8 @@ public class LocatedProp {
 //	private String locatorStr;
 //	private String propStr;
 	private byte[] identityArr;
+	private int id = -1;
+	private int idGeneration;
 
 	public LocatedProp(NodeLocator locator, Property prop) {
 		this.locator = locator;
@@ -40,6 +42,19 @@ public class LocatedProp {
 		this.prop = new Property(src);
 	}
 
+	/**
+	 * @return the dense id of this prop in {@link LocatedPropTable}, interning it if
+	 *         necessary.
+	 */
+	public int getId() {
+		final int generation = LocatedPropTable.getGeneration();
+		if (id == -1 || idGeneration != generation) {
+			id = LocatedPropTable.intern(this);
+			idGeneration = generation;
+		}
+		return id;
+	}
+
 	@Override
 	public int hashCode() {
 		if (hashCode == 0) {
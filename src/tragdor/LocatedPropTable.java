@@ -0,0 +1,81 @@
+package tragdor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Global interning table that gives every distinct {@link LocatedProp} a dense
+ * int id. The id of a prop instance is remembered on the instance itself (see
+ * {@link LocatedProp#getId()}), so the byte-array based hashing in
+ * {@link LocatedProp#equals(Object)} only happens once per instance.
+ * <p>
+ * The table is cleared by {@link #clear()} before each tool config, so props
+ * from earlier configs can be collected and ids stay small. Ids are only valid
+ * within the tool config they were handed out in.
+ */
+public class LocatedPropTable {
+
+	private static final Map<LocatedProp, Integer> ids = new HashMap<>();
+	private static final List<LocatedProp> props = new ArrayList<>();
+	private static volatile int generation = 0;
+
+	public static synchronized int intern(LocatedProp prop) {
+		Integer id = ids.get(prop);
+		if (id == null) {
+			id = props.size();
+			ids.put(prop, id);
+			props.add(prop);
+		}
+		return id;
+	}
+
+	/**
+	 * @return the id of the prop, or -1 if it hasn't been interned.
+	 */
+	public static synchronized int lookup(LocatedProp prop) {
+		final Integer id = ids.get(prop);
+		return id != null ? id : -1;
+	}
+
+	public static synchronized LocatedProp get(int id) {
+		return props.get(id);
+	}
+
+	public static synchronized int size() {
+		return props.size();
+	}
+
+	/**
+	 * @return a number that changes every time the table is cleared. Ids cached
+	 *         on props from an older generation are stale.
+	 */
+	public static int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Forget all props, and start handing out ids from 0 again.
+	 */
+	public static synchronized void clear() {
+		ids.clear();
+		props.clear();
+		++generation;
+	}
+
+	/**
+	 * Shuffle the ids in place. Uses the same algorithm as
+	 * {@link java.util.Collections#shuffle(List, Random)}, so the same seed gives the
+	 * same order as shuffling a list of the corresponding props.
+	 */
+	public static void shuffle(int[] ids, Random rng) {
+		for (int i = ids.length; i > 1; --i) {
+			final int j = rng.nextInt(i);
+			final int tmp = ids[i - 1];
+			ids[i - 1] = ids[j];
+			ids[j] = tmp;
+		}
+	}
+}
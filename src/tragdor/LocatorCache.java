@@ -0,0 +1,168 @@
+package tragdor;
+
+import java.util.IdentityHashMap;
+
+import codeprober.locator.CreateLocator;
+import codeprober.protocol.data.NodeLocator;
+import codeprober.protocol.data.NodeLocatorStep;
+
+/**
+ * Replacement for the plain map in {@link CreateLocator#identityLocatorCache}.
+ * <p>
+ * The cache is scoped to the AST that is currently being worked on, and is
+ * reset whenever a new AST is created. Within the same AST, most locators never
+ * become stale. Only locators that pass through NTA steps may, since the NTA
+ * nodes can be thrown away and recreated (for example by flushTreeCache). So
+ * instead of clearing everything, {@link #bumpGeneration()} only invalidates
+ * entries whose locator contains an NTA step. This is done lazily: such entries
+ * are stamped with the generation they were created in, and are dropped when
+ * looked up in a later generation.
+ * <p>
+ * Only the methods used by CreateLocator (get/containsKey/put) honor the
+ * generation stamps.
+ */
+@SuppressWarnings("serial")
+public class LocatorCache<K, V> extends IdentityHashMap<K, V> {
+
+	private final IdentityHashMap<Object, Integer> ntaStamps = new IdentityHashMap<>();
+	private int generation;
+
+	// Bumped together with the generation of the installed cache, for NodeIndex
+	private static volatile int ntaGeneration;
+
+	private long numHits;
+	private long numMisses;
+	private long numStale;
+	private long numResets;
+	private long numBumps;
+
+	/**
+	 * Install a fresh cache in CreateLocator.
+	 */
+	public static void install() {
+		CreateLocator.identityLocatorCache = new LocatorCache<>();
+	}
+
+	/**
+	 * Call when a new AST is created. Resets the cache, since entries from the
+	 * previous AST won't be used anymore.
+	 */
+	public static void onNewAst() {
+		if (CreateLocator.identityLocatorCache instanceof LocatorCache<?, ?>) {
+			((LocatorCache<?, ?>) CreateLocator.identityLocatorCache).reset();
+		} else if (CreateLocator.identityLocatorCache != null) {
+			CreateLocator.identityLocatorCache.clear();
+		}
+	}
+
+	/**
+	 * Call when NTA nodes in the current AST may have been replaced.
+	 */
+	public static void onNtasInvalidated() {
+		++ntaGeneration;
+		if (CreateLocator.identityLocatorCache instanceof LocatorCache<?, ?>) {
+			((LocatorCache<?, ?>) CreateLocator.identityLocatorCache).bumpGeneration();
+		} else if (CreateLocator.identityLocatorCache != null) {
+			CreateLocator.identityLocatorCache.clear();
+		}
+	}
+
+	/**
+	 * @return a number that changes every time {@link #onNtasInvalidated()} is
+	 *         called.
+	 */
+	public static int getNtaGeneration() {
+		return ntaGeneration;
+	}
+
+	/**
+	 * Call when a cached locator may be incorrect for unknown reasons. Clears
+	 * everything.
+	 */
+	public static void invalidateAll() {
+		onNewAst();
+	}
+
+	/**
+	 * @return a one-line summary of the installed cache's hit rate, or null if no
+	 *         {@link LocatorCache} is installed.
+	 */
+	public static String getStats() {
+		if (!(CreateLocator.identityLocatorCache instanceof LocatorCache<?, ?>)) {
+			return null;
+		}
+		final LocatorCache<?, ?> cache = (LocatorCache<?, ?>) CreateLocator.identityLocatorCache;
+		final long numLookups = cache.numHits + cache.numMisses;
+		return String.format("Locator cache: %d lookups, %.1f%% hits, %d stale NTA entries, %d resets, %d generations",
+				numLookups, numLookups == 0 ? 0.0 : (100.0 * cache.numHits / numLookups), cache.numStale,
+				cache.numResets, cache.numBumps);
+	}
+
+	public void reset() {
+		super.clear();
+		ntaStamps.clear();
+		++numResets;
+	}
+
+	public void bumpGeneration() {
+		++generation;
+		++numBumps;
+	}
+
+	private boolean isStale(Object key) {
+		final Integer stamp = ntaStamps.get(key);
+		if (stamp == null || stamp == generation) {
+			return false;
+		}
+		super.remove(key);
+		ntaStamps.remove(key);
+		++numStale;
+		return true;
+	}
+
+	@Override
+	public V get(Object key) {
+		final V ret = super.get(key);
+		if (ret == null || isStale(key)) {
+			++numMisses;
+			return null;
+		}
+		++numHits;
+		return ret;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return super.containsKey(key) && !isStale(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		if (value instanceof NodeLocator && hasNtaStep((NodeLocator) value)) {
+			ntaStamps.put(key, generation);
+		} else {
+			ntaStamps.remove(key);
+		}
+		return super.put(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		ntaStamps.remove(key);
+		return super.remove(key);
+	}
+
+	@Override
+	public void clear() {
+		reset();
+	}
+
+	static boolean hasNtaStep(NodeLocator locator) {
+		for (NodeLocatorStep step : locator.steps) {
+			if (step.isNta()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,131 @@
+package tragdor;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import codeprober.AstInfo;
+import codeprober.locator.ApplyLocator.ResolvedNode;
+import codeprober.protocol.data.NodeLocator;
+
+/**
+ * Index of already resolved node locators, one per parsed AST. Applying a
+ * locator walks all of its steps from the root, which is slow for big and
+ * deep ASTs. Most nodes have many properties, and with {@link LocatedPropTable}
+ * the same locator instances are resolved over and over, so remembering the
+ * result saves most of the walks.
+ * <p>
+ * The index is filled lazily, which also covers nodes created by NTA steps.
+ * Each AST gets its own index, so replacing the AST implicitly invalidates it.
+ * Anything that may detach nodes from the AST (like flushing the tree cache)
+ * must call {@link #invalidate(AstInfo)}. Nodes resolved through NTA steps are
+ * additionally dropped whenever {@link LocatorCache#onNtasInvalidated()} is
+ * called, like the entries in {@link LocatorCache}.
+ * <p>
+ * Disabled by setting 'tragdor.node_index' to false.
+ */
+public class NodeIndex {
+
+	private static final boolean enabled = !"false".equals(System.getProperty("tragdor.node_index"));
+
+	private static final Map<AstInfo, NodeIndex> indexes = new WeakHashMap<>();
+
+	// The JSON form of locators is expensive to create, remember it per instance
+	private static final Map<NodeLocator, String> locatorKeys = new WeakHashMap<>();
+
+	private final Map<NodeLocator, Entry> byIdentity = new IdentityHashMap<>();
+	private final Map<String, Entry> byContent = new HashMap<>();
+
+	private static class Entry {
+		final ResolvedNode node;
+		// LocatorCache NTA generation the node was resolved in, -1 if the locator has
+		// no NTA steps
+		final int ntaGeneration;
+
+		Entry(ResolvedNode node, int ntaGeneration) {
+			this.node = node;
+			this.ntaGeneration = ntaGeneration;
+		}
+
+		boolean isStale() {
+			return ntaGeneration != -1 && ntaGeneration != LocatorCache.getNtaGeneration();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return a previously resolved node for the locator in the given AST, or null
+	 *         if it hasn't been resolved yet.
+	 */
+	public static ResolvedNode lookup(AstInfo info, NodeLocator locator) {
+		if (!enabled) {
+			return null;
+		}
+		final NodeIndex index;
+		synchronized (indexes) {
+			index = indexes.get(info);
+		}
+		if (index == null) {
+			return null;
+		}
+		synchronized (index) {
+			Entry ret = index.byIdentity.get(locator);
+			if (ret == null) {
+				ret = index.byContent.get(getLocatorKey(locator));
+				if (ret == null) {
+					return null;
+				}
+				index.byIdentity.put(locator, ret);
+			}
+			if (ret.isStale()) {
+				index.byIdentity.remove(locator);
+				index.byContent.remove(getLocatorKey(locator));
+				return null;
+			}
+			return ret.node;
+		}
+	}
+
+	public static void add(AstInfo info, NodeLocator locator, ResolvedNode node) {
+		if (!enabled) {
+			return;
+		}
+		NodeIndex index;
+		synchronized (indexes) {
+			index = indexes.get(info);
+			if (index == null) {
+				index = new NodeIndex();
+				indexes.put(info, index);
+			}
+		}
+		final Entry entry = new Entry(node, LocatorCache.hasNtaStep(locator) ? LocatorCache.getNtaGeneration() : -1);
+		synchronized (index) {
+			index.byIdentity.put(locator, entry);
+			index.byContent.put(getLocatorKey(locator), entry);
+		}
+	}
+
+	public static void invalidate(AstInfo info) {
+		synchronized (indexes) {
+			indexes.remove(info);
+		}
+	}
+
+	/**
+	 * @return a string that is equal for locators with equal content.
+	 */
+	public static String getLocatorKey(NodeLocator locator) {
+		synchronized (locatorKeys) {
+			String key = locatorKeys.get(locator);
+			if (key == null) {
+				key = locator.toJSON().toString();
+				locatorKeys.put(locator, key);
+			}
+			return key;
+		}
+	}
+}
@@ -5,6 +5,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,19 +30,40 @@ import tragdor.config.AstGlue;
 import tragdor.report.impl.ExceptionThrownReport;
 import tragdor.report.impl.FailedFindingNodeInNewAstReport;
 import tragdor.report.impl.UnattachedNodeReport;
+import tragdor.steps.step2.SearchStats;
 import tragdor.util.Exit;
 
 public class PropEvaluation {
 
 	public static EvaluatedValue evaluateProp(AstInfo info, LocatedProp prop) {
-		return evaluateProp(info, prop, null);
+		return evaluateProp(info, prop, (Runnable) null);
+	}
+
+	/**
+	 * Evaluate a prop that is expected to have a specific value. If the value is
+	 * plain and equal to the expected value, 'expected' is returned without
+	 * running the full encoder. See
+	 * {@link #encodePropertyResult(AstInfo, LocatedProp, Object, EvaluatedValue)}.
+	 */
+	public static EvaluatedValue evaluateProp(AstInfo info, LocatedProp prop, EvaluatedValue expected) {
+		final AttributeProfiler.Sample sample = AttributeProfiler.begin();
+		try {
+			return doEvaluateProp(info, prop, null, expected);
+		} finally {
+			AttributeProfiler.end(prop, sample);
+		}
 	}
 
 	public static ResolvedNode applyLocatorWithUncachedRetry(AstInfo info, NodeLocator locator) {
+		final ResolvedNode indexed = NodeIndex.lookup(info, locator);
+		if (indexed != null) {
+			return indexed;
+		}
 		InvokeProblem problem = null;
 		try {
 			ResolvedNode result = ApplyLocator.toNode(info, locator);
 			if (result != null && result.node != null && result.nodeLocator != null) {
+				NodeIndex.add(info, locator, result);
 				return result;
 			}
 		} catch (InvokeProblem ip) {
@@ -50,10 +73,11 @@ public class PropEvaluation {
 		// If we get here, node locator application failed.
 		// This might be due to identity caching
 		if (CreateLocator.identityLocatorCache != null) {
-			CreateLocator.identityLocatorCache.clear();
+			LocatorCache.invalidateAll();
 			try {
 				ResolvedNode secondTry = ApplyLocator.toNode(info, locator);
 				if (secondTry != null && secondTry.node != null && secondTry.nodeLocator != null) {
+					NodeIndex.add(info, locator, secondTry);
 					return secondTry;
 				}
 
@@ -75,6 +99,16 @@ public class PropEvaluation {
 	}
 
 	public static EvaluatedValue evaluateProp(AstInfo info, LocatedProp prop, Runnable reRegisterTraceReceiver) {
+		final AttributeProfiler.Sample sample = AttributeProfiler.begin();
+		try {
+			return doEvaluateProp(info, prop, reRegisterTraceReceiver, null);
+		} finally {
+			AttributeProfiler.end(prop, sample);
+		}
+	}
+
+	private static EvaluatedValue doEvaluateProp(AstInfo info, LocatedProp prop, Runnable reRegisterTraceReceiver,
+			EvaluatedValue expected) {
 
 //		checkCircleState(info, "pre locator");
 		final ResolvedNode result = applyLocatorWithUncachedRetry(info, prop.locator);
@@ -88,17 +122,15 @@ public class PropEvaluation {
 			final Object value;
 
 			if (prop.prop.args == null || prop.prop.args.isEmpty()) {
-				value = Reflect.invoke0(subject.underlyingAstNode, prop.prop.name);
+				value = invokeCached(subject.underlyingAstNode, prop.prop.name, NO_ARG_TYPES, NO_ARG_VALUES);
 			} else {
 				final int numArgs = prop.prop.args.size();
-				final Class<?>[] argTypes = new Class<?>[numArgs];
+				final Class<?>[] argTypes = PropMethodCache.getArgTypes(info, prop.prop.args);
 				final Object[] argValues = new Object[numArgs];
 //				final List<PropertyArg> updatedArgs = new ArrayList<>();
 //				updatedArgsPtr.set(updatedArgs);
 				for (int i = 0; i < numArgs; ++i) {
 					final PropertyArg arg = prop.prop.args.get(i);
-					final Class<?> argType = EvaluatePropertyHandler.getValueType(info, arg);
-					argTypes[i] = argType;
 					final UnpackedAttrValue unpacked = EvaluatePropertyHandler.unpackAttrValue(info, arg, msg -> {
 					});
 					argValues[i] = unpacked.unpacked;
@@ -106,7 +138,7 @@ public class PropEvaluation {
 				}
 				BenchmarkTimer.EVALUATE_ATTR.enter();
 				try {
-					value = Reflect.invokeN(subject.underlyingAstNode, prop.prop.name, argTypes, argValues);
+					value = invokeCached(subject.underlyingAstNode, prop.prop.name, argTypes, argValues);
 				} catch (InvokeProblem ip) {
 					System.err.println("InvokeProblem when invoking " + prop.prop.toJSON());
 					System.err.println("ArgTypes: " + Arrays.toString(argTypes));
@@ -127,7 +159,7 @@ public class PropEvaluation {
 //			currentPropDebug = prop;
 //			return new EvaluatedValue(Kind.VALUE, encodeValue(info, value));
 
-			return encodePropertyResult(info, prop, value);
+			return encodePropertyResult(info, prop, value, expected);
 //
 //			final List<RpcBodyLine> lines = new ArrayList<>();
 //			final int preUnattached = CreateLocator.numEncounteredUnattachedNodes;
@@ -158,6 +190,10 @@ public class PropEvaluation {
 			if (cause instanceof InvocationTargetException) {
 				cause = cause.getCause();
 			}
+			if (cause instanceof ThreadDeath) {
+				// Stopped by EvaluationWatchdog, let the caller handle it
+				throw (ThreadDeath) cause;
+			}
 			System.err.println("Got InvokeProblem when evaluating prop! " + prop.toJSON());
 			cause.printStackTrace();
 			Tragdor.report(new ExceptionThrownReport(prop, cause));
@@ -166,6 +202,7 @@ public class PropEvaluation {
 
 			if (AstGlue.isAstStateCircular(info)) {
 				Tragdor.resetAstState(info.ast.underlyingAstNode);
+				NodeIndex.invalidate(info);
 				if (reRegisterTraceReceiver != null) {
 					reRegisterTraceReceiver.run();
 				}
@@ -177,6 +214,67 @@ public class PropEvaluation {
 		}
 	}
 
+	private static final Class<?>[] NO_ARG_TYPES = new Class<?>[0];
+	private static final Object[] NO_ARG_VALUES = new Object[0];
+
+	/**
+	 * Same as {@link Reflect#invokeN(Object, String, Class[], Object[])}, but with
+	 * the method lookup cached in {@link PropMethodCache}.
+	 */
+	private static Object invokeCached(Object target, String name, Class<?>[] argTypes, Object[] argValues) {
+		try {
+			final PropMethodCache.Invoker method = PropMethodCache.getMethod(target.getClass(), name, argTypes);
+			return EvaluationWatchdog.callTool(() -> method.invoke(target, argValues));
+		} catch (NoSuchMethodException | InvocationTargetException e) {
+			throw new InvokeProblem(e);
+		}
+	}
+
+	// Types that EncodeResponseValue encodes as a single plain line of
+	// String.valueOf(value). Checked against the encoder the first time each type
+	// is seen, false if the encoder does something else.
+	private static final Map<Class<?>, Boolean> plainEncodedTypes = new ConcurrentHashMap<>();
+
+	private static boolean isPlainCandidate(Object value) {
+		return value instanceof String || value instanceof Integer || value instanceof Boolean
+				|| value instanceof Long || value instanceof Character || value instanceof Short
+				|| value instanceof Byte || value instanceof Double || value instanceof Float;
+	}
+
+	/**
+	 * Same as {@link #encodePropertyResult(AstInfo, LocatedProp, Object)}, except
+	 * that plain values (strings, numbers, booleans, ..) are compared to
+	 * 'expected' directly. If they are equal, 'expected' is returned and the
+	 * encoder is not run at all. Other values, and plain values that differ, are
+	 * fully encoded so that they can be reported.
+	 */
+	public static EvaluatedValue encodePropertyResult(AstInfo info, LocatedProp prop, Object rawResult,
+			EvaluatedValue expected) {
+		final long start = System.nanoTime();
+		if (expected != null && expected.kind == Kind.VALUE && expected.value.isPlain()
+				&& isPlainCandidate(rawResult)) {
+			final Boolean plainEncoded = plainEncodedTypes.get(rawResult.getClass());
+			if (plainEncoded == null) {
+				final EvaluatedValue full = encodePropertyResult(info, prop, rawResult);
+				if (full.kind == Kind.VALUE && full.value.isPlain()) {
+					plainEncodedTypes.put(rawResult.getClass(), full.value.asPlain().equals(String.valueOf(rawResult)));
+				}
+				// Else, not conclusive. For example multi-line strings may be encoded
+				// differently. Check again on the next value.
+				return full;
+			}
+			if (plainEncoded && expected.value.asPlain().equals(String.valueOf(rawResult))) {
+				SearchStats.recordValueEncoding(true, System.nanoTime() - start);
+				return expected;
+			}
+		}
+		final EvaluatedValue ret = encodePropertyResult(info, prop, rawResult);
+		if (expected != null) {
+			SearchStats.recordValueEncoding(false, System.nanoTime() - start);
+		}
+		return ret;
+	}
+
 	public static EvaluatedValue encodePropertyResult(AstInfo info, LocatedProp prop, Object rawResult) {
 		final List<RpcBodyLine> lines = new ArrayList<>();
 		final int preUnattached = CreateLocator.numEncounteredUnattachedNodes;
@@ -222,6 +320,7 @@ public class PropEvaluation {
 			final List<RpcBodyLine> arr = src.asArr();
 
 			final List<RpcBodyLine> filtered = new ArrayList<>();
+			boolean anySkipped = false;
 			for (int i = 0; i < arr.size() - 1; ++i) {
 				final RpcBodyLine first = arr.get(i);
 				final RpcBodyLine second = arr.get(i + 1);
@@ -235,11 +334,16 @@ public class PropEvaluation {
 					if (matcher.matches()) {
 						if (Pattern.compile("^" + matcher.group(1) + "@[0-9a-z]+$").matcher(sp).matches()) {
 							++i; // Skip second
+							anySkipped = true;
 							continue;
 						}
 					}
 				}
 			}
+			if (!anySkipped && arr.size() != 1) {
+				// Nothing masked, no need for a copy
+				return src;
+			}
 			if (arr.size() > 0) {
 				// Add last
 				filtered.add(arr.get(arr.size() - 1));
@@ -2,7 +2,9 @@ package tragdor;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,7 +12,9 @@ import java.util.Map.Entry;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import codeprober.AstInfo;
 import codeprober.ast.AstNode;
@@ -21,17 +25,23 @@ import codeprober.metaprogramming.Reflect;
 import codeprober.protocol.data.NodeLocator;
 import codeprober.protocol.data.Property;
 import codeprober.protocol.data.PropertyArg;
+import codeprober.protocol.data.RpcBodyLine;
 import codeprober.protocol.data.Tracing;
 import codeprober.requesthandler.TracingBuilder;
 import codeprober.requesthandler.TracingBuilder.PendingTrace;
 import tragdor.EvaluatedValue.Kind;
 import tragdor.config.UserConfig;
-import tragdor.steps.step1.DependencyGraphNode;
+import tragdor.report.impl.SlowPropertyReport;
+import tragdor.steps.DifferentialMode;
+import tragdor.steps.step1.DependencyGraph;
 import tragdor.util.Benchmark;
 
 public class PropGathering {
 
 	private final Map<LocatedProp, EvaluatedValue> dst;
+	private final Map<EvaluatedValue, EvaluatedValue> canonicalValues = new HashMap<>();
+	// Nanoseconds spent evaluating each prop, keyed by LocatedPropTable id
+	private final Map<Integer, Long> evaluationCosts = new HashMap<>();
 	private final boolean collectTraceValues;
 	private final UserConfig config;
 
@@ -50,57 +60,195 @@ public class PropGathering {
 
 	private static final List<PropertyArg> dummyTraceArg = new ArrayList<>();
 
-	private static void extractDependencyGraphFromTracing(DependencyGraphNode fromNode, Tracing tr,
-			Function<LocatedProp, DependencyGraphNode> getOrCreateNode) {
-		final DependencyGraphNode fromDGN = (tr.prop.args == dummyTraceArg) ? fromNode
-				: getOrCreateNode.apply(new LocatedProp(tr.node, stripParenFromName(tr.prop)));
-		if (fromDGN == null) {
-			System.out.println("Avoiding extracting dependencyGraph from " + tr.prop.name
+	private static final boolean parallelTraceExtraction = !"false"
+			.equals(System.getProperty("tragdor.parallel_trace_extraction"));
+
+	private static void extractDependencyGraphFromTracing(Tracing root, DependencyGraph.Builder graph) {
+		// Explicit stack instead of recursion, attribute chains can be very deep
+		final List<Tracing> stack = new ArrayList<>();
+		int[] fromNodes = new int[16];
+		int[] nextDeps = new int[16];
+
+		if (root.prop.args == dummyTraceArg) {
+			System.out.println("Avoiding extracting dependencyGraph from " + root.prop.name
 					+ " because it has complex arguments and no non-complex predecessor");
 			return;
 		}
-		for (Tracing target : tr.dependencies) {
+		stack.add(root);
+		fromNodes[0] = graph.getOrCreateNode(new LocatedProp(root.node, stripParenFromName(root.prop)));
+		nextDeps[0] = 0;
+
+		while (!stack.isEmpty()) {
+			final int top = stack.size() - 1;
+			final Tracing tr = stack.get(top);
+			if (nextDeps[top] == tr.dependencies.size()) {
+				stack.remove(top);
+				continue;
+			}
+			final int fromDGN = fromNodes[top];
+			final Tracing target = tr.dependencies.get(nextDeps[top]++);
+			final int targetDGN;
 			if (target.prop.args == dummyTraceArg) {
-				// Ignore
+				// Dependencies of the target are attributed to the current node
+				targetDGN = fromDGN;
 			} else {
-				final DependencyGraphNode toDGN = getOrCreateNode
-						.apply(new LocatedProp(target.node, stripParenFromName(target.prop)));
-				if (fromDGN == toDGN) {
-					// Also ignore, possibly a bug in TracingBuilder.
+				targetDGN = graph.getOrCreateNode(new LocatedProp(target.node, stripParenFromName(target.prop)));
+				if (fromDGN == targetDGN) {
+					// Ignore, possibly a bug in TracingBuilder.
 				} else {
-					fromDGN.addOutgoingEdge(toDGN);
+					graph.addEdge(fromDGN, targetDGN);
 				}
 			}
-			extractDependencyGraphFromTracing(fromDGN, target, getOrCreateNode);
+			if (stack.size() == fromNodes.length) {
+				fromNodes = Arrays.copyOf(fromNodes, fromNodes.length * 2);
+				nextDeps = Arrays.copyOf(nextDeps, nextDeps.length * 2);
+			}
+			fromNodes[stack.size()] = targetDGN;
+			nextDeps[stack.size()] = 0;
+			stack.add(target);
 		}
+	}
 
+	/**
+	 * Apply a function to each root, in parallel if enabled. The results are
+	 * returned in the same order as the roots.
+	 */
+	private static <T> List<T> mapRoots(List<Tracing> roots, Function<Tracing, T> fn) {
+		IntStream indexes = IntStream.range(0, roots.size());
+		if (parallelTraceExtraction && roots.size() > 1) {
+			indexes = indexes.parallel();
+		}
+		return indexes.<T>mapToObj(i -> fn.apply(roots.get(i))).collect(Collectors.toList());
 	}
 
 	private static boolean ignoreCircularAttributeDependencies = !"false"
 			.equals(System.getProperty("ignore_circular_attribute_dependencies"));
 
-	public Map<LocatedProp, DependencyGraphNode> evaluateTracedWithFullDependencyGraph(NodeLocator loc,
+	private static final boolean streamingTrace = "true".equals(System.getProperty("tragdor.streaming_trace"));
+	private static final boolean verifyStreamingTrace = "verify".equals(System.getProperty("tragdor.streaming_trace"));
+
+	public DependencyGraph evaluateTracedWithFullDependencyGraph(NodeLocator loc,
 			BiConsumer<AstInfo, TracingBuilder> evaluator) {
-		final Map<LocatedProp, DependencyGraphNode> ret = new HashMap<>();
+		if (!verifyStreamingTrace) {
+			return evaluateTraced(loc, evaluator, streamingTrace);
+		}
+		System.out.println("Verifying streaming trace, evaluating with both streaming and trace tree..");
+		final DependencyGraph streamedGraph = evaluateTraced(loc, evaluator, true);
+		final Map<LocatedProp, EvaluatedValue> streamedValues = new HashMap<>(dst);
+		dst.clear();
+		evaluationCosts.clear();
+		final DependencyGraph treeGraph = evaluateTraced(loc, evaluator, false);
+		if (!compareTracedResults(streamedGraph, streamedValues, treeGraph, dst)) {
+			System.err.println("Streaming trace does not match the trace tree");
+		}
+		return treeGraph;
+	}
 
-		final Function<LocatedProp, DependencyGraphNode> getOrCreateNode = lp -> {
-			DependencyGraphNode dg = ret.get(lp);
-			if (dg == null) {
-				dg = new DependencyGraphNode(lp);
-				ret.put(lp, dg);
+	private static Map<LocatedProp, List<LocatedProp>> getEdgeMap(DependencyGraph graph) {
+		final Map<LocatedProp, List<LocatedProp>> ret = new HashMap<>();
+		for (int node = 0; node < graph.getNumNodes(); ++node) {
+			final List<LocatedProp> targets = new ArrayList<>();
+			for (int i = 0; i < graph.getNumOutgoing(node); ++i) {
+				targets.add(graph.getProp(graph.getOutgoing(node, i)));
 			}
-			return dg;
-		};
+			ret.put(graph.getProp(node), targets);
+		}
+		return ret;
+	}
+
+	/**
+	 * Compare the results of a streamed and a tree based trace of the same
+	 * evaluation. Differences are printed.
+	 *
+	 * @return true if the graphs and values are equal.
+	 */
+	private static boolean compareTracedResults(DependencyGraph streamedGraph,
+			Map<LocatedProp, EvaluatedValue> streamedValues, DependencyGraph treeGraph,
+			Map<LocatedProp, EvaluatedValue> treeValues) {
+		final int maxPrinted = 10;
+		int numDiffs = 0;
+		final Map<LocatedProp, List<LocatedProp>> streamedEdges = getEdgeMap(streamedGraph);
+		final Map<LocatedProp, List<LocatedProp>> treeEdges = getEdgeMap(treeGraph);
+		for (Entry<LocatedProp, List<LocatedProp>> ent : treeEdges.entrySet()) {
+			final List<LocatedProp> streamedTargets = streamedEdges.get(ent.getKey());
+			if (streamedTargets == null) {
+				if (++numDiffs <= maxPrinted) {
+					System.err.println("Missing node in streamed graph: " + ent.getKey().toString());
+				}
+			} else if (!new HashSet<>(streamedTargets).equals(new HashSet<>(ent.getValue()))) {
+				if (++numDiffs <= maxPrinted) {
+					System.err.println("Different dependencies for " + ent.getKey().toString());
+				}
+			}
+		}
+		for (LocatedProp prop : streamedEdges.keySet()) {
+			if (!treeEdges.containsKey(prop) && ++numDiffs <= maxPrinted) {
+				System.err.println("Extra node in streamed graph: " + prop.toString());
+			}
+		}
+		for (Entry<LocatedProp, EvaluatedValue> ent : treeValues.entrySet()) {
+			final EvaluatedValue streamed = streamedValues.get(ent.getKey());
+			if (streamed == null || !streamed.equals(ent.getValue())) {
+				if (++numDiffs <= maxPrinted) {
+					System.err.println((streamed == null ? "Missing" : "Different") + " streamed value for "
+							+ ent.getKey().toString());
+				}
+			}
+		}
+		for (LocatedProp prop : streamedValues.keySet()) {
+			if (!treeValues.containsKey(prop) && ++numDiffs <= maxPrinted) {
+				System.err.println("Extra streamed value for " + prop.toString());
+			}
+		}
+		if (numDiffs > maxPrinted) {
+			System.err.println(".. and " + (numDiffs - maxPrinted) + " more difference(s)");
+		}
+		System.out.printf("Compared streamed and tree trace: %d node(s), %d edge(s), %d value(s), %d difference(s)%n",
+				treeGraph.getNumNodes(), treeGraph.getNumEdges(), treeValues.size(), numDiffs);
+		return numDiffs == 0;
+	}
+
+	private DependencyGraph evaluateTraced(NodeLocator loc, BiConsumer<AstInfo, TracingBuilder> evaluator,
+			boolean streaming) {
+		final DependencyGraph.Builder graph = new DependencyGraph.Builder();
 
 		final AstInfo fresh = config.reparse();
 
 		final boolean[] acceptNotifications = new boolean[] { true };
+		// Only needed for cost aware sampling
+		final List<ComputeTiming> computeTimings = config.getCostAwareSampling() ? new ArrayList<>() : null;
+		final boolean timeComputations = computeTimings != null || AttributeProfiler.isEnabled();
 		final IdentityHashMap<PendingTrace, Boolean> pendingEdges = new IdentityHashMap<>();
+		final StreamingTrace[] streamPtr = new StreamingTrace[1];
 		final TracingBuilder traceBuilder = new TracingBuilder(fresh) {
 
 			int circularIgnoreDepth = 0;
+			// Start times of the active computations, and the time spent in computations
+			// nested in them. For computeTimings and AttributeProfiler.
+			long[] computeStarts = new long[16];
+			long[] computeChildNanos = new long[16];
+			int numComputeStarts = 0;
+
+			@Override
+			public void resetActiveStack() {
+				super.resetActiveStack();
+				numComputeStarts = 0;
+				if (streamPtr[0] != null) {
+					streamPtr[0].resetStack();
+				}
+			}
 
 			public void accept(Object[] args) {
+				// Called from the tool, don't let EvaluationWatchdog stop this thread in here
+				final EvaluationWatchdog.Watch watch = EvaluationWatchdog.leaveTool();
+				try {
+					acceptUnstoppable(args);
+				} finally {
+					EvaluationWatchdog.returnToTool(watch);
+				}
+			}
+
+			private void acceptUnstoppable(Object[] args) {
 				if (!acceptNotifications[0]) {
 					return;
 				}
@@ -119,10 +267,16 @@ public class PropGathering {
 							if (circularIgnoreDepth == 0) {
 								final Object[] begin = Arrays.copyOf(args, args.length);
 								begin[0] = "COMPUTE_BEGIN";
-								super.accept(begin);
 								final Object[] end = Arrays.copyOf(args, args.length);
 								end[0] = "COMPUTE_END";
-								super.accept(end);
+								if (streamPtr[0] != null) {
+									streamPtr[0].onComputeBegin(begin,
+											super.excludeAttribute(begin[1], String.valueOf(begin[2])));
+									streamPtr[0].onComputeEnd(end);
+								} else {
+									super.accept(begin);
+									super.accept(end);
+								}
 							}
 							break;
 						}
@@ -150,6 +304,10 @@ public class PropGathering {
 						if (super.excludeAttribute(astNode, attribute)) {
 							return;
 						}
+						if (streamPtr[0] != null) {
+							streamPtr[0].onCacheRead(args);
+							return;
+						}
 
 						final PendingTrace active = peekActiveTrace();
 						if (active == null) {
@@ -171,11 +329,43 @@ public class PropGathering {
 					}
 
 					case "COMPUTE_BEGIN": {
+						if (timeComputations) {
+							if (numComputeStarts == computeStarts.length) {
+								computeStarts = Arrays.copyOf(computeStarts, numComputeStarts * 2);
+								computeChildNanos = Arrays.copyOf(computeChildNanos, numComputeStarts * 2);
+							}
+							computeChildNanos[numComputeStarts] = 0;
+							computeStarts[numComputeStarts++] = System.nanoTime();
+						}
+						if (streamPtr[0] != null) {
+							streamPtr[0].onComputeBegin(args,
+									super.excludeAttribute(args[1], String.valueOf(args[2])));
+							break;
+						}
 						super.accept(args);
 						break;
 					}
 					case "COMPUTE_END":
 //						Expected structure: Trace.Event event, ASTNode node, String attribute, Object params, Object value
+						if (timeComputations && numComputeStarts > 0) {
+							final int top = --numComputeStarts;
+							final long nanos = System.nanoTime() - computeStarts[top];
+							if (top > 0) {
+								computeChildNanos[top - 1] += nanos;
+							}
+							final String attr = String.valueOf(args[2]);
+							if (!super.excludeAttribute(args[1], attr)) {
+								if (computeTimings != null) {
+									computeTimings.add(new ComputeTiming(args[1], attr, args[3], nanos));
+								}
+								AttributeProfiler.recordTraced(args[1].getClass().getName(),
+										getTracePropName(attr), nanos, nanos - computeChildNanos[top]);
+							}
+						}
+						if (streamPtr[0] != null) {
+							streamPtr[0].onComputeEnd(args);
+							break;
+						}
 						super.accept(args);
 						break;
 					}
@@ -188,59 +378,117 @@ public class PropGathering {
 			traceBuilder.setSkipEncodingTraceResults(true);
 		}
 		traceBuilder.setFallbackArgsForUnknownArgumentTypes(dummyTraceArg);
+		if (streaming) {
+			streamPtr[0] = new StreamingTrace(fresh, traceBuilder, graph, acceptNotifications);
+		}
 		registerTraceReceiver(fresh, traceBuilder);
-		Benchmark.tickTockv("traceEvaluator", () -> evaluator.accept(fresh, traceBuilder));
+		// Evaluations are profiled from the trace, see AttributeProfiler.recordTraced
+		final boolean prevTraced = AttributeProfiler.setTraced(true);
+		try {
+			Benchmark.tickTockv("traceEvaluator", () -> evaluator.accept(fresh, traceBuilder));
+		} finally {
+			AttributeProfiler.setTraced(prevTraced);
+		}
 
 		System.out.println("Stopping trace..");
 		traceBuilder.stop();
 
+		// Locating nodes touches the AST, so it is done on this thread. Many trace
+		// events refer to the same nodes, so the locators are remembered.
+		final IdentityHashMap<Object, NodeLocator> locators = new IdentityHashMap<>();
+
+		if (streamPtr[0] != null) {
+			acceptNotifications[0] = false;
+			Benchmark.tickTockv("finishStreamingTrace", () -> streamPtr[0].finish(locators));
+			Benchmark.tickTockv("recordComputeCosts",
+					() -> recordComputeCosts(fresh, traceBuilder, computeTimings, locators));
+			return Benchmark.tickTock("buildDependencyGraph", graph::build);
+		}
+
 		System.out.println("Finishing trace!");
 		final Tracing rootTrace = Benchmark.tickTock("finishTrace", () -> traceBuilder.finish(loc));
 		if (rootTrace != null) {
+			// Each entry point evaluation is an independent root
+			final List<Tracing> roots = (rootTrace.prop != null && "MultipleTraceEvents".equals(rootTrace.prop.name))
+					? rootTrace.dependencies
+					: Collections.singletonList(rootTrace);
+
 			System.out.println("Extracting from trace..");
-			extractTrace(new AstInfo[] { fresh }, rootTrace, dst);
+			long phaseStart = System.currentTimeMillis();
+			final List<ExtractedValues> rootValues = Benchmark.tickTock("extractTrace", () -> mapRoots(roots, root -> {
+				final ExtractedValues values = new ExtractedValues();
+				extractTrace(root, values);
+				return values;
+			}));
+			for (ExtractedValues values : rootValues) {
+				for (int i = 0; i < values.props.size(); ++i) {
+					insertPropvalue(values.props.get(i), values.values.get(i));
+				}
+			}
+			System.out.println("Extracted values from " + roots.size() + " root(s) in "
+					+ (System.currentTimeMillis() - phaseStart) + "ms");
 
 			System.out.println("Building dependency graph..");
 			acceptNotifications[0] = false;
 
-			Benchmark.tickTockv("extractDependencyGraph", () -> {
-				if (rootTrace != null && rootTrace.prop != null && "MultipleTraceEvents".equals(rootTrace.prop.name)) {
-					for (Tracing target : rootTrace.dependencies) {
-						extractDependencyGraphFromTracing(null, target, getOrCreateNode);
+			phaseStart = System.currentTimeMillis();
+			if (parallelTraceExtraction && roots.size() > 1) {
+				final List<DependencyGraph.Builder> partialGraphs = Benchmark.tickTock("extractDependencyGraph",
+						() -> mapRoots(roots, root -> {
+							final DependencyGraph.Builder partial = new DependencyGraph.Builder();
+							extractDependencyGraphFromTracing(root, partial);
+							return partial;
+						}));
+				System.out.println("Extracted " + partialGraphs.size() + " partial graph(s) in "
+						+ (System.currentTimeMillis() - phaseStart) + "ms");
+				phaseStart = System.currentTimeMillis();
+				Benchmark.tickTockv("mergePartialGraphs", () -> {
+					// Merge in root order, gives the same node ids as sequential extraction
+					for (DependencyGraph.Builder partial : partialGraphs) {
+						graph.merge(partial);
 					}
-				} else {
-					extractDependencyGraphFromTracing(null, rootTrace, getOrCreateNode);
-				}
-			});
+				});
+				System.out.println("Merged partial graphs in " + (System.currentTimeMillis() - phaseStart) + "ms");
+			} else {
+				Benchmark.tickTockv("extractDependencyGraph", () -> {
+					for (Tracing root : roots) {
+						extractDependencyGraphFromTracing(root, graph);
+					}
+				});
+				System.out.println("Extracted dependency graph in " + (System.currentTimeMillis() - phaseStart) + "ms");
+			}
+			phaseStart = System.currentTimeMillis();
 
 			System.out.println("Handling pendingEdges..");
-			final Map<LocatedProp, Object> pendingDstEncodedValues = new HashMap<>();
-			for (PendingTrace trSrc : pendingEdges.keySet()) {
-				Benchmark.tickTockv("pendingEdges", () -> {
+			// Decoding arguments touches the AST too, so this is done on this thread
+			final Map<String, List<PropertyArg>> paramlessArgs = new HashMap<>();
+			final List<CacheReadEdges> resolvedEdges = new ArrayList<>();
+			Benchmark.tickTockv("pendingEdges:resolve", () -> {
+				for (PendingTrace trSrc : pendingEdges.keySet()) {
 					if (trSrc.property.args == dummyTraceArg) {
-						return;
+						continue;
 					}
 					final NodeLocator srcNode = trSrc.getLocator(); // CreateLocator.fromNode(fresh, new
 																	// AstNode(trSrc.node));
 					if (srcNode == null) {
-						return;
+						continue;
 					}
-					final LocatedProp fromProp = new LocatedProp(srcNode, stripParenFromName(trSrc.property));
-					final DependencyGraphNode fromDGN = getOrCreateNode.apply(fromProp);
+					final CacheReadEdges edges = new CacheReadEdges(
+							new LocatedProp(srcNode, stripParenFromName(trSrc.property)));
 
 					for (Object[] outgoingArgs : (List<Object[]>) trSrc.userData) {
-						final AstNode toNode = new AstNode(outgoingArgs[1]);
-						if (!traceBuilder.isAttached(toNode)) {
-							// Oh dear! Pretend it did not happen;
-							continue;
-						}
-						final NodeLocator toLoc = CreateLocator.fromNode(fresh, toNode);
+						final NodeLocator toLoc = locateTraceNode(fresh, traceBuilder, outgoingArgs[1], locators);
 						if (toLoc == null) {
 							continue;
 						}
 						final String attr = outgoingArgs[2] + "";
-						final List<PropertyArg> decodedArgs = traceBuilder.decodeTraceArgs(outgoingArgs[1], attr,
-								outgoingArgs[3]);
+						final List<PropertyArg> decodedArgs;
+						if (outgoingArgs[3] == null) {
+							decodedArgs = paramlessArgs.computeIfAbsent(attr,
+									x -> traceBuilder.decodeTraceArgs(outgoingArgs[1], attr, null));
+						} else {
+							decodedArgs = traceBuilder.decodeTraceArgs(outgoingArgs[1], attr, outgoingArgs[3]);
+						}
 						if (decodedArgs == dummyTraceArg) {
 							// Intentional reference equality; failed decoding args
 							continue;
@@ -250,13 +498,6 @@ public class PropGathering {
 								attr.substring(attr.indexOf('.') + 1, lpar == -1 ? attr.length() : lpar), //
 								decodedArgs //
 						);
-						final LocatedProp dstProp = new LocatedProp(toLoc, toProp);
-						final DependencyGraphNode toDGN = getOrCreateNode.apply(dstProp);
-						if (fromDGN == toDGN) {
-							// Ignore, likely a bug in TracingBuilder.
-							continue;
-						}
-						fromDGN.addOutgoingEdge(toDGN);
 
 						/**
 						 * Expected structure:
@@ -268,10 +509,39 @@ public class PropGathering {
 						 * <li>4: Object value
 						 * </ul>
 						 */
-						pendingDstEncodedValues.put(dstProp, outgoingArgs[4]);
+						edges.targets.add(new LocatedProp(toLoc, toProp));
+						edges.values.add(outgoingArgs[4]);
 					}
-				});
-			}
+					resolvedEdges.add(edges);
+				}
+			});
+			System.out.println("Resolved cache reads from " + resolvedEdges.size() + " trace(s) to "
+					+ locators.size() + " node(s) in " + (System.currentTimeMillis() - phaseStart) + "ms");
+
+			// Hashing props serializes their locators, which is the expensive part of
+			// adding them to the graph. The traces are independent, so do that in parallel.
+			phaseStart = System.currentTimeMillis();
+			Benchmark.tickTockv("pendingEdges:hash", () -> {
+				(parallelTraceExtraction ? resolvedEdges.parallelStream() : resolvedEdges.stream())
+						.forEach(CacheReadEdges::prepareHashes);
+			});
+
+			final Map<LocatedProp, Object> pendingDstEncodedValues = new HashMap<>();
+			Benchmark.tickTockv("pendingEdges:graph", () -> {
+				for (CacheReadEdges edges : resolvedEdges) {
+					final int fromDGN = graph.getOrCreateNode(edges.source);
+					for (int i = 0; i < edges.targets.size(); ++i) {
+						final LocatedProp dstProp = edges.targets.get(i);
+						final int toDGN = graph.getOrCreateNode(dstProp);
+						if (fromDGN == toDGN) {
+							// Ignore, likely a bug in TracingBuilder.
+							continue;
+						}
+						graph.addEdge(fromDGN, toDGN);
+						pendingDstEncodedValues.put(dstProp, edges.values.get(i));
+					}
+				}
+			});
 			for (Entry<LocatedProp, Object> x : pendingDstEncodedValues.entrySet()) {
 //				if (!dst.containsKey(x.getKey())) {
 //				System.err.println("?? Missing entry in dst for prop: " + dstProp);
@@ -281,10 +551,325 @@ public class PropGathering {
 						PropEvaluation.maskResult(traceBuilder.encodeValue(x.getValue()))));
 //				}
 			}
+			System.out.println("Handled pendingEdges in " + (System.currentTimeMillis() - phaseStart) + "ms");
+		}
+		acceptNotifications[0] = false;
+		Benchmark.tickTockv("recordComputeCosts",
+				() -> recordComputeCosts(fresh, traceBuilder, computeTimings, locators));
+		return Benchmark.tickTock("buildDependencyGraph", graph::build);
+	}
+
+	/**
+	 * Locate a node seen in a trace. Must only be called after the trace has been
+	 * stopped.
+	 *
+	 * @return the locator, or null if the node isn't attached to the AST.
+	 */
+	private static NodeLocator locateTraceNode(AstInfo info, TracingBuilder traceBuilder, Object node,
+			IdentityHashMap<Object, NodeLocator> locators) {
+		if (locators.containsKey(node)) {
+			return locators.get(node);
 		}
+		final AstNode astNode = new AstNode(node);
+		// Unattached nodes: oh dear! Pretend it did not happen;
+		final NodeLocator ret = traceBuilder.isAttached(astNode) ? CreateLocator.fromNode(info, astNode) : null;
+		locators.put(node, ret);
 		return ret;
 	}
 
+	/**
+	 * @return the property name in an attribute from a trace event, like 'name' in
+	 *         'Type.name(int)'.
+	 */
+	private static String getTracePropName(String attr) {
+		final int lpar = attr.indexOf('(');
+		return attr.substring(attr.indexOf('.') + 1, lpar == -1 ? attr.length() : lpar);
+	}
+
+	private static Property createTraceProperty(String attr, List<PropertyArg> args) {
+		return new Property(getTracePropName(attr), args);
+	}
+
+	/**
+	 * The time between COMPUTE_BEGIN and COMPUTE_END of a computation in a trace.
+	 */
+	private static class ComputeTiming {
+		final Object node;
+		final String attribute;
+		final Object params;
+		final long nanos;
+
+		ComputeTiming(Object node, String attribute, Object params, long nanos) {
+			this.node = node;
+			this.attribute = attribute;
+			this.params = params;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Use the compute times seen in the trace as the evaluation costs of the props
+	 * that weren't measured directly. Must only be called after the trace has been
+	 * stopped.
+	 */
+	private void recordComputeCosts(AstInfo info, TracingBuilder traceBuilder, List<ComputeTiming> timings,
+			IdentityHashMap<Object, NodeLocator> locators) {
+		if (timings == null) {
+			return;
+		}
+		final Map<String, List<PropertyArg>> paramlessArgs = new HashMap<>();
+		int numRecorded = 0;
+		for (ComputeTiming timing : timings) {
+			final List<PropertyArg> args = timing.params == null
+					? paramlessArgs.computeIfAbsent(timing.attribute,
+							x -> traceBuilder.decodeTraceArgs(timing.node, timing.attribute, null))
+					: traceBuilder.decodeTraceArgs(timing.node, timing.attribute, timing.params);
+			if (args == dummyTraceArg) {
+				// Intentional reference equality; failed decoding args
+				continue;
+			}
+			final NodeLocator loc = locateTraceNode(info, traceBuilder, timing.node, locators);
+			if (loc == null) {
+				continue;
+			}
+			final LocatedProp prop = new LocatedProp(loc, createTraceProperty(timing.attribute, args));
+			// The first computation is the one most like evaluating the prop on a fresh
+			// AST, later ones may have had more dependencies cached.
+			if (evaluationCosts.putIfAbsent(prop.getId(), timing.nanos) == null) {
+				++numRecorded;
+			}
+		}
+		System.out.println("Recorded costs of " + numRecorded + " prop(s) from " + timings.size()
+				+ " compute event(s) in the trace");
+	}
+
+	/**
+	 * Turns trace events into dependency graph edges and values as they arrive,
+	 * instead of letting {@link TracingBuilder} build a {@link Tracing} tree that
+	 * is walked afterwards. Only the stack of currently active computations and a
+	 * flat list of the props seen so far are kept in memory. Produces the same
+	 * graph and values as the tree-based extraction: values from CACHE_READ events
+	 * win over computed values, and computations with arguments that cannot be
+	 * decoded are transparent, meaning that their dependencies are attributed to
+	 * the nearest enclosing computation.
+	 * <p>
+	 * Like in the tree-based extraction, nodes are only located after the trace
+	 * has been stopped. Until then, props refer to the raw AST nodes. Locating a
+	 * node during evaluation could miss nodes that are attached later, and would
+	 * feed the trace events of the locator back into the trace.
+	 * <p>
+	 * Enabled by setting 'tragdor.streaming_trace' to true.
+	 */
+	private class StreamingTrace {
+
+		private class Frame {
+			final Object node;
+			final String attribute;
+			final List<PropertyArg> args;
+			final boolean transparent;
+			int[] dependencies = new int[4];
+			int numDependencies;
+
+			Frame(Object node, String attribute, List<PropertyArg> args, boolean transparent) {
+				this.node = node;
+				this.attribute = attribute;
+				this.args = args;
+				this.transparent = transparent;
+			}
+
+			void addDependency(int rawIdx) {
+				if (numDependencies == dependencies.length) {
+					dependencies = Arrays.copyOf(dependencies, numDependencies * 2);
+				}
+				dependencies[numDependencies++] = rawIdx;
+			}
+		}
+
+		/**
+		 * A prop seen in the trace, before its node has been located.
+		 */
+		private class RawProp {
+			final Object node;
+			final String attribute;
+			// Decoded args for computations, null for cache reads
+			final List<PropertyArg> args;
+			// Raw params for cache reads, decoded once the trace is stopped
+			final Object params;
+			// Encoded value for computations, raw value for cache reads
+			final Object value;
+
+			RawProp(Object node, String attribute, List<PropertyArg> args, Object params, Object value) {
+				this.node = node;
+				this.attribute = attribute;
+				this.args = args;
+				this.params = params;
+				this.value = value;
+			}
+
+			boolean isCacheRead() {
+				return args == null;
+			}
+		}
+
+		private final AstInfo info;
+		private final TracingBuilder traceBuilder;
+		private final DependencyGraph.Builder graph;
+		private final boolean[] acceptNotifications;
+		private final List<Frame> stack = new ArrayList<>();
+		private final List<RawProp> rawProps = new ArrayList<>();
+		private long[] rawEdges = new long[1024];
+		private int numRawEdges;
+		private long numComputeEvents;
+		private int maxStackDepth;
+
+		StreamingTrace(AstInfo info, TracingBuilder traceBuilder, DependencyGraph.Builder graph,
+				boolean[] acceptNotifications) {
+			this.info = info;
+			this.traceBuilder = traceBuilder;
+			this.graph = graph;
+			this.acceptNotifications = acceptNotifications;
+		}
+
+		private Frame peek() {
+			return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+		}
+
+		/**
+		 * Decoding args and encoding values may call into the tool. Trace events
+		 * caused by that must not end up in the trace.
+		 */
+		private <T> T withoutNotifications(Supplier<T> fn) {
+			final boolean prev = acceptNotifications[0];
+			acceptNotifications[0] = false;
+			try {
+				return fn.get();
+			} finally {
+				acceptNotifications[0] = prev;
+			}
+		}
+
+		private int addRawProp(RawProp prop) {
+			rawProps.add(prop);
+			return rawProps.size() - 1;
+		}
+
+		private void addRawEdge(int from, int to) {
+			if (numRawEdges == rawEdges.length) {
+				rawEdges = Arrays.copyOf(rawEdges, rawEdges.length * 2);
+			}
+			rawEdges[numRawEdges++] = ((long) from << 32) | (to & 0xFFFF_FFFFL);
+		}
+
+		void onComputeBegin(Object[] args, boolean excluded) {
+			final String attr = String.valueOf(args[2]);
+			final List<PropertyArg> decodedArgs = excluded ? dummyTraceArg
+					: withoutNotifications(() -> traceBuilder.decodeTraceArgs(args[1], attr, args[3]));
+			// Intentional reference equality; failed decoding args
+			stack.add(new Frame(args[1], attr, decodedArgs, decodedArgs == dummyTraceArg));
+			maxStackDepth = Math.max(maxStackDepth, stack.size());
+		}
+
+		void onComputeEnd(Object[] args) {
+			if (stack.isEmpty()) {
+				return;
+			}
+			final Frame frame = stack.remove(stack.size() - 1);
+			++numComputeEvents;
+			final Frame parent = peek();
+			if (frame.transparent) {
+				if (parent != null) {
+					for (int i = 0; i < frame.numDependencies; ++i) {
+						parent.addDependency(frame.dependencies[i]);
+					}
+				}
+				return;
+			}
+			// Encode now, like TracingBuilder does, the value may change later on
+			final EvaluatedValue value = collectTraceValues //
+					? new EvaluatedValue(Kind.VALUE,
+							PropEvaluation.maskResult(withoutNotifications(() -> traceBuilder.encodeValue(args[4]))))
+					: EvaluatedValue.dummy;
+			final int rawIdx = addRawProp(new RawProp(frame.node, frame.attribute, frame.args, null, value));
+			for (int i = 0; i < frame.numDependencies; ++i) {
+				addRawEdge(rawIdx, frame.dependencies[i]);
+			}
+			if (parent != null) {
+				parent.addDependency(rawIdx);
+			}
+		}
+
+		void onCacheRead(Object[] args) {
+			final Frame active = peek();
+			if (active == null || active.transparent) {
+				return;
+			}
+			active.addDependency(addRawProp(new RawProp(args[1], String.valueOf(args[2]), null, args[3], args[4])));
+		}
+
+		void resetStack() {
+			stack.clear();
+		}
+
+		/**
+		 * Locate the nodes and add everything to the graph and the values. Must only be
+		 * called after the trace has been stopped.
+		 */
+		void finish(IdentityHashMap<Object, NodeLocator> locators) {
+			System.out.printf("Streamed %d compute events, max depth %d, %d prop(s), %d edge(s)%n", numComputeEvents,
+					maxStackDepth, rawProps.size(), numRawEdges);
+			final Map<String, List<PropertyArg>> paramlessArgs = new HashMap<>();
+			final int[] rawToNode = new int[rawProps.size()];
+			final Map<LocatedProp, Object> cacheReadValues = new HashMap<>();
+			for (int i = 0; i < rawToNode.length; ++i) {
+				final RawProp raw = rawProps.get(i);
+				final LocatedProp prop = resolve(raw, locators, paramlessArgs);
+				if (prop == null) {
+					rawToNode[i] = -1;
+					continue;
+				}
+				rawToNode[i] = graph.getOrCreateNode(prop);
+				if (raw.isCacheRead()) {
+					cacheReadValues.put(prop, raw.value);
+				} else {
+					insertPropvalue(prop, (EvaluatedValue) raw.value);
+				}
+			}
+			for (int i = 0; i < numRawEdges; ++i) {
+				final int from = rawToNode[(int) (rawEdges[i] >>> 32)];
+				final int to = rawToNode[(int) rawEdges[i]];
+				if (from != -1 && to != -1 && from != to) {
+					graph.addEdge(from, to);
+				}
+			}
+			for (Entry<LocatedProp, Object> ent : cacheReadValues.entrySet()) {
+				insertPropvalue(ent.getKey(), new EvaluatedValue(Kind.VALUE,
+						PropEvaluation.maskResult(traceBuilder.encodeValue(ent.getValue()))));
+			}
+		}
+
+		private LocatedProp resolve(RawProp raw, IdentityHashMap<Object, NodeLocator> locators,
+				Map<String, List<PropertyArg>> paramlessArgs) {
+			final List<PropertyArg> args;
+			if (!raw.isCacheRead()) {
+				args = raw.args;
+			} else if (raw.params == null) {
+				args = paramlessArgs.computeIfAbsent(raw.attribute,
+						x -> traceBuilder.decodeTraceArgs(raw.node, raw.attribute, null));
+			} else {
+				args = traceBuilder.decodeTraceArgs(raw.node, raw.attribute, raw.params);
+			}
+			if (args == dummyTraceArg) {
+				// Intentional reference equality; failed decoding args
+				return null;
+			}
+			final NodeLocator loc = locateTraceNode(info, traceBuilder, raw.node, locators);
+			if (loc == null) {
+				return null;
+			}
+			return new LocatedProp(loc, createTraceProperty(raw.attribute, args));
+		}
+	}
+
 	private static Property stripParenFromName(Property src) {
 		final int parenIdx = src.name.indexOf("(");
 		if (parenIdx != -1) {
@@ -293,29 +878,120 @@ public class PropGathering {
 		return src;
 	}
 
-	private void extractTrace(AstInfo[] info, Tracing trace, Map<LocatedProp, EvaluatedValue> dst) {
+	/**
+	 * Resolved CACHE_READ events of a single pending trace.
+	 */
+	private static class CacheReadEdges {
+		final LocatedProp source;
+		final List<LocatedProp> targets = new ArrayList<>();
+		final List<Object> values = new ArrayList<>();
+
+		CacheReadEdges(LocatedProp source) {
+			this.source = source;
+		}
+
+		void prepareHashes() {
+			source.hashCode();
+			for (LocatedProp target : targets) {
+				target.hashCode();
+			}
+		}
+	}
+
+	private static class ExtractedValues {
+		final List<LocatedProp> props = new ArrayList<>();
+		final List<EvaluatedValue> values = new ArrayList<>();
+	}
+
+	private void extractTrace(Tracing root, ExtractedValues dst) {
+		// Explicit stack instead of recursion, attribute chains can be very deep.
 		// In case an attribute depends on itself, then we want to handle the
-		// "top-level" invocation last, in order to record the last result value in dst
-		trace.dependencies.forEach(tr -> extractTrace(info, tr, dst));
-
-		// Identity comparison on purpose
-		if (trace.prop.args != dummyTraceArg) {
-			final Property strippedName = stripParenFromName(trace.prop);
-			// Ignore synthetic multi-event created by TracingBuilder
-			if (!"MultipleTraceEvents".equals(strippedName.name)) {
-				final LocatedProp lprop = new LocatedProp(trace.node, strippedName);
-//					if (!dst.containsKey(lprop)) {
-				if (collectTraceValues) {
-					insertPropvalue(lprop, new EvaluatedValue(Kind.VALUE, PropEvaluation.maskResult(trace.result)));
-				} else {
-					insertPropvalue(lprop, EvaluatedValue.dummy);
+		// "top-level" invocation last, in order to record the last result value in dst.
+		// Therefore dependencies are handled before the tracing itself.
+		final List<Tracing> stack = new ArrayList<>();
+		int[] nextDeps = new int[16];
+		stack.add(root);
+		nextDeps[0] = 0;
+
+		while (!stack.isEmpty()) {
+			final int top = stack.size() - 1;
+			final Tracing trace = stack.get(top);
+			if (nextDeps[top] < trace.dependencies.size()) {
+				final Tracing dep = trace.dependencies.get(nextDeps[top]++);
+				if (stack.size() == nextDeps.length) {
+					nextDeps = Arrays.copyOf(nextDeps, nextDeps.length * 2);
 				}
+				nextDeps[stack.size()] = 0;
+				stack.add(dep);
+				continue;
 			}
+			stack.remove(top);
+
+			// Identity comparison on purpose
+			if (trace.prop.args != dummyTraceArg) {
+				final Property strippedName = stripParenFromName(trace.prop);
+				// Ignore synthetic multi-event created by TracingBuilder
+				if (!"MultipleTraceEvents".equals(strippedName.name)) {
+					dst.props.add(new LocatedProp(trace.node, strippedName));
+					if (collectTraceValues) {
+						dst.values.add(new EvaluatedValue(Kind.VALUE, PropEvaluation.maskResult(trace.result)));
+					} else {
+						dst.values.add(EvaluatedValue.dummy);
+					}
+				}
+			}
+		}
+	}
+
+	private EvaluatedValue evaluateTimed(AstInfo info, LocatedProp lprop, Runnable reRegisterTraceReceiver,
+			TracingBuilder tb, boolean[] anyEntryPointThrewAnExceptionPtr) {
+		final long start = System.nanoTime();
+		final EvaluationWatchdog.Watch watch = EvaluationWatchdog.start(lprop);
+		EvaluatedValue ret;
+		try {
+			try {
+				ret = PropEvaluation.evaluateProp(info, lprop, reRegisterTraceReceiver);
+			} finally {
+				EvaluationWatchdog.stop(watch);
+			}
+		} catch (ThreadDeath td) {
+			if (watch == null || !watch.isTimedOut()) {
+				throw td;
+			}
+			ret = null;
+		}
+		evaluationCosts.merge(lprop.getId(), System.nanoTime() - start, Long::sum);
+		if (watch != null && watch.isTimedOut()) {
+			System.out.println("Abandoned entry prop " + lprop + " after " + watch.getElapsedMs() + "ms");
+			Tragdor.report(new SlowPropertyReport(lprop, watch.getElapsedMs(), EvaluationWatchdog.getTimeoutMs()));
+			// The AST and trace may be in any state, the reference values cannot be
+			// trusted. Treat it like an entry prop that threw an exception.
+			anyEntryPointThrewAnExceptionPtr[0] = true;
+			Tragdor.resetAstState(info.ast.underlyingAstNode);
+			NodeIndex.invalidate(info);
+			reRegisterTraceReceiver.run();
+			tb.resetActiveStack();
+			return new EvaluatedValue(Kind.EXCEPTION,
+					RpcBodyLine.fromStderr("Evaluation did not finish within " + EvaluationWatchdog.getTimeoutMs() + "ms"));
 		}
+		return ret;
+	}
+
+	/**
+	 * @return the time spent evaluating each prop in the reference run, keyed by
+	 *         {@link LocatedPropTable} id. Includes the time spent computing
+	 *         dependencies that weren't cached yet. Entry props are measured
+	 *         directly, other props by their first computation in the trace. The
+	 *         latter are only recorded if cost aware sampling is enabled.
+	 */
+	public Map<Integer, Long> getEvaluationCosts() {
+		return evaluationCosts;
 	}
 
 	private void insertPropvalue(LocatedProp key, EvaluatedValue value) {
-		dst.put(key, value);
+		// Many props have identical values, let them share one instance
+		final EvaluatedValue prev = canonicalValues.putIfAbsent(value, value);
+		dst.put(key, prev != null ? prev : value);
 	}
 
 	public int countSearch(AstInfo info, String predicate, int limitNodes) {
@@ -352,16 +1028,19 @@ public class PropGathering {
 					// Get all props
 					for (Property prop : AttrsInNode.getTyped(info, node, null, false) //
 							.stream().filter(x -> x.args.isEmpty()) //
+							.filter(x -> loc == null || DifferentialMode.isAffected(loc.result.type, x.name)) //
 							.collect(Collectors.toList())) {
 						final LocatedProp lprop = new LocatedProp(loc, prop);
-						insertPropvalue(lprop, PropEvaluation.evaluateProp(info, lprop, reRegisterTraceReceiver));
+						insertPropvalue(lprop, evaluateTimed(info, lprop, reRegisterTraceReceiver, tb,
+								anyEntryPointThrewAnExceptionPtr));
 					}
-				} else {
+				} else if (loc == null || DifferentialMode.isAffected(loc.result.type, propName)) {
 					// Get a specific prop
 					final LocatedProp lprop = new LocatedProp(loc, new Property(propName));
 //					System.out.println("Setting verbose=true, in preparation of evaluating " + lprop.toString());
 //					TracingBuilder.beVerboseNextAccept = true;
-					final EvaluatedValue res = PropEvaluation.evaluateProp(info, lprop, reRegisterTraceReceiver);
+					final EvaluatedValue res = evaluateTimed(info, lprop, reRegisterTraceReceiver, tb,
+							anyEntryPointThrewAnExceptionPtr);
 //					System.out.println("Entry prop " + lprop + " result = " + res);
 					insertPropvalue(lprop, res);
 					if (res.kind == EvaluatedValue.Kind.EXCEPTION) {
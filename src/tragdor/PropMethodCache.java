@@ -0,0 +1,153 @@
+package tragdor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import codeprober.AstInfo;
+import codeprober.protocol.data.PropertyArg;
+import codeprober.requesthandler.EvaluatePropertyHandler;
+
+/**
+ * Cache of MethodHandles for invoking properties, keyed by (class, method name,
+ * argument types). Looking up methods with reflection is slow compared to
+ * invoking them, and the same few methods are invoked on many different nodes.
+ * <p>
+ * The cache is attached to the classes through {@link ClassValue}, so it doesn't
+ * keep the classes of a purged tool jar alive.
+ */
+public class PropMethodCache {
+
+	private static final MethodType GENERIC_TYPE = MethodType.methodType(Object.class, Object.class,
+			Object[].class);
+
+	private static final Invoker NOT_FOUND = new Invoker(null, null);
+
+	private static final ClassValue<Map<String, Invoker>> publicMethods = new ClassValue<Map<String, Invoker>>() {
+		@Override
+		protected Map<String, Invoker> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+	private static final ClassValue<Map<String, Invoker>> declaredMethods = new ClassValue<Map<String, Invoker>>() {
+		@Override
+		protected Map<String, Invoker> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	public static class Invoker {
+		public final Method method;
+		private final MethodHandle handle;
+
+		private Invoker(Method method, MethodHandle handle) {
+			this.method = method;
+			this.handle = handle;
+		}
+
+		/**
+		 * Invoke the method. Like {@link Method#invoke(Object, Object...)}, anything
+		 * thrown by the method is wrapped in an {@link InvocationTargetException}.
+		 */
+		public Object invoke(Object target, Object... args) throws InvocationTargetException {
+			try {
+				return (Object) handle.invokeExact(target, args);
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link Class#getMethod(String, Class...)}, but cached.
+	 */
+	public static Invoker getMethod(Class<?> clazz, String name, Class<?>... argTypes) throws NoSuchMethodException {
+		return lookup(publicMethods.get(clazz), clazz, false, name, argTypes);
+	}
+
+	/**
+	 * Same as {@link Class#getDeclaredMethod(String, Class...)}, but cached. The
+	 * method is made accessible.
+	 */
+	public static Invoker getDeclaredMethod(Class<?> clazz, String name, Class<?>... argTypes)
+			throws NoSuchMethodException {
+		return lookup(declaredMethods.get(clazz), clazz, true, name, argTypes);
+	}
+
+	private static Invoker lookup(Map<String, Invoker> cache, Class<?> clazz, boolean declared, String name,
+			Class<?>[] argTypes) throws NoSuchMethodException {
+		final String key = getSignature(name, argTypes);
+		Invoker ret = cache.get(key);
+		if (ret == null) {
+			try {
+				final Method mth = declared ? clazz.getDeclaredMethod(name, argTypes) : clazz.getMethod(name, argTypes);
+				ret = new Invoker(mth, unreflect(mth));
+			} catch (NoSuchMethodException e) {
+				ret = NOT_FOUND;
+			}
+			cache.put(key, ret);
+		}
+		if (ret == NOT_FOUND) {
+			throw new NoSuchMethodException(clazz.getName() + "." + key);
+		}
+		return ret;
+	}
+
+	private static MethodHandle unreflect(Method mth) {
+		MethodHandle handle;
+		try {
+			handle = MethodHandles.lookup().unreflect(mth);
+		} catch (IllegalAccessException e) {
+			// For example a public method in a non-public class
+			mth.setAccessible(true);
+			try {
+				handle = MethodHandles.lookup().unreflect(mth);
+			} catch (IllegalAccessException e2) {
+				throw new RuntimeException(e2);
+			}
+		}
+		return handle.asSpreader(Object[].class, mth.getParameterCount()).asType(GENERIC_TYPE);
+	}
+
+	private static String getSignature(String name, Class<?>[] argTypes) {
+		if (argTypes.length == 0) {
+			return name;
+		}
+		final StringBuilder sb = new StringBuilder(name).append('(');
+		for (int i = 0; i < argTypes.length; ++i) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(argTypes[i].getName());
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * Get the argument types for a property. Strings, integers and booleans always
+	 * have the same type, only other kinds of arguments need to be resolved through
+	 * the AST.
+	 */
+	public static Class<?>[] getArgTypes(AstInfo info, List<PropertyArg> args) {
+		final int numArgs = args == null ? 0 : args.size();
+		final Class<?>[] argTypes = new Class<?>[numArgs];
+		for (int i = 0; i < numArgs; ++i) {
+			final PropertyArg arg = args.get(i);
+			if (arg.isString()) {
+				argTypes[i] = String.class;
+			} else if (arg.isInteger()) {
+				argTypes[i] = Integer.TYPE;
+			} else if (arg.isBool()) {
+				argTypes[i] = Boolean.TYPE;
+			} else {
+				argTypes[i] = EvaluatePropertyHandler.getValueType(info, arg);
+			}
+		}
+		return argTypes;
+	}
+}
@@ -4,7 +4,9 @@ import static tragdor.util.Benchmark.tickTock;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
@@ -16,6 +18,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -31,10 +35,17 @@ import codeprober.metaprogramming.Reflect;
 import codeprober.protocol.create.EncodeResponseValue;
 import codeprober.protocol.data.RpcBodyLine;
 import codeprober.util.ASTProvider;
+import tragdor.concurrent.ReportMerger;
+import tragdor.concurrent.SharedReferenceValues;
+import tragdor.concurrent.ThreadWorkers;
+import tragdor.concurrent.WorkQueueCoordinator;
 import tragdor.config.UserConfig;
 import tragdor.report.Report;
 import tragdor.steps.Explain;
 import tragdor.steps.Generate;
+import tragdor.steps.step1.GraphAnalytics;
+import tragdor.steps.step1.ReferenceGraphSidecar;
+import tragdor.steps.step2.SearchStats;
 import tragdor.util.Benchmark;
 import tragdor.util.WebServer;
 
@@ -46,14 +57,34 @@ public class Tragdor {
 
 	private static final long startNanos = System.nanoTime();
 
+	// Set when running as a worker thread, see ThreadWorkers
+	private static Integer workerIdOverride;
+	private static Integer numWorkersOverride;
+	private static Consumer<String> reportSink;
+	private static List<Report> reportRecorder;
+
+	// Set when running as a worker process, see ReportMerger
+	private static PrintStream workerReportLog;
+
 	public static boolean shouldExcludeReport(String nodeType, String attrType) {
 		return config != null && config.shouldExcludeReport(nodeType, attrType);
 	}
 
+	/**
+	 * Collect all reports passed to {@link #report(Report)} into 'dst', in addition
+	 * to reporting them as usual. Pass null to stop collecting.
+	 */
+	public static void setReportRecorder(List<Report> dst) {
+		reportRecorder = dst;
+	}
+
 	public static boolean report(Report rep) {
 		if (config == null) {
 			return false;
 		}
+		if (reportRecorder != null) {
+			reportRecorder.add(rep);
+		}
 		final String relatedNode = rep.getRelatedNodeType();
 		final String relatedAttr = rep.getRelatedAttrName();
 		if ((relatedNode != null || relatedAttr != null) && shouldExcludeReport(relatedNode, relatedAttr)) {
@@ -64,6 +95,12 @@ public class Tragdor {
 				rep.setToolConfigIndex(config.getActiveToolConfigIdx());
 			}
 			rep.setDiscoveryTimeMs((System.nanoTime() - startNanos) / 1_000_000L);
+			if (reportSink != null) {
+				reportSink.accept(rep.toJSON().toString());
+			}
+			if (workerReportLog != null) {
+				workerReportLog.println(rep.toJSON().toString());
+			}
 			if (!quiet) {
 				System.out.println("!! " + rep.getType() + ": " + rep.getMessage());
 				final JSONObject dets = rep.getDetails();
@@ -146,6 +183,70 @@ public class Tragdor {
 		System.out.println("                                   #     'user_order'");
 		System.out.println(
 				"  -Dtragdor.cfg.repeat_passess=X   # Take X passes over all input files, overrides value in config.");
+		System.out.println(
+				"  -Dtragdor.cfg.ast_provisioning=X # How fresh ASTs are created, overrides value in config.");
+		System.out.println("                                   #     'reparse' (default) runs the parser every time");
+		System.out.println("                                   #     'copy' parses once and deep copies the AST");
+		System.out.println(
+				"  -Dtragdor.cfg.ast_pool_size=X    # Keep up to X fresh ASTs ready, produced by a background thread.");
+		System.out.println(
+				"                                   # Also limited by 'ast_pool_max_heap_fraction' in config (default 0.5)");
+		System.out.println(
+				"                                   # Not used with 'ast_provisioning=copy', copies are cheap enough");
+		System.out.println(
+				"  -Dtragdor.cfg.node_grouped_order=true # Let random_order evaluate all props of a node after each other");
+		System.out.println(
+				"  -Dtragdor.cfg.cross_node_shuffle_ratio=X # Fraction of node grouped cycles that shuffle across nodes anyway (default 0.1)");
+		System.out.println(
+				"  -Dtragdor.cfg.cost_aware_sampling=true # Let random_order and rec evaluate expensive props less often");
+		System.out.println(
+				"  -Dtragdor.cfg.min_sampling_rate=X # Lowest fraction of cycles any prop is evaluated in with cost_aware_sampling (default 0.1)");
+		System.out.println(
+				"  -Dtragdor.cfg.reported_attr_sampling_rate=X # Fraction of evaluations kept for already reported attributes (default 1.0)");
+		System.out.println(
+				"  -Dtragdor.cfg.static_reset=X     # How static state is reset between runs (user_order), overrides value in config.");
+		System.out.println("                                   #     'snapshot' (default) restores static fields recorded after a parse");
+		System.out.println("                                   #     'purge' reloads the tool jar every time");
+		System.out.println(
+				"  -Dtragdor.ast_copy.verify=true   # Check that a copied AST is equivalent to a reparsed AST");
+		System.out.println(
+				"  -Dtragdor.ast_copy.benchmark=X   # Compare copy and reparse latency over X rounds");
+		System.out.println(
+				"  -Dtragdor.write_reference_graph=false # Don't save reference values next to reports.json for use by explain");
+		System.out.println(
+				"  -Dtragdor.reference_cache_dir=X  # Cache reference values in directory X, reused by later runs of the same");
+		System.out.println(
+				"                                   # tool jar, args and entry points. Not used by 'rec' and 'user_order'.");
+		System.out.println(
+				"  -Dtragdor.mmap_dependency_graph=true # Keep the dependency graph in a memory-mapped file instead of on the heap");
+		System.out.println(
+				"  -Dtragdor.node_index=false       # Don't remember resolved node locators per AST");
+		System.out.println(
+				"  -Dtragdor.streaming_trace=true   # Build the dependency graph from trace events as they arrive, without a trace tree");
+		System.out.println(
+				"  -Dtragdor.streaming_trace=verify # Trace with both streaming and a trace tree, and print any differences");
+		System.out.println(
+				"  -Dtragdor.parallel_trace_extraction=false # Extract values and dependencies from one trace root at a time");
+		System.out.println(
+				"  -Dtragdor.differential_db=DIR    # Only trace and search attributes whose bytecode changed since the last run,");
+		System.out.println(
+				"                                   # or that depend on one that did. Fingerprints are kept in DIR.");
+		System.out.println(
+				"  -Dtragdor.eval_timeout_ms=X      # Abandon evaluations that take more than X ms (default 60000, 0=never)");
+		System.out.println(
+				"                                   # Running evaluations can only be stopped on JVMs with Thread.stop (before JDK 20)");
+		System.out.println(
+				"  -Dtragdor.profile_attributes=true # Measure time and allocations per attribute (reference run: from the trace), saved to attribute_profile.json");
+		System.out.println(
+				"  -Dtragdor.profile_attributes.limit=X # Number of attributes to list in the printed profile (default 25)");
+		System.out.println(
+				"  -Dconcurrent=X                   # Split the search over X concurrent workers");
+		System.out.println(
+				"  -Dtragdor.concurrent_mode=X      # How concurrent workers run. 'processes' (default) or 'threads'.");
+		System.out.println(
+				"                                   # Threads share reference values and run in isolated classloaders");
+		System.out.println(
+				"  -Dtragdor.merge_interval_sec=X   # How often reports from concurrent workers are merged into reports.json");
 		System.out.println(
 				"  -Dignore_circular_attribute_dependencies=false  # Include circular values during dependency graph construction (excluded by default)");
 
@@ -154,6 +255,8 @@ public class Tragdor {
 		System.out.println("    -> Generate explanations for the symptoms in reports.json");
 		System.out.println("Optional system properties:");
 		System.out.println("  -Dtragdor.test.dst=X             # Set output directory for generating JUnit tests. Defaults to null");
+		System.out.println("  -Dtragdor.reference_cache_dir=X  # Cache reference values in directory X, same as for generate");
+		System.out.println("  -Dtragdor.explain.locator_cache=false # Don't cache node locators while minimizing");
 		System.out.println("Optional arguments:");
 		System.out.println(
 				"   attr1, attr2, ...               # Attribute instance names to filter the explanation process,");
@@ -210,14 +313,11 @@ public class Tragdor {
 			config = UserConfig.parse(getConfigFile());
 		}
 		System.out.println("Starting " + Tragdor.class.getSimpleName() + " w/ args: " + Arrays.toString(args));
-		CreateLocator.setMergeMethod(LocatorMergeMethod.SKIP);
-		EncodeResponseValue.shouldSortSetAndMapContents = true;
-		EncodeResponseValue.defaultToStringOverride = (value, dst) -> {
-			dst.add(RpcBodyLine.fromPlain(value.getClass().getName() + "@x"));
-		};
-		EncodeResponseValue.failedCreatingLocatorOverride = (node, out) -> {
-			out.add(RpcBodyLine.fromStderr("Failed to determine " + node + "'s position in the AST"));
-		};
+		configureCodeProber();
+
+		if ("generate".equals(args[0]) && getWorkerId() == null) {
+			ReferenceGraphSidecar.deleteExisting(config);
+		}
 
 		final int concurrencySpec = Integer.parseInt(System.getProperty("concurrent", "-1"));
 		if (concurrencySpec > 1) {
@@ -225,6 +325,25 @@ public class Tragdor {
 				System.err.println("Can only use 'concurrent' with 'generate'");
 				System.exit(1);
 			}
+			// Hand out tool configs on demand. With a single tool config, all workers
+			// search in the same one instead.
+			final WorkQueueCoordinator workQueue = config.getToolConfigs().size() > 1
+					? new WorkQueueCoordinator(config.getToolConfigs().size(),
+							Generate.getTotalSearchBudgetMs(config) * concurrencySpec)
+					: null;
+			if (workQueue != null) {
+				// Picked up by worker threads directly, and copied to worker processes below
+				System.setProperty(WorkQueueCoordinator.PORT_PROPERTY, String.valueOf(workQueue.getPort()));
+			}
+			if ("threads".equals(System.getProperty("tragdor.concurrent_mode", "processes"))) {
+				System.out.println("Going to start " + concurrencySpec + " concurrent worker threads");
+				ThreadWorkers.run(args, concurrencySpec);
+				if (workQueue != null) {
+					workQueue.close();
+				}
+				Benchmark.report(args);
+				return;
+			}
 			System.out.println("Going to spawn " + concurrencySpec + " concurrent instances");
 
 			List<String> copyProps = new ArrayList<>();
@@ -244,6 +363,15 @@ public class Tragdor {
 				}
 			}
 
+			final List<File> workerReportLogs = new ArrayList<>();
+			for (int workerId = 0; workerId < concurrencySpec; ++workerId) {
+				final File log = ReportMerger.getWorkerLogFile(workerId);
+				// Don't merge stale reports from a previous run
+				log.delete();
+				workerReportLogs.add(log);
+			}
+			final ReportMerger reportMerger = new ReportMerger("reports.json", workerReportLogs);
+
 			List<Process> workerProcesses = new ArrayList<>();
 			for (int workerId = 0; workerId < concurrencySpec; ++workerId) {
 				final List<String> cmd = new ArrayList<>();
@@ -268,33 +396,27 @@ public class Tragdor {
 
 			}
 
-			final Benchmark.TickTockErrv reportMerger = () -> {
-				final JSONArray mergedReportObjects = new JSONArray();
-				for (int i = 0; i < concurrencySpec; ++i) {
-					final File reportFile = new File(String.format("reports_%d.json", i));
-					if (reportFile.exists()) {
-						final byte[] bytes = Files.readAllBytes(reportFile.toPath());
-						final JSONArray arr = new JSONObject(new String(bytes, 0, bytes.length, StandardCharsets.UTF_8))
-								.getJSONArray("reports");
-						for (int j = 0; j < arr.length(); ++j) {
-							mergedReportObjects.put(arr.getJSONObject(j));
-						}
-					}
-				}
-				saveReports("reports.json", mergedReportObjects);
-			};
+			reportMerger.start();
 
 			System.out.println("Waiting for worker processes..");
 			for (Process p : workerProcesses) {
 				p.waitFor();
 			}
+			if (workQueue != null) {
+				workQueue.close();
+			}
 			System.out.println("Merging reports..");
-			reportMerger.run();
+			reportMerger.finish();
 			return;
 		}
 
 		config.setActiveConfigIndex(0);
 
+		final Integer workerId = getWorkerId();
+		if (workerId != null) {
+			workerReportLog = new PrintStream(new FileOutputStream(ReportMerger.getWorkerLogFile(workerId), true), true,
+					"UTF-8");
+		}
 		doMain(args);
 
 		if (shouldAutoSave) {
@@ -303,6 +425,36 @@ public class Tragdor {
 		Benchmark.report(args);
 	}
 
+	private static void configureCodeProber() {
+		CreateLocator.setMergeMethod(LocatorMergeMethod.SKIP);
+		EncodeResponseValue.shouldSortSetAndMapContents = true;
+		EncodeResponseValue.defaultToStringOverride = (value, dst) -> {
+			dst.add(RpcBodyLine.fromPlain(value.getClass().getName() + "@x"));
+		};
+		EncodeResponseValue.failedCreatingLocatorOverride = (node, out) -> {
+			out.add(RpcBodyLine.fromStderr("Failed to determine " + node + "'s position in the AST"));
+		};
+	}
+
+	/**
+	 * Entry point for worker threads, invoked reflectively by {@link ThreadWorkers}
+	 * in a separate classloader. Only JDK types may appear in the signature.
+	 */
+	public static void runThreadWorker(String[] args, int workerId, int numWorkers, Consumer<String> sink,
+			ConcurrentMap<String, CompletableFuture<byte[]>> sharedReferenceValues) throws Exception {
+		workerIdOverride = workerId;
+		numWorkersOverride = numWorkers;
+		reportSink = sink;
+		SharedReferenceValues.install(sharedReferenceValues);
+
+		config = UserConfig.parse(getConfigFile());
+		System.out.println("Starting worker thread " + workerId + " w/ args: " + Arrays.toString(args));
+		configureCodeProber();
+		config.setActiveConfigIndex(0);
+		doMain(args);
+		Benchmark.report(args);
+	}
+
 	private static void doMain(String[] args) throws Exception {
 		final Set<String> alreadyWarnedFaultyNodes = new HashSet<>();
 		EncodeResponseValue.faultyNodeLocatorInspector = node -> {
@@ -348,9 +500,8 @@ public class Tragdor {
 	private static boolean warnedMissingFlushTreeCache = false;
 
 	public static void flushTreeCache(AstInfo info) {
-		if (CreateLocator.identityLocatorCache != null) {
-			CreateLocator.identityLocatorCache.clear();
-		}
+		LocatorCache.onNtasInvalidated();
+		NodeIndex.invalidate(info);
 		tickTock("flushTreeCache", () -> {
 			try {
 				Reflect.invoke0(info.ast.underlyingAstNode, "flushTreeCache");
@@ -369,6 +520,10 @@ public class Tragdor {
 	private static int lastSavedReportsSize = -1;
 
 	public static void saveReports() throws IOException, JSONException {
+		if (reportSink != null) {
+			// Reports have already been sent to the parent, it is responsible for saving
+			return;
+		}
 		final int newReportsSize = reports.size();
 		if (newReportsSize == lastSavedReportsSize) {
 			// No need to save, nothing has changed since last time
@@ -385,11 +540,17 @@ public class Tragdor {
 	}
 
 	public static Integer getWorkerId() {
+		if (workerIdOverride != null) {
+			return workerIdOverride;
+		}
 		final int workerId = Integer.parseInt(System.getProperty("workerId", "-1"));
 		return workerId >= 0 ? workerId : null;
 	}
 
 	public static Integer getTotalNumWorkers() {
+		if (numWorkersOverride != null) {
+			return numWorkersOverride;
+		}
 		final int numWorkers = Integer.parseInt(System.getProperty("numWorkers", "-1"));
 		return numWorkers >= 0 ? numWorkers : null;
 	}
@@ -403,6 +564,16 @@ public class Tragdor {
 				.put("config", config.getRootConfig())//
 				.put("reports", reports) //
 				.put("uptimeMs", (System.nanoTime() - startNanos) / 1_000_000L);
+		final JSONObject referenceGraphs = ReferenceGraphSidecar.listExisting(config);
+		if (!referenceGraphs.isEmpty()) {
+			reportObj.put("referenceGraphs", referenceGraphs);
+		}
+		if (!SearchStats.isEmpty()) {
+			reportObj.put("searchStats", SearchStats.toJSON());
+		}
+		if (!GraphAnalytics.isEmpty()) {
+			reportObj.put("graphAnalytics", GraphAnalytics.getRecorded());
+		}
 		saveReportsAsIs(fileName, reportObj);
 		System.out.printf("Saved '%s' with %d report(s)%n", fileName, reports.length());
 	}
@@ -0,0 +1,168 @@
+package tragdor.concurrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import tragdor.Tragdor;
+
+/**
+ * Merges reports from concurrent workers while they are running. Worker
+ * processes append one JSON report per line to 'reports_N.jsonl', which is
+ * tailed periodically. Worker threads hand their reports over directly.
+ * <p>
+ * Reports are deduplicated the same way as {@link tragdor.report.BaseReport}
+ * does it, i.e ignoring toolIdx and discoveryTimeMs. The merged result is
+ * written periodically and on shutdown, so that long runs can be watched, and
+ * so that a crashed or killed run still leaves a usable reports.json behind.
+ */
+public class ReportMerger {
+
+	private final String dstFile;
+	private final List<File> workerLogs;
+	private final long[] workerLogOffsets;
+	private final Map<String, JSONObject> mergedReports = new LinkedHashMap<>();
+	private int lastWrittenSize = -1;
+
+	private Thread poller;
+	private Thread shutdownHook;
+	private final Object pollerSleep = new Object();
+	private volatile boolean stopped = false;
+
+	public ReportMerger(String dstFile, List<File> workerLogs) {
+		this.dstFile = dstFile;
+		this.workerLogs = workerLogs;
+		this.workerLogOffsets = new long[workerLogs.size()];
+	}
+
+	public static File getWorkerLogFile(int workerId) {
+		return new File(String.format("reports_%d.jsonl", workerId));
+	}
+
+	public static long getMergeIntervalMs() {
+		return (long) (1000 * Double.parseDouble(System.getProperty("tragdor.merge_interval_sec", "10")));
+	}
+
+	public synchronized boolean addReportJson(String json) {
+		final JSONObject report = new JSONObject(json);
+		final JSONObject identity = new JSONObject(json);
+		identity.remove("toolIdx");
+		identity.remove("discoveryTimeMs");
+		return mergedReports.putIfAbsent(identity.toString(), report) == null;
+	}
+
+	public synchronized void pollWorkerLogs() {
+		for (int i = 0; i < workerLogs.size(); ++i) {
+			final File log = workerLogs.get(i);
+			if (!log.exists() || log.length() <= workerLogOffsets[i]) {
+				continue;
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(log, "r")) {
+				raf.seek(workerLogOffsets[i]);
+				final byte[] tail = new byte[(int) (raf.length() - workerLogOffsets[i])];
+				raf.readFully(tail);
+
+				// The worker may be in the middle of writing a line, only consume full lines
+				int lineStart = 0;
+				for (int j = 0; j < tail.length; ++j) {
+					if (tail[j] != '\n') {
+						continue;
+					}
+					final String line = new String(tail, lineStart, j - lineStart, StandardCharsets.UTF_8).trim();
+					lineStart = j + 1;
+					if (line.isEmpty()) {
+						continue;
+					}
+					try {
+						addReportJson(line);
+					} catch (JSONException e) {
+						System.err.println("Ignoring malformed report line in " + log + ": " + line);
+					}
+				}
+				workerLogOffsets[i] += lineStart;
+			} catch (IOException e) {
+				System.err.println("Failed reading " + log);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public synchronized void writeIfChanged() {
+		if (mergedReports.size() == lastWrittenSize) {
+			return;
+		}
+		try {
+			Tragdor.saveReports(dstFile, new JSONArray(mergedReports.values()));
+			lastWrittenSize = mergedReports.size();
+		} catch (IOException | JSONException e) {
+			System.err.println("Failed writing merged reports");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Start merging in the background. Also registers a shutdown hook, so that the
+	 * latest results get written if the parent is killed.
+	 */
+	public void start() {
+		final long intervalMs = getMergeIntervalMs();
+		poller = new Thread(() -> {
+			while (!stopped) {
+				try {
+					synchronized (pollerSleep) {
+						pollerSleep.wait(intervalMs);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (stopped) {
+					return;
+				}
+				pollWorkerLogs();
+				writeIfChanged();
+			}
+		}, "tragdor-report-merger");
+		poller.setDaemon(true);
+		poller.start();
+
+		shutdownHook = new Thread(() -> {
+			pollWorkerLogs();
+			writeIfChanged();
+		}, "tragdor-report-merger-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Stop background merging and write the final result.
+	 */
+	public void finish() throws InterruptedException {
+		stopped = true;
+		if (poller != null) {
+			// Don't interrupt, that could abort a write in progress
+			synchronized (pollerSleep) {
+				pollerSleep.notifyAll();
+			}
+			poller.join();
+		}
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// Already shutting down, the hook will do the final write
+			}
+		}
+		synchronized (this) {
+			pollWorkerLogs();
+			lastWrittenSize = -1; // Always write at the end, even if empty
+			writeIfChanged();
+		}
+	}
+}
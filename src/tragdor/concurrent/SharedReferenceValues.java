@@ -0,0 +1,56 @@
+package tragdor.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+
+import tragdor.config.UserConfig;
+import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+import tragdor.util.Benchmark;
+import tragdor.util.Benchmark.TickTockErr;
+
+/**
+ * Reference values shared between all worker threads in the same JVM. The
+ * first worker to need the values for a tool config computes them, the others
+ * wait for and decode its result. Values are stored in encoded form, since each
+ * worker has its own copy of the {@link ReferenceValues} class.
+ */
+public class SharedReferenceValues {
+
+	private static ConcurrentMap<String, CompletableFuture<byte[]>> store;
+
+	public static void install(ConcurrentMap<String, CompletableFuture<byte[]>> sharedStore) {
+		store = sharedStore;
+	}
+
+	public static boolean isInstalled() {
+		return store != null;
+	}
+
+	public static ReferenceValues getOrCompute(UserConfig config, String key, TickTockErr<ReferenceValues> compute)
+			throws Exception {
+		if (store == null) {
+			return compute.get();
+		}
+		final CompletableFuture<byte[]> mine = new CompletableFuture<>();
+		final CompletableFuture<byte[]> existing = store.putIfAbsent(key, mine);
+		if (existing == null) {
+			final ReferenceValues ret;
+			try {
+				ret = compute.get();
+			} catch (Exception | Error e) {
+				mine.completeExceptionally(e);
+				throw e;
+			}
+			mine.complete(Benchmark.tickTockErr("encodeSharedReferenceValues", ret::toBytes));
+			return ret;
+		}
+		final byte[] encoded;
+		try {
+			encoded = Benchmark.tickTockErr("awaitSharedReferenceValues", existing::get);
+		} catch (Exception e) {
+			// The other worker failed, so will we
+			throw new RuntimeException("Failed establishing shared reference values for " + key, e);
+		}
+		return Benchmark.tickTockErr("decodeSharedReferenceValues", () -> ReferenceValues.fromBytes(config, encoded));
+	}
+}
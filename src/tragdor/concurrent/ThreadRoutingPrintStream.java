@@ -0,0 +1,57 @@
+package tragdor.concurrent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A PrintStream that forwards to a per-thread target. Used to give each worker
+ * thread its own stdout/stderr file, the same way worker processes get their
+ * output redirected. Threads started by a worker (for example an AstPool
+ * producer) inherit the target of the worker.
+ */
+public class ThreadRoutingPrintStream extends PrintStream {
+
+	private final Router router;
+
+	public ThreadRoutingPrintStream(OutputStream fallback) {
+		this(new Router(fallback));
+	}
+
+	private ThreadRoutingPrintStream(Router router) {
+		super(router, true);
+		this.router = router;
+	}
+
+	public void setTargetForCurrentThread(OutputStream dst) {
+		router.target.set(dst);
+	}
+
+	private static class Router extends OutputStream {
+		private final InheritableThreadLocal<OutputStream> target;
+
+		public Router(OutputStream fallback) {
+			this.target = new InheritableThreadLocal<OutputStream>() {
+				@Override
+				protected OutputStream initialValue() {
+					return fallback;
+				}
+			};
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target.get().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target.get().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target.get().flush();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package tragdor.concurrent;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import org.json.JSONObject;
+
+import codeprober.AstInfo;
+import tragdor.Tragdor;
+
+/**
+ * Runs 'generate' in N worker threads within the current JVM, as an
+ * alternative to spawning N worker processes. Each worker runs in its own
+ * {@link WorkerClassLoader}, so static state in Tragdor, CodeProber and the
+ * tool stays isolated between workers. The workers share one reference value
+ * store and one report sink, a {@link ReportMerger}.
+ */
+public class ThreadWorkers {
+
+	public static void run(String[] args, int numWorkers) throws Exception {
+		final URL[] classPath = getWorkerClassPath();
+
+		final ConcurrentMap<String, CompletableFuture<byte[]>> sharedReferenceValues = new ConcurrentHashMap<>();
+		final ReportMerger merger = new ReportMerger("reports.json", Collections.emptyList());
+		final Consumer<String> reportSink = merger::addReportJson;
+		merger.start();
+
+		final PrintStream originalOut = System.out;
+		final PrintStream originalErr = System.err;
+		final ThreadRoutingPrintStream routedOut = new ThreadRoutingPrintStream(originalOut);
+		final ThreadRoutingPrintStream routedErr = new ThreadRoutingPrintStream(originalErr);
+		System.setOut(routedOut);
+		System.setErr(routedErr);
+
+		final List<Thread> workers = new ArrayList<>();
+		try {
+			for (int workerId = 0; workerId < numWorkers; ++workerId) {
+				final int id = workerId;
+				final Thread worker = new Thread(() -> {
+					try (OutputStream out = new BufferedOutputStream(
+							new FileOutputStream(new File("worker_" + id + ".out")));
+							OutputStream err = new BufferedOutputStream(
+									new FileOutputStream(new File("worker_" + id + ".err")))) {
+						routedOut.setTargetForCurrentThread(out);
+						routedErr.setTargetForCurrentThread(err);
+						try {
+							runWorker(classPath, args, id, numWorkers, reportSink, sharedReferenceValues);
+						} catch (Throwable t) {
+							System.err.println("Worker " + id + " failed");
+							t.printStackTrace();
+							originalErr.println("Worker " + id + " failed: " + t);
+						} finally {
+							System.out.flush();
+							System.err.flush();
+						}
+					} catch (IOException e) {
+						originalErr.println("Failed creating output files for worker " + id);
+						e.printStackTrace(originalErr);
+					}
+				}, "tragdor-worker-" + workerId);
+				worker.start();
+				workers.add(worker);
+			}
+
+			System.out.println("Waiting for worker threads..");
+			for (Thread t : workers) {
+				t.join();
+			}
+		} finally {
+			System.setOut(originalOut);
+			System.setErr(originalErr);
+		}
+
+		System.out.println("Merging reports..");
+		merger.finish();
+	}
+
+	private static void runWorker(URL[] classPath, String[] args, int workerId, int numWorkers,
+			Consumer<String> reportSink, ConcurrentMap<String, CompletableFuture<byte[]>> sharedReferenceValues)
+			throws Throwable {
+		try (WorkerClassLoader loader = new WorkerClassLoader(classPath, ThreadWorkers.class.getClassLoader())) {
+			final Thread self = Thread.currentThread();
+			final ClassLoader prevContextLoader = self.getContextClassLoader();
+			self.setContextClassLoader(loader);
+			try {
+				final Method entry = loader.loadClass(Tragdor.class.getName()).getMethod("runThreadWorker",
+						String[].class, Integer.TYPE, Integer.TYPE, Consumer.class, ConcurrentMap.class);
+				entry.invoke(null, args, workerId, numWorkers, reportSink, sharedReferenceValues);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				self.setContextClassLoader(prevContextLoader);
+			}
+		}
+	}
+
+	private static URL[] getWorkerClassPath() throws IOException {
+		final Set<URL> ret = new LinkedHashSet<>();
+		for (Class<?> cls : new Class<?>[] { Tragdor.class, AstInfo.class, JSONObject.class }) {
+			final CodeSource src = cls.getProtectionDomain().getCodeSource();
+			if (src == null) {
+				throw new IOException("Failed locating the jar of " + cls.getName());
+			}
+			try {
+				ret.add(new File(src.getLocation().toURI()).toURI().toURL());
+			} catch (URISyntaxException e) {
+				throw new IOException("Failed locating the jar of " + cls.getName(), e);
+			}
+		}
+		return ret.toArray(new URL[ret.size()]);
+	}
+}
@@ -0,0 +1,81 @@
+package tragdor.concurrent;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Worker side of {@link WorkQueueCoordinator}.
+ */
+public class WorkQueueClient implements Closeable {
+
+	public static class WorkItem {
+		public final int toolIdx;
+		public final long budgetMs;
+
+		public WorkItem(int toolIdx, long budgetMs) {
+			this.toolIdx = toolIdx;
+			this.budgetMs = budgetMs;
+		}
+	}
+
+	private final Socket socket;
+	private final BufferedReader in;
+	private final PrintWriter out;
+
+	private WorkQueueClient(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		this.out = new PrintWriter(socket.getOutputStream(), true);
+	}
+
+	/**
+	 * Connect to the coordinator started by the parent process, if any.
+	 */
+	public static WorkQueueClient connectIfConfigured() throws IOException {
+		final String port = System.getProperty(WorkQueueCoordinator.PORT_PROPERTY);
+		if (port == null) {
+			return null;
+		}
+		return new WorkQueueClient(new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(port)));
+	}
+
+	/**
+	 * @return the next tool config to run, or null if there is no more work.
+	 */
+	public WorkItem next() throws IOException {
+		out.println("NEXT");
+		final String line = in.readLine();
+		if (line == null || "DONE".equals(line)) {
+			return null;
+		}
+		final String[] parts = line.split(" ");
+		return new WorkItem(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+	}
+
+	/**
+	 * Ask for more budget for a tool config that is still running.
+	 *
+	 * @return the extra budget, 0 if there is none.
+	 */
+	public long extend(WorkItem item) throws IOException {
+		out.println("EXTEND " + item.toolIdx);
+		final String line = in.readLine();
+		return line == null ? 0L : Long.parseLong(line);
+	}
+
+	public void finished(WorkItem item, long usedMs) throws IOException {
+		out.println("FINISHED " + item.toolIdx + " " + usedMs);
+		in.readLine();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
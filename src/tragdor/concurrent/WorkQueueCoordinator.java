@@ -0,0 +1,152 @@
+package tragdor.concurrent;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out tool configs to concurrent workers on demand, over a localhost
+ * socket. Workers that get small inputs simply come back for more, instead of
+ * idling while a worker with a fixed slice of large inputs is still running.
+ * <p>
+ * The search budget is a shared pool. Each config gets an even share of what is
+ * left when it is handed out, and budget that a worker did not use (for example
+ * because establishing reference values failed) goes back to the pool. Once all
+ * configs have been handed out, searches that run out of budget can ask for an
+ * even share of the pool among the configs that are still running, so cores
+ * stay busy until the whole budget is spent.
+ * <p>
+ * Protocol, one line per message:
+ *
+ * <pre>
+ * NEXT                     -> "toolIdx budgetMs" or "DONE"
+ * EXTEND toolIdx           -> "extraBudgetMs", 0 if there is none
+ * FINISHED toolIdx usedMs  -> "OK"
+ * </pre>
+ */
+public class WorkQueueCoordinator implements Closeable {
+
+	public static final String PORT_PROPERTY = "tragdor.work_queue_port";
+
+	private final ServerSocket server;
+	private final int numToolConfigs;
+	private int nextToolIdx = 0;
+	private long unallocatedBudgetMs;
+	// Returned budget in unallocatedBudgetMs that hasn't been handed out again
+	private long pendingReturnedBudgetMs = 0;
+	private long totalReturnedBudgetMs = 0;
+	private long totalRedistributedBudgetMs = 0;
+	private final Map<Integer, Long> allocatedBudgets = new HashMap<>();
+
+	public WorkQueueCoordinator(int numToolConfigs, long totalBudgetMs) throws IOException {
+		this.numToolConfigs = numToolConfigs;
+		this.unallocatedBudgetMs = totalBudgetMs;
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		final Thread acceptor = new Thread(this::acceptLoop, "tragdor-work-queue");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	private void acceptLoop() {
+		while (!server.isClosed()) {
+			final Socket client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					System.err.println("Work queue failed accepting connection");
+					e.printStackTrace();
+				}
+				return;
+			}
+			final Thread handler = new Thread(() -> serve(client), "tragdor-work-queue-client");
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) {
+		try (Socket s = client;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.println(handle(line));
+			}
+		} catch (IOException e) {
+			System.err.println("Lost connection to worker");
+			e.printStackTrace();
+		}
+	}
+
+	synchronized String handle(String line) {
+		final String[] parts = line.split(" ");
+		switch (parts[0]) {
+		case "NEXT": {
+			if (nextToolIdx >= numToolConfigs) {
+				return "DONE";
+			}
+			final int toolIdx = nextToolIdx++;
+			final long budget = unallocatedBudgetMs / (numToolConfigs - toolIdx);
+			allocate(toolIdx, budget);
+			return toolIdx + " " + budget;
+		}
+		case "EXTEND": {
+			final int toolIdx = Integer.parseInt(parts[1]);
+			if (nextToolIdx < numToolConfigs || !allocatedBudgets.containsKey(toolIdx)) {
+				// The pool is reserved for configs that haven't started yet
+				return "0";
+			}
+			final long extra = unallocatedBudgetMs / allocatedBudgets.size();
+			allocate(toolIdx, extra);
+			return String.valueOf(extra);
+		}
+		case "FINISHED": {
+			final int toolIdx = Integer.parseInt(parts[1]);
+			final long usedMs = Long.parseLong(parts[2]);
+			final Long allocated = allocatedBudgets.remove(toolIdx);
+			if (allocated != null && usedMs < allocated) {
+				unallocatedBudgetMs += allocated - usedMs;
+				pendingReturnedBudgetMs += allocated - usedMs;
+				totalReturnedBudgetMs += allocated - usedMs;
+			}
+			return "OK";
+		}
+		default:
+			System.err.println("Unknown work queue message '" + line + "'");
+			return "ERROR";
+		}
+	}
+
+	private void allocate(int toolIdx, long budgetMs) {
+		unallocatedBudgetMs -= budgetMs;
+		allocatedBudgets.merge(toolIdx, budgetMs, Long::sum);
+		// Budget is interchangeable, count returned budget as redistributed first
+		final long redistributed = Math.min(budgetMs, pendingReturnedBudgetMs);
+		pendingReturnedBudgetMs -= redistributed;
+		totalRedistributedBudgetMs += redistributed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		synchronized (this) {
+			System.out.printf(
+					"Work queue handed out %d/%d tool configs, %dms of budget was returned, %dms of that was redistributed%n",
+					nextToolIdx, numToolConfigs, totalReturnedBudgetMs, totalRedistributedBudgetMs);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package tragdor.concurrent;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * A child-first classloader for running Tragdor and CodeProber in isolation.
+ * Each worker gets its own copy of all classes, and therefore its own copy of
+ * all static state. This includes the ASTProvider cache, meaning that each
+ * worker also loads the tool jar in a separate classloader.
+ * <p>
+ * Only JDK classes are shared with the parent. Anything passed between workers
+ * and the parent must therefore be expressed in JDK types.
+ */
+public class WorkerClassLoader extends URLClassLoader {
+
+	public WorkerClassLoader(URL[] urls, ClassLoader parent) {
+		super(urls, parent);
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		synchronized (getClassLoadingLock(name)) {
+			Class<?> cls = findLoadedClass(name);
+			if (cls == null && !name.startsWith("java.") && !name.startsWith("javax.") && !name.startsWith("sun.")) {
+				try {
+					cls = findClass(name);
+				} catch (ClassNotFoundException e) {
+					// Not in our jars, delegate to parent
+				}
+			}
+			if (cls == null) {
+				return super.loadClass(name, resolve);
+			}
+			if (resolve) {
+				resolveClass(cls);
+			}
+			return cls;
+		}
+	}
+}
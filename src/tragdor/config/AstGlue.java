@@ -5,10 +5,10 @@ import static tragdor.util.Benchmark.tickTock;
 import java.io.FileReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.function.Supplier;
 
 import codeprober.AstInfo;
 import codeprober.ast.AstNode;
-import codeprober.locator.CreateLocator;
 import codeprober.metaprogramming.AstNodeApiStyle;
 import codeprober.metaprogramming.InvokeProblem;
 import codeprober.metaprogramming.Reflect;
@@ -17,60 +17,93 @@ import codeprober.protocol.PositionRecoveryStrategy;
 import codeprober.toolglue.ParseResult;
 import codeprober.util.ASTProvider;
 import codeprober.util.ASTProvider.LoadedJar;
+import tragdor.LocatorCache;
+import tragdor.NodeIndex;
 import tragdor.util.Exit;
 
 public class AstGlue {
 
 	public static AstInfo reparse(ToolConfig cfg) {
-		if (CreateLocator.identityLocatorCache != null) {
-			CreateLocator.identityLocatorCache.clear();
+		LocatorCache.onNewAst();
+		return tickTock("reparse", () -> wrapFreshRoot(parseRoot(cfg)));
+	}
+
+	/**
+	 * Run the scanner and parser of the tool, and return the raw root node. The
+	 * returned node has not been touched in any way, in particular its state has
+	 * not been reset. See {@link #wrapFreshRoot(Object)}.
+	 */
+	static Object parseRoot(ToolConfig cfg) {
+		// Parsing may happen both on the search thread and in an AstPool producer
+		// thread. Neither ASTProvider nor most parsers are designed for concurrent use.
+		synchronized (parseLock) {
+			return parseRootUnsynchronized(cfg);
+		}
+	}
+
+	private static final Object parseLock = new Object();
+
+	/**
+	 * Run something that must not happen at the same time as a parse, such as
+	 * reading or writing static state in the tool.
+	 */
+	static <T> T withParseLock(Supplier<T> action) {
+		synchronized (parseLock) {
+			return action.get();
 		}
-		return tickTock("reparse", () -> {
-
-			Object rootNode = null;
-			if ("true".equals(System.getenv("DIRECTLY_CALL_SCANNER_PARSER"))) {
-				boolean startedParsing = false;
-				try {
-					final LoadedJar ljar = ASTProvider.loadJar(cfg.tool);
-
-					final Class<?> scannerCls = ljar.classLoader.loadClass("lang.ast.LangScanner");
-					final Object scannerInstance = scannerCls.getConstructor(java.io.Reader.class)
-							.newInstance(new FileReader(cfg.args[cfg.args.length - 1]));
-
-					final Class<?> parserCls = ljar.classLoader.loadClass("lang.ast.LangParser");
-					final Object parserInstance = parserCls.getConstructor().newInstance();
-					final Method parseMth = parserCls.getMethod("parse", scannerCls.getSuperclass());
-					startedParsing = true;
-					rootNode = parseMth.invoke(parserInstance, scannerInstance);
-				} catch (NoSuchMethodException | ClassNotFoundException e) {
-					System.err.println("Failed directly invoking LangScanner/LangParser");
+	}
+
+	private static Object parseRootUnsynchronized(ToolConfig cfg) {
+		Object rootNode = null;
+		if ("true".equals(System.getenv("DIRECTLY_CALL_SCANNER_PARSER"))) {
+			boolean startedParsing = false;
+			try {
+				final LoadedJar ljar = ASTProvider.loadJar(cfg.tool);
+
+				final Class<?> scannerCls = ljar.classLoader.loadClass("lang.ast.LangScanner");
+				final Object scannerInstance = scannerCls.getConstructor(java.io.Reader.class)
+						.newInstance(new FileReader(cfg.args[cfg.args.length - 1]));
+
+				final Class<?> parserCls = ljar.classLoader.loadClass("lang.ast.LangParser");
+				final Object parserInstance = parserCls.getConstructor().newInstance();
+				final Method parseMth = parserCls.getMethod("parse", scannerCls.getSuperclass());
+				startedParsing = true;
+				rootNode = parseMth.invoke(parserInstance, scannerInstance);
+			} catch (NoSuchMethodException | ClassNotFoundException e) {
+				System.err.println("Failed directly invoking LangScanner/LangParser");
+				e.printStackTrace();
+				Exit.exit(1);
+			} catch (Exception e) {
+				if (startedParsing) {
+					// Parsing failed, fall down to error checking below
+				} else {
+					System.err.println("Unknown error while directly invoking LangScanner/LangParser");
 					e.printStackTrace();
 					Exit.exit(1);
-				} catch (Exception e) {
-					if (startedParsing) {
-						// Parsing failed, fall down to error checking below
-					} else {
-						System.err.println("Unknown error while directly invoking LangScanner/LangParser");
-						e.printStackTrace();
-						Exit.exit(1);
-					}
 				}
-
-			} else {
-				final ParseResult pres = ASTProvider.parseAst(cfg.tool, cfg.args);
-				rootNode = pres.rootNode;
-			}
-			if (rootNode == null) {
-				System.err.println("Failed parsing");
-				throw new RuntimeException("Failed parsing");
 			}
 
-			resetAstState(rootNode);
-			final AstInfo ret = new AstInfo(new AstNode(rootNode), PositionRecoveryStrategy.FAIL,
-					AstNodeApiStyle.BEAVER_PACKED_BITS, TypeIdentificationStyle.REFLECTION);
-			flushTreeCache(ret);
-			return ret;
-		});
+		} else {
+			final ParseResult pres = ASTProvider.parseAst(cfg.tool, cfg.args);
+			rootNode = pres.rootNode;
+		}
+		if (rootNode == null) {
+			System.err.println("Failed parsing");
+			throw new RuntimeException("Failed parsing");
+		}
+		return rootNode;
+	}
+
+	static AstInfo wrapFreshRoot(Object rootNode) {
+		resetAstState(rootNode);
+		final AstInfo ret = createAstInfo(rootNode);
+		flushTreeCache(ret);
+		return ret;
+	}
+
+	private static AstInfo createAstInfo(Object rootNode) {
+		return new AstInfo(new AstNode(rootNode), PositionRecoveryStrategy.FAIL, AstNodeApiStyle.BEAVER_PACKED_BITS,
+				TypeIdentificationStyle.REFLECTION);
 	}
 
 	public static void resetAstState(Object astNodePtr) {
@@ -140,21 +173,24 @@ public class AstGlue {
 	private static boolean warnedMissingFlushTreeCache = false;
 
 	public static void flushTreeCache(AstInfo info) {
-		if (CreateLocator.identityLocatorCache != null) {
-			CreateLocator.identityLocatorCache.clear();
-		}
+		LocatorCache.onNtasInvalidated();
+		NodeIndex.invalidate(info);
 		tickTock("flushTreeCache", () -> {
-			try {
-				Reflect.invoke0(info.ast.underlyingAstNode, "flushTreeCache");
-			} catch (InvokeProblem e) {
-				if (!warnedMissingFlushTreeCache) {
-					warnedMissingFlushTreeCache = true;
-					System.err.println("flushTreeCache not supported in AST");
-					e.getCause().printStackTrace();
-				}
-			}
+			invokeFlushTreeCache(info);
 			return null;
 		});
 
 	}
+
+	private static void invokeFlushTreeCache(AstInfo info) {
+		try {
+			Reflect.invoke0(info.ast.underlyingAstNode, "flushTreeCache");
+		} catch (InvokeProblem e) {
+			if (!warnedMissingFlushTreeCache) {
+				warnedMissingFlushTreeCache = true;
+				System.err.println("flushTreeCache not supported in AST");
+				e.getCause().printStackTrace();
+			}
+		}
+	}
 }
@@ -0,0 +1,148 @@
+package tragdor.config;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import codeprober.AstInfo;
+import tragdor.LocatorCache;
+
+/**
+ * A bounded pool of freshly parsed ASTs, filled by a background producer
+ * thread. This hides the latency of parsing an AST while the search thread is
+ * busy evaluating the previous one.
+ * <p>
+ * The producer only parses. Resetting the AST state is done in {@link #take()},
+ * on the consuming thread. In JastAdd the AST state is a static field shared by
+ * all trees, so resetting it in the background would replace the state (trace
+ * receiver, circular evaluation state, etc) of the AST currently being
+ * evaluated.
+ */
+public class AstPool {
+
+	private final ToolConfig cfg;
+	private final Supplier<Object> rootProducer;
+	private final BlockingQueue<Object> ready;
+	private final long estimatedAstBytes;
+	private final Thread producer;
+	private volatile boolean stopped = false;
+	private volatile RuntimeException producerFailure;
+
+	private int numHits;
+	private int numMisses;
+	private long totalWaitNanos;
+
+	private AstPool(ToolConfig cfg, Supplier<Object> rootProducer, int capacity, long estimatedAstBytes,
+			Object firstRoot) {
+		this.cfg = cfg;
+		this.rootProducer = rootProducer;
+		this.ready = new ArrayBlockingQueue<>(capacity);
+		this.estimatedAstBytes = estimatedAstBytes;
+		this.ready.add(firstRoot);
+		this.producer = new Thread(this::produceLoop, "tragdor-ast-pool");
+		this.producer.setDaemon(true);
+		this.producer.start();
+	}
+
+	/**
+	 * Create a pool for the given tool config. The pool size is the smallest of
+	 * 'maxSize' and the number of ASTs that fit in 'maxHeapFraction' of the
+	 * maximum heap size. The size of one AST is estimated by measuring the heap
+	 * before and after producing the first one.
+	 */
+	public static AstPool create(ToolConfig cfg, Supplier<Object> rootProducer, int maxSize, double maxHeapFraction) {
+		final Runtime rt = Runtime.getRuntime();
+		System.gc();
+		final long preUsed = rt.totalMemory() - rt.freeMemory();
+		final Object first = rootProducer.get();
+		System.gc();
+		final long postUsed = rt.totalMemory() - rt.freeMemory();
+		final long estimatedAstBytes = Math.max(postUsed - preUsed, 1L << 20);
+
+		final long heapBudget = (long) (rt.maxMemory() * maxHeapFraction);
+		final int capacity = (int) Math.max(1, Math.min(maxSize, heapBudget / estimatedAstBytes));
+		System.out.printf("Creating AST pool with capacity %d (requested %d, estimated %dMB/AST)%n", capacity, maxSize,
+				estimatedAstBytes >> 20);
+		return new AstPool(cfg, rootProducer, capacity, estimatedAstBytes, first);
+	}
+
+	public ToolConfig getToolConfig() {
+		return cfg;
+	}
+
+	private void produceLoop() {
+		final Runtime rt = Runtime.getRuntime();
+		try {
+			while (!stopped) {
+				// Don't produce more if there is not room for it. The search thread may need
+				// a lot of memory for evaluating the AST it is currently working on.
+				final long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+				if (free < 2 * estimatedAstBytes && !ready.isEmpty()) {
+					Thread.sleep(50);
+					continue;
+				}
+				final Object root = rootProducer.get();
+				while (!stopped) {
+					if (ready.offer(root, 100, TimeUnit.MILLISECONDS)) {
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (RuntimeException e) {
+			if (!stopped) {
+				System.err.println("AST pool producer failed, falling back to synchronous parsing");
+				e.printStackTrace();
+			}
+			producerFailure = e;
+		}
+	}
+
+	/**
+	 * Get a fresh AST, blocking if none is ready yet. Returns null if the producer
+	 * has failed, in which case the caller should parse by itself.
+	 */
+	public AstInfo take() {
+		Object ret = ready.poll();
+		if (ret != null) {
+			++numHits;
+		} else {
+			++numMisses;
+			final long waitStart = System.nanoTime();
+			try {
+				while (ret == null && producerFailure == null && !stopped) {
+					ret = ready.poll(100, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			totalWaitNanos += System.nanoTime() - waitStart;
+		}
+		if (ret == null) {
+			return null;
+		}
+		LocatorCache.onNewAst();
+		return AstGlue.wrapFreshRoot(ret);
+	}
+
+	public void shutdown() {
+		stopped = true;
+		producer.interrupt();
+		try {
+			producer.join(10_000L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ready.clear();
+		printStatistics();
+	}
+
+	public void printStatistics() {
+		final int numTakes = numHits + numMisses;
+		System.out.printf("AST pool for %s: %d hit(s), %d miss(es), %.1f%% hit rate, %.1fms average miss wait%n", cfg,
+				numHits, numMisses, numTakes == 0 ? 0.0 : (100.0 * numHits / numTakes),
+				numMisses == 0 ? 0.0 : (totalWaitNanos / (numMisses * 1_000_000.0)));
+	}
+}
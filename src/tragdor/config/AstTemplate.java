@@ -0,0 +1,240 @@
+package tragdor.config;
+
+import static tragdor.util.Benchmark.tickTock;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import codeprober.AstInfo;
+import tragdor.LocatorCache;
+
+/**
+ * A pristine, never evaluated, AST that can be deep copied instead of
+ * re-running the scanner and parser of the tool. The template itself is never
+ * handed out, only copies of it.
+ */
+public class AstTemplate {
+
+	private static final String[] copyMethodNames = new String[] { "treeCopyNoTransform", "treeCopy", "fullCopy" };
+
+	private final ToolConfig cfg;
+	private final Object pristineRoot;
+	private final Method copyMethod;
+
+	private AstTemplate(ToolConfig cfg, Object pristineRoot, Method copyMethod) {
+		this.cfg = cfg;
+		this.pristineRoot = pristineRoot;
+		this.copyMethod = copyMethod;
+	}
+
+	/**
+	 * Parse a template AST for the given tool config. Returns null if the AST
+	 * cannot be copied safely, in which case the caller should fall back to
+	 * reparsing.
+	 */
+	public static AstTemplate create(ToolConfig cfg) {
+		final Object root = tickTock("parseTemplate", () -> AstGlue.parseRoot(cfg));
+		Method copyMethod = null;
+		for (String name : copyMethodNames) {
+			try {
+				copyMethod = root.getClass().getMethod(name);
+				break;
+			} catch (NoSuchMethodException e) {
+				// Try next
+			}
+		}
+		if (copyMethod == null) {
+			System.err.println("AST of type " + root.getClass().getName()
+					+ " has no tree copy method, cannot use ast_provisioning=copy");
+			return null;
+		}
+		final AstTemplate ret = new AstTemplate(cfg, root, copyMethod);
+
+		// JastAdd normally keeps the AST state (trace receivers, circular evaluation
+		// state, etc) in a static field, shared by all trees. That is fine, it is reset
+		// for each copy just like for a reparsed AST. A state object stored per tree
+		// would however be copied by reference, making all copies share it with the
+		// template.
+		final String sharedField = findSharedTreeState(root, ret.copyRoot());
+		if (sharedField != null) {
+			System.err.println("Copies of " + root.getClass().getName() + " share the AST state in '" + sharedField
+					+ "' with the template, cannot use ast_provisioning=copy");
+			return null;
+		}
+
+		if ("true".equals(System.getProperty("tragdor.ast_copy.verify"))) {
+			final String mismatch = findStructuralMismatch(ret.copyRoot(), AstGlue.parseRoot(cfg));
+			if (mismatch != null) {
+				System.err.println("Copied AST is not equivalent to a reparsed AST: " + mismatch);
+				System.err.println("Cannot use ast_provisioning=copy");
+				return null;
+			}
+			System.out.println("Verified that copied AST is equivalent to a reparsed AST");
+		}
+
+		final int numBenchmarkRounds = Integer.parseInt(System.getProperty("tragdor.ast_copy.benchmark", "0"));
+		if (numBenchmarkRounds > 0) {
+			ret.benchmark(numBenchmarkRounds);
+		}
+		return ret;
+	}
+
+	public AstInfo copy() {
+		LocatorCache.onNewAst();
+		return tickTock("astCopy", () -> AstGlue.wrapFreshRoot(copyRoot()));
+	}
+
+	Object copyRoot() {
+		try {
+			return copyMethod.invoke(pristineRoot);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			System.err.println("Failed copying template AST");
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void benchmark(int numRounds) {
+		System.out.println("Benchmarking reparse vs copy, " + numRounds + " round(s)..");
+		final long reparseStart = System.nanoTime();
+		for (int i = 0; i < numRounds; ++i) {
+			AstGlue.parseRoot(cfg);
+		}
+		final long reparseNanos = System.nanoTime() - reparseStart;
+
+		final long copyStart = System.nanoTime();
+		for (int i = 0; i < numRounds; ++i) {
+			copyRoot();
+		}
+		final long copyNanos = System.nanoTime() - copyStart;
+
+		System.out.printf("Reparse: %.3fms/AST, copy: %.3fms/AST, speedup: %.1fx%n", //
+				reparseNanos / (numRounds * 1_000_000.0), copyNanos / (numRounds * 1_000_000.0),
+				reparseNanos / (double) Math.max(copyNanos, 1L));
+	}
+
+	/**
+	 * @return the name of a non-static AST state field that refers to the same
+	 *         object in both nodes, or null if there is none.
+	 */
+	static String findSharedTreeState(Object template, Object copy) {
+		for (Class<?> cls = template.getClass(); cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+			for (Field f : cls.getDeclaredFields()) {
+				final String typeName = f.getType().getName();
+				if (Modifier.isStatic(f.getModifiers())
+						|| !(typeName.endsWith(".ASTState") || typeName.endsWith("$ASTState"))) {
+					continue;
+				}
+				try {
+					f.setAccessible(true);
+					final Object state = f.get(template);
+					if (state != null && state == f.get(copy)) {
+						return cls.getSimpleName() + "." + f.getName();
+					}
+				} catch (IllegalAccessException | RuntimeException e) {
+					// Inaccessible field, ignore
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compare two unevaluated ASTs. They are considered equal if they have the same
+	 * shape, the same node types, and the same values in all primitive and string
+	 * fields (tokens, positions, etc).
+	 *
+	 * @return a description of the first difference, or null if they are equal.
+	 */
+	static String findStructuralMismatch(Object copied, Object reparsed) {
+		final List<Object[]> worklist = new ArrayList<>();
+		worklist.add(new Object[] { copied, reparsed, "<ROOT>" });
+		final Map<Object, Boolean> visited = new IdentityHashMap<>();
+		while (!worklist.isEmpty()) {
+			final Object[] pair = worklist.remove(worklist.size() - 1);
+			final Object a = pair[0];
+			final Object b = pair[1];
+			final String path = (String) pair[2];
+			if (a == null || b == null) {
+				if (a != b) {
+					return "Null mismatch at " + path;
+				}
+				continue;
+			}
+			if (visited.put(a, true) != null) {
+				continue;
+			}
+			if (a.getClass() != b.getClass()) {
+				return String.format("Type mismatch at %s: %s vs %s", path, a.getClass().getName(),
+						b.getClass().getName());
+			}
+			final String fieldMismatch = findFieldMismatch(a, b);
+			if (fieldMismatch != null) {
+				return String.format("Field mismatch at %s (%s): %s", path, a.getClass().getName(), fieldMismatch);
+			}
+			final int numChildren = getNumChildren(a);
+			if (numChildren != getNumChildren(b)) {
+				return String.format("Child count mismatch at %s: %d vs %d", path, numChildren, getNumChildren(b));
+			}
+			for (int i = 0; i < numChildren; ++i) {
+				worklist.add(new Object[] { getChild(a, i), getChild(b, i), path + "/" + i });
+			}
+		}
+		return null;
+	}
+
+	private static String findFieldMismatch(Object a, Object b) {
+		for (Class<?> cls = a.getClass(); cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+			for (Field f : cls.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+				if (!f.getType().isPrimitive() && f.getType() != String.class) {
+					continue;
+				}
+				try {
+					f.setAccessible(true);
+					final Object av = f.get(a);
+					final Object bv = f.get(b);
+					if (av == null ? bv != null : !av.equals(bv)) {
+						return String.format("%s.%s: %s vs %s", cls.getSimpleName(), f.getName(), av, bv);
+					}
+				} catch (IllegalAccessException | RuntimeException e) {
+					// Inaccessible field, ignore
+				}
+			}
+		}
+		return null;
+	}
+
+	private static int getNumChildren(Object node) {
+		for (String name : new String[] { "getNumChildNoTransform", "getNumChild" }) {
+			try {
+				return (Integer) node.getClass().getMethod(name).invoke(node);
+			} catch (NoSuchMethodException e) {
+				// Try next
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return 0;
+	}
+
+	private static Object getChild(Object node, int idx) {
+		for (String name : new String[] { "getChildNoTransform", "getChild" }) {
+			try {
+				return node.getClass().getMethod(name, Integer.TYPE).invoke(node, idx);
+			} catch (NoSuchMethodException e) {
+				// Try next
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,240 @@
+package tragdor.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A copy of the static fields of all classes in a tool jar. Restoring the
+ * snapshot gets rid of static side effects (counters, caches, etc) without
+ * throwing away the classloader, meaning that loaded classes and JIT-compiled
+ * code stay warm.
+ * <p>
+ * Non-final fields are restored by reassigning them. Additionally, the contents
+ * of static collections, maps and arrays are restored in place, since they are
+ * often declared final and mutated. Other mutable objects reachable from static
+ * fields are not deep copied.
+ * <p>
+ * Taking a snapshot doesn't initialize any classes, since running the static
+ * initializers of classes the tool never uses (main classes, unused parser
+ * tables, ..) could have side effects of their own. Classes that aren't
+ * initialized yet are skipped. If one of them has been initialized when the
+ * snapshot is about to be restored, it cannot be put back into its
+ * uninitialized state, see {@link #getLateInitializedClasses()}.
+ */
+public class StaticStateSnapshot {
+
+	private final List<FieldState> fields;
+	private final List<Class<?>> uninitializedClasses;
+
+	private StaticStateSnapshot(List<FieldState> fields, List<Class<?>> uninitializedClasses) {
+		this.fields = fields;
+		this.uninitializedClasses = uninitializedClasses;
+	}
+
+	public int getNumFields() {
+		return fields.size();
+	}
+
+	/**
+	 * @param initializeClasses names of classes to initialize before taking the
+	 *                          snapshot. Typically classes that were initialized
+	 *                          after an earlier snapshot was taken, and are
+	 *                          therefore known to be used by the tool.
+	 */
+	public static StaticStateSnapshot take(String toolJar, ClassLoader loader, Set<String> initializeClasses)
+			throws IOException {
+		final Predicate<Class<?>> isInitialized = getInitializedCheck();
+		final List<FieldState> fields = new ArrayList<>();
+		final List<Class<?>> uninitializedClasses = new ArrayList<>();
+		try (JarFile jar = new JarFile(new File(toolJar))) {
+			final Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				final String name = entries.nextElement().getName();
+				if (!name.endsWith(".class") || name.endsWith("module-info.class")) {
+					continue;
+				}
+				final String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+				final Class<?> cls;
+				try {
+					cls = Class.forName(className, initializeClasses.contains(className), loader);
+				} catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+					// Classes that cannot be loaded/initialized cannot have any state either
+					continue;
+				}
+				if (cls.getClassLoader() != loader) {
+					// Shadowed by a parent classloader, not part of the tool
+					continue;
+				}
+				if (!isInitialized.test(cls)) {
+					// Reading a static field would run the static initializer
+					uninitializedClasses.add(cls);
+					continue;
+				}
+				for (Field f : getStaticFields(cls)) {
+					try {
+						fields.add(new FieldState(f, f.get(null)));
+					} catch (IllegalAccessException | RuntimeException e) {
+						// Inaccessible field, ignore
+					}
+				}
+			}
+		}
+		return new StaticStateSnapshot(fields, uninitializedClasses);
+	}
+
+	/**
+	 * @return a check for whether a class has been initialized, based on
+	 *         sun.misc.Unsafe.shouldBeInitialized.
+	 */
+	private static Predicate<Class<?>> getInitializedCheck() {
+		final Object unsafe;
+		final Method shouldBeInitialized;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			shouldBeInitialized = unsafeClass.getMethod("shouldBeInitialized", Class.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Without it, there is no way to tell which classes are initialized
+			throw new RuntimeException("Cannot check if classes are initialized on this JVM", e);
+		}
+		return cls -> {
+			try {
+				return !(Boolean) shouldBeInitialized.invoke(unsafe, cls);
+			} catch (ReflectiveOperationException e) {
+				throw new RuntimeException("Cannot check if " + cls.getName() + " is initialized", e);
+			}
+		};
+	}
+
+	/**
+	 * @return the names of classes that weren't initialized when the snapshot was
+	 *         taken, but are now. Restoring the snapshot would leave their static
+	 *         state as it is.
+	 */
+	public List<String> getLateInitializedClasses() {
+		final Predicate<Class<?>> isInitialized = getInitializedCheck();
+		final List<String> ret = new ArrayList<>();
+		for (Class<?> cls : uninitializedClasses) {
+			if (isInitialized.test(cls)) {
+				ret.add(cls.getName());
+			}
+		}
+		return ret;
+	}
+
+	private static List<Field> getStaticFields(Class<?> cls) {
+		final List<Field> ret = new ArrayList<>();
+		final Field[] declared;
+		try {
+			declared = cls.getDeclaredFields();
+		} catch (LinkageError e) {
+			return ret;
+		}
+		for (Field f : declared) {
+			final int mods = f.getModifiers();
+			if (!Modifier.isStatic(mods)) {
+				continue;
+			}
+			if (Modifier.isFinal(mods) && (f.getType().isPrimitive() || f.getType() == String.class)) {
+				// Constant
+				continue;
+			}
+			try {
+				f.setAccessible(true);
+			} catch (RuntimeException e) {
+				continue;
+			}
+			ret.add(f);
+		}
+		return ret;
+	}
+
+	/**
+	 * Put all static fields back to the values they had when the snapshot was
+	 * taken.
+	 *
+	 * @return the number of fields that could not be restored.
+	 */
+	public int restore() {
+		int numFailed = 0;
+		for (FieldState fs : fields) {
+			if (!fs.restore()) {
+				++numFailed;
+			}
+		}
+		return numFailed;
+	}
+
+	private static class FieldState {
+		private final Field field;
+		private final Object value;
+		private final Object contents;
+
+		public FieldState(Field field, Object value) {
+			this.field = field;
+			this.value = value;
+			this.contents = copyContents(value);
+		}
+
+		private static Object copyContents(Object value) {
+			if (value instanceof Collection<?>) {
+				return new ArrayList<>((Collection<?>) value);
+			}
+			if (value instanceof Map<?, ?>) {
+				return new LinkedHashMap<>((Map<?, ?>) value);
+			}
+			if (value != null && value.getClass().isArray()) {
+				final int len = Array.getLength(value);
+				final Object ret = Array.newInstance(value.getClass().getComponentType(), len);
+				System.arraycopy(value, 0, ret, 0, len);
+				return ret;
+			}
+			return null;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public boolean restore() {
+			try {
+				if (!Modifier.isFinal(field.getModifiers()) && field.get(null) != value) {
+					field.set(null, value);
+				}
+				// Only write to collections that have changed, many are unmodifiable
+				if (contents instanceof Collection<?>) {
+					final Collection dst = (Collection) value;
+					if (!contents.equals(new ArrayList<>(dst))) {
+						dst.clear();
+						dst.addAll((Collection) contents);
+					}
+				} else if (contents instanceof Map<?, ?>) {
+					final Map dst = (Map) value;
+					if (!contents.equals(dst)) {
+						dst.clear();
+						dst.putAll((Map) contents);
+					}
+				} else if (contents != null) {
+					System.arraycopy(contents, 0, value, 0, Array.getLength(contents));
+				}
+				return true;
+			} catch (IllegalAccessException | RuntimeException e) {
+				// Final fields in newer JVMs, unmodifiable collections, etc.
+				return false;
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package tragdor.config;
 
+import static tragdor.util.Benchmark.tickTock;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -7,8 +9,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
 
@@ -16,6 +24,9 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import codeprober.AstInfo;
+import codeprober.util.ASTProvider;
+import codeprober.util.ASTProvider.LoadedJar;
+import tragdor.LocatorCache;
 import tragdor.util.Exit;
 import tragdor.util.ReportFilterLoader;
 import tragdor.util.ReportFilterLoader.FilterDecision;
@@ -28,6 +39,12 @@ public class UserConfig {
 	private List<ToolConfig> cachedToolConfigs;
 	private AstInfo mostRecentParseResult;
 	private BiPredicate<String, String> cachedAttrExclusionPredicate;
+	private final Map<ToolConfig, AstTemplate> astTemplates = new IdentityHashMap<>();
+	private final Map<ToolConfig, AstPool> astPools = new IdentityHashMap<>();
+	private final Map<String, StaticStateSnapshot> staticSnapshots = new HashMap<>();
+	// Per tool jar, classes that were initialized after a snapshot was taken
+	private final Map<String, Set<String>> lateInitializedClasses = new HashMap<>();
+	private boolean staticSnapshotRequested = false;
 
 	private int activeToolCfgIdx = 0;
 
@@ -53,18 +70,183 @@ public class UserConfig {
 	}
 
 	public AstInfo reparse() {
-		mostRecentParseResult = AstGlue.reparse(getToolConfigs().get(activeToolCfgIdx));
+		final ToolConfig cfg = getToolConfigs().get(activeToolCfgIdx);
+		final AstInfo ret = provisionAst(cfg);
+		if (staticSnapshotRequested) {
+			staticSnapshotRequested = false;
+			takeStaticSnapshot(cfg);
+		}
+		return ret;
+	}
+
+	private AstInfo provisionAst(ToolConfig cfg) {
+		// Copying is done on this thread, not in a pool. Copying a JastAdd AST emits
+		// trace events through the global AST state, which may belong to an ongoing
+		// traced evaluation.
+		final AstTemplate template = getAstTemplate(cfg);
+		if (template != null) {
+			mostRecentParseResult = template.copy();
+			return mostRecentParseResult;
+		}
+		final int poolSize = getAstPoolSize();
+		if (poolSize > 0) {
+			AstPool pool = astPools.get(cfg);
+			if (pool == null) {
+				// Only keep a pool for the active tool config, each pooled AST may be large
+				shutdownAstPools();
+				pool = tickTock("createAstPool", () -> AstPool.create(cfg, () -> AstGlue.parseRoot(cfg), poolSize,
+						tragdorConfig.optDouble("ast_pool_max_heap_fraction", 0.5)));
+				astPools.put(cfg, pool);
+			}
+			final AstInfo pooled = tickTock("astPoolTake", pool::take);
+			if (pooled != null) {
+				mostRecentParseResult = pooled;
+				return mostRecentParseResult;
+			}
+		}
+		mostRecentParseResult = AstGlue.reparse(cfg);
 		return mostRecentParseResult;
 	}
 
+	private AstTemplate getAstTemplate(ToolConfig cfg) {
+		if (!"copy".equals(getAstProvisioning())) {
+			return null;
+		}
+		if (!astTemplates.containsKey(cfg)) {
+			// May be null, in which case we fall back to reparsing
+			astTemplates.put(cfg, AstTemplate.create(cfg));
+		}
+		return astTemplates.get(cfg);
+	}
+
+	public void shutdownAstPools() {
+		for (AstPool pool : astPools.values()) {
+			pool.shutdown();
+		}
+		astPools.clear();
+	}
+
+	/**
+	 * Get rid of all static state in the tool.
+	 * <p>
+	 * By default, this restores a snapshot of the static fields in the tool, taken
+	 * right after the first parse following the first purge. The first purge, and
+	 * all purges with static_reset=purge, instead throw away the loaded tool jar.
+	 * Any AST templates are then also discarded, since they belong to the old
+	 * classloader. The tool jar is also thrown away if a class was initialized
+	 * after the snapshot was taken. That class is then initialized before the
+	 * next snapshot.
+	 */
+	public void purgeToolCache() {
+		// Pooled ASTs may have been parsed after static side effects happened
+		shutdownAstPools();
+		LocatorCache.invalidateAll();
+		if (!"purge".equals(getStaticReset())) {
+			final StaticStateSnapshot snapshot = staticSnapshots
+					.get(getToolConfigs().get(activeToolCfgIdx).tool);
+			final List<String> lateInitialized = snapshot != null ? snapshot.getLateInitializedClasses() : null;
+			if (lateInitialized != null && !lateInitialized.isEmpty()) {
+				// Initialize them before the next snapshot instead, they are evidently used
+				lateInitializedClasses.computeIfAbsent(getToolConfigs().get(activeToolCfgIdx).tool, x -> new HashSet<>())
+						.addAll(lateInitialized);
+				System.err.println(lateInitialized.size()
+						+ " class(es) were initialized after the static snapshot was taken, purging tool jar instead");
+			} else if (snapshot != null) {
+				final int numFailed = tickTock("restoreStaticState", snapshot::restore);
+				if (numFailed == 0) {
+					return;
+				}
+				System.err.println("Failed restoring " + numFailed + " static field(s), purging tool jar instead");
+			} else {
+				staticSnapshotRequested = true;
+			}
+		}
+		ASTProvider.purgeCache();
+		staticSnapshots.clear();
+		astTemplates.clear();
+	}
+
+	private void takeStaticSnapshot(ToolConfig cfg) {
+		try {
+			final LoadedJar ljar = ASTProvider.loadJar(cfg.tool);
+			// Don't let an AstPool producer parse (and mutate static state) mid-snapshot
+			final StaticStateSnapshot snapshot = tickTock("takeStaticSnapshot",
+					() -> AstGlue.withParseLock(() -> {
+						try {
+							return StaticStateSnapshot.take(cfg.tool, ljar.classLoader,
+									lateInitializedClasses.getOrDefault(cfg.tool, Collections.emptySet()));
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}));
+			System.out.println("Took snapshot of " + snapshot.getNumFields() + " static field(s) in " + cfg.tool);
+			staticSnapshots.put(cfg.tool, snapshot);
+		} catch (RuntimeException e) {
+			System.err.println("Failed taking snapshot of static state, will purge tool jar instead");
+			e.printStackTrace();
+		}
+	}
+
 	public AstInfo getMostRecentParseResult() {
 		return mostRecentParseResult;
 	}
 
+	public String getAstProvisioning() {
+		return tragdorConfig.optString("ast_provisioning", "reparse");
+	}
+
+	public String getStaticReset() {
+		return tragdorConfig.optString("static_reset", "snapshot");
+	}
+
+	public int getAstPoolSize() {
+		return tragdorConfig.optInt("ast_pool_size", 0);
+	}
+
 	public String getSearchAlgorithm() {
 		return tragdorConfig.optString("search_algorithm", "random_order");
 	}
 
+	/**
+	 * Whether random_order should evaluate all props of a node after each other.
+	 */
+	public boolean getNodeGroupedOrder() {
+		return tragdorConfig.optBoolean("node_grouped_order", false);
+	}
+
+	/**
+	 * Fraction of cycles that still use a fully shuffled order when
+	 * {@link #getNodeGroupedOrder()} is enabled.
+	 */
+	public double getCrossNodeShuffleRatio() {
+		return tragdorConfig.optDouble("cross_node_shuffle_ratio", 0.1);
+	}
+
+	/**
+	 * Whether random_order and random_equation_check should evaluate expensive
+	 * props less often, see {@link tragdor.steps.step2.CostAwareSampler}.
+	 */
+	public boolean getCostAwareSampling() {
+		return tragdorConfig.optBoolean("cost_aware_sampling", false);
+	}
+
+	/**
+	 * The lowest fraction of cycles that any prop is evaluated in when
+	 * {@link #getCostAwareSampling()} is enabled.
+	 */
+	public double getMinSamplingRate() {
+		return tragdorConfig.optDouble("min_sampling_rate", 0.1);
+	}
+
+	/**
+	 * Fraction of evaluations that are kept for attribute types (node type +
+	 * attribute name) that have already been reported by a search. 1.0 (the
+	 * default) keeps all of them, 0.0 drops them.
+	 */
+	public double getReportedAttrSamplingRate() {
+		return tragdorConfig.optDouble("reported_attr_sampling_rate", 1.0);
+	}
+
 	public boolean shouldExcludeReport(String nodeType, String attrType) {
 		if (cachedAttrExclusionPredicate == null) {
 			final JSONObject filter = tragdorConfig.optJSONObject("filter");
@@ -142,6 +324,38 @@ public class UserConfig {
 					ret.tragdorConfig.put("search_algorithm", val);
 					break;
 
+				case "ast_provisioning":
+					ret.tragdorConfig.put("ast_provisioning", val);
+					break;
+
+				case "ast_pool_size":
+					ret.tragdorConfig.put("ast_pool_size", Integer.parseInt(val));
+					break;
+
+				case "node_grouped_order":
+					ret.tragdorConfig.put("node_grouped_order", Boolean.parseBoolean(val));
+					break;
+
+				case "cross_node_shuffle_ratio":
+					ret.tragdorConfig.put("cross_node_shuffle_ratio", Double.parseDouble(val));
+					break;
+
+				case "cost_aware_sampling":
+					ret.tragdorConfig.put("cost_aware_sampling", Boolean.parseBoolean(val));
+					break;
+
+				case "min_sampling_rate":
+					ret.tragdorConfig.put("min_sampling_rate", Double.parseDouble(val));
+					break;
+
+				case "reported_attr_sampling_rate":
+					ret.tragdorConfig.put("reported_attr_sampling_rate", Double.parseDouble(val));
+					break;
+
+				case "static_reset":
+					ret.tragdorConfig.put("static_reset", val);
+					break;
+
 				case "repeat_passes":
 					ret.tragdorConfig.put("repeat_passes", Integer.parseInt(val));
 					break;
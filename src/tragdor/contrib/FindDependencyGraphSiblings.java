@@ -6,55 +6,60 @@ import java.util.Map;
 import java.util.Set;
 
 import tragdor.LocatedProp;
-import tragdor.steps.step1.DependencyGraphNode;
+import tragdor.steps.step1.DependencyGraph;
 
 public class FindDependencyGraphSiblings {
 
-	public static Set<LocatedProp> getSiblings(DependencyGraphNode origin, int searchDistance) {
+	public static Set<LocatedProp> getSiblings(DependencyGraph graph, int origin, int searchDistance) {
 		final Set<LocatedProp> siblings = new HashSet<>();
-		final Map<LocatedProp, Integer> upSearches = new HashMap<>();
-		final Map<LocatedProp, Integer> downSearches = new HashMap<>();
-		gatherSiblingEdges(siblings, upSearches, downSearches, origin, searchDistance, searchDistance);
-		siblings.remove(origin.identity);
+		final Map<Integer, Integer> upSearches = new HashMap<>();
+		final Map<Integer, Integer> downSearches = new HashMap<>();
+		gatherSiblingEdges(graph, siblings, upSearches, downSearches, origin, searchDistance, searchDistance);
+		siblings.remove(graph.getProp(origin));
 		return siblings;
 	}
 
-	private static void gatherSiblingEdges(Set<LocatedProp> dst, Map<LocatedProp, Integer> upSearchVisited,
-			Map<LocatedProp, Integer> downSearchVisited, DependencyGraphNode node, int upSearchLevel,
-			int downSearchLevel) {
+	private static void gatherSiblingEdges(DependencyGraph graph, Set<LocatedProp> dst,
+			Map<Integer, Integer> upSearchVisited, Map<Integer, Integer> downSearchVisited, int node,
+			int upSearchLevel, int downSearchLevel) {
 		if (upSearchLevel > 0) {
-			if (node.incomingEdges.isEmpty()) {
+			final int numIncoming = graph.getNumIncoming(node);
+			if (numIncoming == 0) {
 				// Add the node itself instead
-				dst.add(node.identity);
+				dst.add(graph.getProp(node));
 			}
-			for (DependencyGraphNode back : node.incomingEdges) {
-				final Integer prevVisit = upSearchVisited.get(back.identity);
+			for (int i = 0; i < numIncoming; ++i) {
+				final int back = graph.getIncoming(node, i);
+				final Integer prevVisit = upSearchVisited.get(back);
 				if (prevVisit != null && prevVisit > upSearchLevel) {
 					// Already went this way, with more travel budget. No need to go here again
 					continue;
 				}
-				upSearchVisited.put(back.identity, upSearchLevel);
-				gatherSiblingEdges(dst, upSearchVisited, downSearchVisited, back, upSearchLevel - 1, downSearchLevel);
+				upSearchVisited.put(back, upSearchLevel);
+				gatherSiblingEdges(graph, dst, upSearchVisited, downSearchVisited, back, upSearchLevel - 1,
+						downSearchLevel);
 			}
 		} else if (downSearchLevel > 0) {
-			if (node.outgoingEdges.isEmpty()) {
+			final int numOutgoing = graph.getNumOutgoing(node);
+			if (numOutgoing == 0) {
 				// It is a leaf node, even if it isn't the "correct depth down"
 				// Add it!
-				dst.add(node.identity);
+				dst.add(graph.getProp(node));
 			} else {
-				for (DependencyGraphNode fwd : node.outgoingEdges) {
-					final Integer prevVisit = downSearchVisited.get(fwd.identity);
+				for (int i = 0; i < numOutgoing; ++i) {
+					final int fwd = graph.getOutgoing(node, i);
+					final Integer prevVisit = downSearchVisited.get(fwd);
 					if (prevVisit != null && prevVisit > downSearchLevel) {
 						// Already went this way, with more travel budget. No need to go here again
 						continue;
 					}
-					downSearchVisited.put(fwd.identity, downSearchLevel);
-					gatherSiblingEdges(dst, upSearchVisited, downSearchVisited, fwd, upSearchLevel,
+					downSearchVisited.put(fwd, downSearchLevel);
+					gatherSiblingEdges(graph, dst, upSearchVisited, downSearchVisited, fwd, upSearchLevel,
 							downSearchLevel - 1);
 				}
 			}
 		} else {
-			dst.add(node.identity);
+			dst.add(graph.getProp(node));
 		}
 	}
 }
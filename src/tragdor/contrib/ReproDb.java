@@ -8,30 +8,29 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import codeprober.AstInfo;
-import codeprober.locator.CreateLocator;
-import codeprober.util.ASTProvider;
 import tragdor.EvaluatedValue;
 import tragdor.LocatedProp;
+import tragdor.LocatorCache;
 import tragdor.PropEvaluation;
 import tragdor.config.UserConfig;
-import tragdor.steps.step1.DependencyGraphNode;
+import tragdor.steps.step1.DependencyGraph;
 import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
 
 public class ReproDb {
 
 	private final ReferenceValues rvas;
-	private final Map<LocatedProp, ReproDbEntry> entries = new HashMap<>();
+	private final Map<Integer, ReproDbEntry> entries = new HashMap<>();
 
-	private final Map<LocatedProp, ReferenceValueDiff> rvDiffs = new HashMap<>();
+	private final Map<Integer, ReferenceValueDiff> rvDiffs = new HashMap<>();
 
 	public ReproDb(ReferenceValues rvas, Map<Long, List<ReferenceValueDiff>> loadedIssues) {
 		this.rvas = rvas;
 
 		for (Entry<Long, List<ReferenceValueDiff>> ent : loadedIssues.entrySet()) {
 
-			final List<LocatedProp> order = rvas.getEvalOrder(ent.getKey());
+			final int[] order = rvas.getEvalOrderIds(ent.getKey());
 			for (ReferenceValueDiff diff : ent.getValue()) {
-				rvDiffs.put(order.get(diff.listIndex), diff);
+				rvDiffs.put(order[diff.listIndex], diff);
 			}
 		}
 	}
@@ -41,13 +40,13 @@ public class ReproDb {
 	}
 
 	public ReproDbEntry get(LocatedProp key) {
-		final ReproDbEntry cached = entries.get(key);
+		final ReproDbEntry cached = entries.get(key.getId());
 		if (cached != null) {
 			return cached;
 		}
 
 		final ReproDbEntry fresh = new ReproDbEntry(key);
-		entries.put(key, fresh);
+		entries.put(key.getId(), fresh);
 		return fresh;
 	}
 
@@ -62,16 +61,13 @@ public class ReproDb {
 		}
 
 		public ReferenceValueDiff getRelatedDiff() {
-			return rvDiffs.get(subject);
+			return rvDiffs.get(subject.getId());
 		}
 
 		public EvaluatedValue getFreshValue() {
 			if (freshValueCache == null) {
 				if ("true".equals(System.getProperty("purge_before_fresh_value"))) {
-					ASTProvider.purgeCache();
-					if (CreateLocator.identityLocatorCache != null) {
-						CreateLocator.identityLocatorCache.clear();
-					}
+					getConfig().purgeToolCache();
 				}
 				freshValueCache = PropEvaluation.evaluateProp(getConfig().reparse(), subject);
 			}
@@ -94,9 +90,7 @@ public class ReproDb {
 			}
 			final AstInfo ast = getConfig().reparse();
 			for (LocatedProp lp : intermediates) {
-				if (CreateLocator.identityLocatorCache != null) {
-					CreateLocator.identityLocatorCache.clear();
-				}
+				LocatorCache.onNtasInvalidated();
 				PropEvaluation.evaluateProp(ast, lp);
 			}
 			return PropEvaluation.evaluateProp(ast, subject);
@@ -112,12 +106,13 @@ public class ReproDb {
 			if (distance <= 0) {
 				throw new IllegalArgumentException("Distance must be positive");
 			}
-			final DependencyGraphNode depNode = rvas.getDependencyNodeForProp(subject);
-			if (depNode == null) {
+			final DependencyGraph graph = rvas.getDependencyGraph();
+			final int depNode = graph.getNodeId(subject);
+			if (depNode == -1) {
 				System.err.println("Missing dependency graph node for " + subject);
 				return Collections.emptySet();
 			}
-			return FindDependencyGraphSiblings.getSiblings(depNode, distance);
+			return FindDependencyGraphSiblings.getSiblings(graph, depNode, distance);
 		}
 
 		public boolean producesDifferentValueWithIntermediates(List<LocatedProp> intermediateSteps) {
@@ -79,5 +79,11 @@ public enum ReportType {
 	 * When the "_compute" method is invoked on an AST after calling the
 	 * corresponding "_reset", it does not return/compute the same value as during the reference run.
 	 */
-	NON_IDEMPOTENT_PROPERTY_EQUATION_AFTER_RESET
+	NON_IDEMPOTENT_PROPERTY_EQUATION_AFTER_RESET,
+
+	/**
+	 * A property (~=attribute) did not finish within the evaluation time limit, and
+	 * was abandoned.
+	 */
+	SLOW_PROPERTY
 }
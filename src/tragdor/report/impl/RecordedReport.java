@@ -0,0 +1,74 @@
+package tragdor.report.impl;
+
+import org.json.JSONObject;
+
+import tragdor.report.BaseReport;
+import tragdor.report.Report;
+import tragdor.report.ReportType;
+
+/**
+ * A report that was saved to disk and loaded again, for example together with
+ * cached reference values. Compares equal to the report it was saved from.
+ */
+public class RecordedReport extends BaseReport {
+
+	private final ReportType type;
+	private final String message;
+	private final JSONObject details;
+	private final String relatedNodeType;
+	private final String relatedAttrName;
+
+	public RecordedReport(ReportType type, String message, JSONObject details, String relatedNodeType,
+			String relatedAttrName) {
+		this.type = type;
+		this.message = message;
+		this.details = details;
+		this.relatedNodeType = relatedNodeType;
+		this.relatedAttrName = relatedAttrName;
+	}
+
+	public static JSONObject encode(Report rep) {
+		final JSONObject ret = new JSONObject() //
+				.put("type", rep.getType().name()) //
+				.put("message", rep.getMessage()) //
+				.put("details", rep.getDetails());
+		if (rep.getRelatedNodeType() != null) {
+			ret.put("relatedNodeType", rep.getRelatedNodeType());
+		}
+		if (rep.getRelatedAttrName() != null) {
+			ret.put("relatedAttrName", rep.getRelatedAttrName());
+		}
+		return ret;
+	}
+
+	public static RecordedReport decode(JSONObject obj) {
+		return new RecordedReport(ReportType.valueOf(obj.getString("type")), obj.getString("message"),
+				obj.getJSONObject("details"), obj.optString("relatedNodeType", null),
+				obj.optString("relatedAttrName", null));
+	}
+
+	@Override
+	public ReportType getType() {
+		return type;
+	}
+
+	@Override
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String getRelatedNodeType() {
+		return relatedNodeType;
+	}
+
+	@Override
+	public String getRelatedAttrName() {
+		return relatedAttrName;
+	}
+
+	@Override
+	public JSONObject getDetails() {
+		return details;
+	}
+}
@@ -0,0 +1,54 @@
+package tragdor.report.impl;
+
+import org.json.JSONObject;
+
+import tragdor.LocatedProp;
+import tragdor.report.BaseReport;
+import tragdor.report.ReportType;
+
+public class SlowPropertyReport extends BaseReport {
+
+	private final LocatedProp subject;
+	private final long elapsedMs;
+	private final long timeoutMs;
+
+	public SlowPropertyReport(LocatedProp subject, long elapsedMs, long timeoutMs) {
+		this.subject = subject;
+		this.elapsedMs = elapsedMs;
+		this.timeoutMs = timeoutMs;
+	}
+
+	@Override
+	public ReportType getType() {
+		return ReportType.SLOW_PROPERTY;
+	}
+
+	@Override
+	public String getMessage() {
+		final String subjType = subject.locator.result.type;
+		final String[] typeParts = subjType.split("\\.");
+		return String.format("'%s.%s' did not finish within %dms and was abandoned",
+				typeParts.length == 0 ? subjType : typeParts[typeParts.length - 1], subject.prop.name, timeoutMs);
+	}
+
+	@Override
+	public String getRelatedNodeType() {
+		return subject.locator.result.type;
+	}
+
+	@Override
+	public String getRelatedAttrName() {
+		return subject.prop.name;
+	}
+
+	@Override
+	public JSONObject getDetails() {
+		return new JSONObject() //
+				.put("subject", subject.locator.toJSON()) //
+				.put("property", subject.prop.toJSON()) //
+				.put("elapsedMs", elapsedMs) //
+				.put("timeoutMs", timeoutMs) //
+		;
+	}
+
+}
@@ -0,0 +1,285 @@
+package tragdor.steps;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import codeprober.AstInfo;
+import tragdor.LocatedProp;
+import tragdor.LocatedPropTable;
+import tragdor.Tragdor;
+import tragdor.config.UserConfig;
+import tragdor.steps.step1.DependencyGraph;
+import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+import tragdor.util.BytecodeFingerprint;
+
+/**
+ * Limits generate to attributes whose equations changed since the previous
+ * run. Each attribute (node type + attribute name) is fingerprinted with
+ * {@link BytecodeFingerprint}. The fingerprints, along with which attributes
+ * depend on which in the dependency graph, are saved in a database directory
+ * with one file per tool config.
+ * <p>
+ * In the next run, attributes with a changed fingerprint and all attributes
+ * that (transitively) depended on them are 'affected'. Only affected
+ * attributes are used as entry points in the traced reference run, and only
+ * affected props are compared in the search. Attributes missing in the database
+ * are always affected. Without a database file, everything is affected.
+ * <p>
+ * Enabled by setting 'tragdor.differential_db' to a directory.
+ */
+public class DifferentialMode {
+
+	private static final String dbDir = System.getProperty("tragdor.differential_db");
+
+	private static DifferentialMode active;
+
+	private final Map<String, String> prevFingerprints;
+	private final Map<String, Set<String>> prevDependents;
+	// Null if everything is affected
+	private final Set<String> affected;
+
+	// Per LocatedPropTable id
+	private final BitSet checkedIds = new BitSet();
+	private final BitSet affectedIds = new BitSet();
+
+	private DifferentialMode(Map<String, String> prevFingerprints, Map<String, Set<String>> prevDependents,
+			Set<String> affected) {
+		this.prevFingerprints = prevFingerprints;
+		this.prevDependents = prevDependents;
+		this.affected = affected;
+	}
+
+	public static boolean isEnabled() {
+		return dbDir != null;
+	}
+
+	private static File getDbFile(int toolIdx) {
+		return new File(dbDir, String.format("tool_%d.json", toolIdx));
+	}
+
+	private static String getKey(String nodeType, String attrName) {
+		return nodeType + "." + attrName;
+	}
+
+	private static String getKey(LocatedProp prop) {
+		return getKey(prop.locator.result.type, prop.prop.name);
+	}
+
+	/**
+	 * Load the database for a tool config, and find the attributes that are
+	 * affected by changes since it was saved.
+	 */
+	public static void prepare(UserConfig config, int toolIdx) {
+		active = null;
+		if (!isEnabled()) {
+			return;
+		}
+		final File dbFile = getDbFile(toolIdx);
+		final Map<String, String> prevFingerprints = new HashMap<>();
+		final Map<String, Set<String>> prevDependents = new HashMap<>();
+		if (!dbFile.exists()) {
+			System.out.println("Differential mode: no fingerprints in " + dbFile + ", searching everything");
+			active = new DifferentialMode(prevFingerprints, prevDependents, null);
+			return;
+		}
+		try {
+			final JSONObject db = new JSONObject(new String(Files.readAllBytes(dbFile.toPath()), StandardCharsets.UTF_8));
+			final JSONObject fingerprints = db.getJSONObject("fingerprints");
+			for (String key : fingerprints.keySet()) {
+				prevFingerprints.put(key, fingerprints.getString(key));
+			}
+			final JSONObject dependents = db.getJSONObject("dependents");
+			for (String key : dependents.keySet()) {
+				final JSONArray arr = dependents.getJSONArray(key);
+				final Set<String> set = new HashSet<>();
+				for (int i = 0; i < arr.length(); ++i) {
+					set.add(arr.getString(i));
+				}
+				prevDependents.put(key, set);
+			}
+		} catch (Exception e) {
+			System.err.println("Failed loading fingerprints from " + dbFile + ", searching everything");
+			e.printStackTrace();
+			active = new DifferentialMode(new HashMap<>(), new HashMap<>(), null);
+			return;
+		}
+
+		final AstInfo info = config.reparse();
+		final Map<String, String> fingerprints = computeFingerprints(info.loadAstClass, prevFingerprints.keySet());
+		final Set<String> changed = new HashSet<>();
+		for (String key : prevFingerprints.keySet()) {
+			final String fingerprint = fingerprints.get(key);
+			if (fingerprint == null || !fingerprint.equals(prevFingerprints.get(key))) {
+				changed.add(key);
+			}
+		}
+
+		// Everything that (transitively) depends on a changed attribute is affected
+		final Set<String> affected = new HashSet<>(changed);
+		final ArrayDeque<String> queue = new ArrayDeque<>(changed);
+		while (!queue.isEmpty()) {
+			final Set<String> dependents = prevDependents.get(queue.removeFirst());
+			if (dependents == null) {
+				continue;
+			}
+			for (String dependent : dependents) {
+				if (affected.add(dependent)) {
+					queue.add(dependent);
+				}
+			}
+		}
+		System.out.printf("Differential mode: %d of %d attribute(s) changed, %d affected%n", changed.size(),
+				prevFingerprints.size(), affected.size());
+		if (Tragdor.verbose) {
+			for (String key : new TreeSet<>(changed)) {
+				System.out.println("  changed: " + key);
+			}
+		}
+		active = new DifferentialMode(prevFingerprints, prevDependents, affected);
+	}
+
+	private static Map<String, String> computeFingerprints(Function<String, Class<?>> loadAstClass,
+			Collection<String> keys) {
+		// Load each node type once
+		final Map<String, Class<?>> types = new HashMap<>();
+		final Set<Class<?>> allClasses = new HashSet<>();
+		for (String key : keys) {
+			final String type = key.substring(0, key.lastIndexOf('.'));
+			if (!types.containsKey(type)) {
+				Class<?> clazz;
+				try {
+					clazz = loadAstClass.apply(type);
+				} catch (RuntimeException e) {
+					clazz = null;
+				}
+				types.put(type, clazz);
+				if (clazz != null) {
+					allClasses.addAll(BytecodeFingerprint.getHierarchy(clazz));
+				}
+			}
+		}
+
+		final BytecodeFingerprint fp = new BytecodeFingerprint();
+		final Map<String, String> ret = new HashMap<>();
+		for (String key : keys) {
+			final int dot = key.lastIndexOf('.');
+			final Class<?> clazz = types.get(key.substring(0, dot));
+			if (clazz == null) {
+				continue;
+			}
+			final String fingerprint = fp.fingerprint(clazz, key.substring(dot + 1), allClasses);
+			if (fingerprint != null) {
+				ret.put(key, fingerprint);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if the attribute should be used in the traced reference run and
+	 *         the search.
+	 */
+	public static boolean isAffected(String nodeType, String attrName) {
+		final DifferentialMode mode = active;
+		if (mode == null || mode.affected == null) {
+			return true;
+		}
+		final String key = getKey(nodeType, attrName);
+		return !mode.prevFingerprints.containsKey(key) || mode.affected.contains(key);
+	}
+
+	/**
+	 * @return the affected props among 'props', in the same order.
+	 */
+	public static int[] filterProps(int[] props) {
+		final DifferentialMode mode = active;
+		if (mode == null || mode.affected == null) {
+			return props;
+		}
+		final int[] ret = new int[props.length];
+		int numAffected = 0;
+		for (int id : props) {
+			if (!mode.checkedIds.get(id)) {
+				mode.checkedIds.set(id);
+				final LocatedProp prop = LocatedPropTable.get(id);
+				if (isAffected(prop.locator.result.type, prop.prop.name)) {
+					mode.affectedIds.set(id);
+				}
+			}
+			if (mode.affectedIds.get(id)) {
+				ret[numAffected++] = id;
+			}
+		}
+		return numAffected == ret.length ? ret : Arrays.copyOf(ret, numAffected);
+	}
+
+	/**
+	 * Save fingerprints and dependencies of the attributes in the previous
+	 * database and in the new reference values, for use by the next run.
+	 */
+	public static void save(UserConfig config, int toolIdx, ReferenceValues refVals) {
+		final DifferentialMode mode = active;
+		if (mode == null) {
+			return;
+		}
+		final Map<String, Set<String>> dependents = new HashMap<>();
+		for (Map.Entry<String, Set<String>> ent : mode.prevDependents.entrySet()) {
+			dependents.put(ent.getKey(), new HashSet<>(ent.getValue()));
+		}
+		final Set<String> keys = new HashSet<>(mode.prevFingerprints.keySet());
+		for (int id : refVals.getUnshuffledEvalOrderIds()) {
+			keys.add(getKey(LocatedPropTable.get(id)));
+		}
+		// Attributes that weren't traced this time keep their old dependencies. For
+		// traced attributes the new dependencies are added to the old, to stay on the
+		// safe side.
+		final DependencyGraph graph = refVals.getDependencyGraph();
+		for (int node = 0; node < graph.getNumNodes(); ++node) {
+			final String fromKey = getKey(graph.getProp(node));
+			keys.add(fromKey);
+			for (int i = 0; i < graph.getNumOutgoing(node); ++i) {
+				final String toKey = getKey(graph.getProp(graph.getOutgoing(node, i)));
+				if (!toKey.equals(fromKey)) {
+					dependents.computeIfAbsent(toKey, x -> new HashSet<>()).add(fromKey);
+				}
+			}
+		}
+
+		final AstInfo info = config.getMostRecentParseResult();
+		final Map<String, String> fingerprints = computeFingerprints(info.loadAstClass, keys);
+		final JSONObject fingerprintsObj = new JSONObject();
+		for (Map.Entry<String, String> ent : fingerprints.entrySet()) {
+			fingerprintsObj.put(ent.getKey(), ent.getValue());
+		}
+		final JSONObject dependentsObj = new JSONObject();
+		for (Map.Entry<String, Set<String>> ent : dependents.entrySet()) {
+			dependentsObj.put(ent.getKey(), new JSONArray(new TreeSet<>(ent.getValue())));
+		}
+
+		final File dbFile = getDbFile(toolIdx);
+		try {
+			dbFile.getAbsoluteFile().getParentFile().mkdirs();
+			Tragdor.saveReportsAsIs(dbFile.getPath(), new JSONObject() //
+					.put("fingerprints", fingerprintsObj) //
+					.put("dependents", dependentsObj));
+			System.out.println("Saved " + fingerprints.size() + " attribute fingerprint(s) to " + dbFile);
+		} catch (Exception e) {
+			System.err.println("Failed saving fingerprints to " + dbFile);
+			e.printStackTrace();
+		}
+	}
+}
@@ -9,7 +9,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,14 +22,16 @@ import codeprober.locator.CreateLocator;
 import codeprober.protocol.data.NodeLocator;
 import codeprober.protocol.data.Property;
 import tragdor.LocatedProp;
+import tragdor.LocatorCache;
 import tragdor.Tragdor;
 import tragdor.config.UserConfig;
 import tragdor.contrib.MinimizeRepros;
 import tragdor.contrib.MinimizeRepros.PerturbedValueSearchResult;
 import tragdor.contrib.ReproDb;
 import tragdor.report.ReportType;
-import tragdor.steps.step1.EstablishReferenceValues;
 import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+import tragdor.steps.step1.ReferenceGraphSidecar;
+import tragdor.steps.step1.ReferenceValueCache;
 import tragdor.util.LocatorStepToStr;
 
 public class Explain {
@@ -102,14 +103,22 @@ public class Explain {
 			if (newRefVals == null) {
 				config.setActiveConfigIndex(rep.has("toolIdx") ? rep.getInt("toolIdx") : 0);
 				System.out.println("Establishing dependency graph..");
-				CreateLocator.identityLocatorCache = new IdentityHashMap<>();
-				newRefVals = EstablishReferenceValues.doit(config);
+				LocatorCache.install();
+				newRefVals = ReferenceGraphSidecar.load(config, new File(srcReportFile), rootReportObj);
+				if (newRefVals == null) {
+					newRefVals = ReferenceValueCache.loadOrEstablish(config);
+				}
 				newRepDb = new ReproDb(newRefVals, new HashMap<>());
 				lastRefVals = newRefVals;
 				lastToolIdx = config.getActiveToolConfigIdx();
 				lastRepDb = newRepDb;
 			}
-			CreateLocator.identityLocatorCache = null;
+			if ("false".equals(System.getProperty("tragdor.explain.locator_cache"))) {
+				CreateLocator.identityLocatorCache = null;
+			} else {
+				// Entries from the reference run belong to another AST, start over
+				LocatorCache.install();
+			}
 
 			System.out.println("Now, actual search time");
 			final PerturbedValueSearchResult perturber = MinimizeRepros.findIntermediatePertuberSteps(subject,
@@ -119,6 +128,10 @@ public class Explain {
 						+ ", trying next one (if any next one exists)");
 				continue;
 			} else {
+				final String locatorCacheStats = LocatorCache.getStats();
+				if (locatorCacheStats != null) {
+					System.out.println(locatorCacheStats);
+				}
 				alreadyExplainedKeys.add(key);
 				final Runnable explainer = () -> {
 					System.out.println("Found " + perturber.steps.size() + " perturbation step(s) for " + key);
@@ -163,6 +176,7 @@ public class Explain {
 				}
 			}
 		}
+		config.shutdownAstPools();
 		for (String key : attemptedExplainedKeys) {
 			if (!alreadyExplainedKeys.contains(key)) {
 				System.out.println("Could not explain " + key);
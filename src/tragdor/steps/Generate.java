@@ -1,16 +1,26 @@
 package tragdor.steps;
 
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.function.LongSupplier;
 
-import codeprober.locator.CreateLocator;
+import tragdor.AttributeProfiler;
+import tragdor.LocatedPropTable;
+import tragdor.LocatorCache;
 import tragdor.Tragdor;
+import tragdor.concurrent.SharedReferenceValues;
+import tragdor.concurrent.WorkQueueClient;
+import tragdor.concurrent.WorkQueueClient.WorkItem;
 import tragdor.config.ToolConfig;
 import tragdor.config.UserConfig;
 import tragdor.steps.step1.EstablishReferenceValues;
 import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+import tragdor.steps.step1.GraphAnalytics;
+import tragdor.steps.step1.ReferenceGraphSidecar;
+import tragdor.steps.step1.ReferenceValueCache;
 import tragdor.steps.step2.CycleBasedSearch.CycleSearchParams;
+import tragdor.steps.step2.SearchStats;
 import tragdor.steps.step2.algorithm.RandomEquationCheck;
 import tragdor.steps.step2.algorithm.RandomInverseDependencyOrder;
 import tragdor.steps.step2.algorithm.RandomOrder;
@@ -20,11 +30,37 @@ import tragdor.util.Exit;
 
 public class Generate {
 
-	public static void doit(UserConfig config) throws Exception {
-		long totalNumMillisPerSearch = (long) (1000.0 * Double.parseDouble( //
+	public static long getTotalSearchBudgetMs(UserConfig config) {
+		return (long) (1000.0 * Double.parseDouble( //
 				System.getProperty("tragdor.search_budget_sec", //
 						System.getProperty("search_budget_sec", //
 								config.getTragdorConfig().optString("search_budget_sec", "60")))));
+	}
+
+	public static void doit(UserConfig config) throws Exception {
+		final WorkQueueClient workQueue = WorkQueueClient.connectIfConfigured();
+		if (workQueue != null) {
+			try (WorkQueueClient queue = workQueue) {
+				WorkItem item;
+				while ((item = queue.next()) != null) {
+					final WorkItem current = item;
+					final long usedMs = runToolConfig(config, item.toolIdx, item.budgetMs, () -> {
+						try {
+							return queue.extend(current);
+						} catch (IOException e) {
+							System.err.println("Failed asking the work queue for more budget");
+							e.printStackTrace();
+							return 0L;
+						}
+					});
+					queue.finished(item, usedMs);
+				}
+			}
+			config.shutdownAstPools();
+			return;
+		}
+
+		long totalNumMillisPerSearch = getTotalSearchBudgetMs(config);
 
 		final List<ToolConfig> toolCfgs = config.getToolConfigs();
 		int toolCfgFrom = 0;
@@ -51,69 +87,118 @@ public class Generate {
 		}
 
 		for (int toolIdx = toolCfgFrom; toolIdx < toolCfgTo; ++toolIdx) {
-			config.setActiveConfigIndex(toolIdx);
-			CreateLocator.identityLocatorCache = new IdentityHashMap<>();
+			runToolConfig(config, toolIdx, totalNumMillisPerSearch / toolCfgs.size(), null);
+		}
+		config.shutdownAstPools();
+	}
 
-			if (toolCfgs.size() > 1) {
-				System.out.println("Running tool # " + (toolIdx + 1) + " / " + toolCfgs.size() + " , args: "
-						+ Arrays.toString(toolCfgs.get(toolIdx).args));
-			}
-			final ReferenceValues refVals;
+	/**
+	 * Establish reference values and search for issues in a single tool config.
+	 *
+	 * @param budgetExtender source of extra search budget, or null.
+	 * @return the number of milliseconds of the search budget that were used.
+	 */
+	private static long runToolConfig(UserConfig config, int toolIdx, long numMillisPerSearch,
+			LongSupplier budgetExtender) throws Exception {
+		final List<ToolConfig> toolCfgs = config.getToolConfigs();
+		config.setActiveConfigIndex(toolIdx);
+		// Props and ids from the previous config are not used anymore
+		LocatedPropTable.clear();
+		LocatorCache.install();
+		DifferentialMode.prepare(config, toolIdx);
 
-			try {
+		if (toolCfgs.size() > 1) {
+			System.out.println("Running tool # " + (toolIdx + 1) + " / " + toolCfgs.size() + " , args: "
+					+ Arrays.toString(toolCfgs.get(toolIdx).args) + " , budget: " + numMillisPerSearch + "ms");
+		}
+		final ReferenceValues refVals;
+
+		try {
+			if (needsReferenceAst(config.getSearchAlgorithm()) || DifferentialMode.isEnabled()) {
+				// Differential reference values only cover the affected attributes, so they
+				// can't be shared with or taken from the cache
 				refVals = Benchmark.tickTockErr("EstablishReferenceValues",
 						() -> EstablishReferenceValues.doit(config));
-			} catch (Exception e) {
-				System.err.println("Failed estabishing reference values for " + toolCfgs.get(toolIdx));
-				System.out.println("Continuing to next tool..");
-				continue;
+			} else {
+				// May be computed by another worker thread, see SharedReferenceValues
+				refVals = SharedReferenceValues.getOrCompute(config, String.valueOf(toolIdx),
+						() -> Benchmark.tickTockErr("EstablishReferenceValues",
+								() -> ReferenceValueCache.loadOrEstablish(config)));
 			}
+		} catch (Exception e) {
+			System.err.println("Failed estabishing reference values for " + toolCfgs.get(toolIdx));
+			System.out.println("Continuing to next tool..");
+			return 0L;
+		}
+		ReferenceGraphSidecar.write(config, toolIdx, refVals);
+		if (refVals.getDependencyGraph().getNumNodes() > 0) {
+			GraphAnalytics.record(toolIdx, refVals.getGraphAnalytics());
+		}
 
-			if (refVals.anyEntryPropThrewAnException) {
-				System.out.println(
-						"Not performing search with this tool config - entrypoint attribute threw an exception");
-				continue;
-			}
+		if (refVals.anyEntryPropThrewAnException) {
+			System.out.println(
+					"Not performing search with this tool config - entrypoint attribute threw an exception");
+			return 0L;
+		}
 
-			final long numMillisPerSearch = totalNumMillisPerSearch / toolCfgs.size();
+		final long searchStartMs = System.currentTimeMillis();
+		final CycleSearchParams params = new CycleSearchParams(refVals, numMillisPerSearch,
+				config.getMostRecentParseResult()).setBudgetExtender(budgetExtender);
+		switch (config.getSearchAlgorithm()) {
+		case "global_random_order": // Old name, fall through
+		case "random_order": {
+			Benchmark.tickTockErrv(RandomOrder.class.getSimpleName(), () -> new RandomOrder(params).run());
+			break;
+		}
+		case "global_user_order": // Old name, fall-through
+		case "user_order": {
+			Benchmark.tickTockErrv(UserOrder.class.getSimpleName(),
+					() -> UserOrder.doit(refVals, config, numMillisPerSearch));
+			break;
+		}
+		case "spotcheck_random_order": // Old name, fall-through
+		case "rec":
+		case "random_equation_check": {
+			Benchmark.tickTockErrv(RandomEquationCheck.class.getSimpleName(),
+					() -> new RandomEquationCheck(params).run());
 
-			final CycleSearchParams params = new CycleSearchParams(refVals, numMillisPerSearch,
-					config.getMostRecentParseResult());
-			switch (config.getSearchAlgorithm()) {
-			case "global_random_order": // Old name, fall through
-			case "random_order": {
-				Benchmark.tickTockErrv(RandomOrder.class.getSimpleName(), () -> new RandomOrder(params).run());
-				break;
-			}
-			case "global_user_order": // Old name, fall-through
-			case "user_order": {
-				Benchmark.tickTockErrv(UserOrder.class.getSimpleName(),
-						() -> UserOrder.doit(refVals, config, numMillisPerSearch));
-				break;
-			}
-			case "spotcheck_random_order": // Old name, fall-through
-			case "rec":
-			case "random_equation_check": {
-				Benchmark.tickTockErrv(RandomEquationCheck.class.getSimpleName(),
-						() -> new RandomEquationCheck(params).run());
+			break;
+		}
+		case "depgraphoutgoing_random_order": // Old name, fall-through
+		case "rido":
+		case "random_inverse_dependency_order": {
+			Benchmark.tickTockErrv(RandomInverseDependencyOrder.class.getSimpleName(),
+					() -> new RandomInverseDependencyOrder(params).run());
+			break;
+		}
 
-				break;
-			}
-			case "depgraphoutgoing_random_order": // Old name, fall-through
-			case "rido":
-			case "random_inverse_dependency_order": {
-				Benchmark.tickTockErrv(RandomInverseDependencyOrder.class.getSimpleName(),
-						() -> new RandomInverseDependencyOrder(params).run());
-				break;
-			}
+		default: {
+			System.out.println("Unexpected value for 'search_algorithm'");
+			throw new Error("Bad search_algorithm");
+		}
 
-			default: {
-				System.out.println("Unexpected value for 'search_algorithm'");
-				throw new Error("Bad search_algorithm");
-			}
+		}
+		final long usedMs = System.currentTimeMillis() - searchStartMs;
+		DifferentialMode.save(config, toolIdx, refVals);
+		System.out.println(LocatorCache.getStats());
+		SearchStats.print();
+		AttributeProfiler.report();
+		Tragdor.saveReports();
+		return usedMs;
+	}
 
-			}
-			Tragdor.saveReports();
+	/**
+	 * Some searches work on the AST that was used to establish the reference
+	 * values. Such values cannot be taken from another worker.
+	 */
+	private static boolean needsReferenceAst(String searchAlgorithm) {
+		switch (searchAlgorithm) {
+		case "spotcheck_random_order":
+		case "rec":
+		case "random_equation_check":
+			return true;
+		default:
+			return false;
 		}
 	}
 }
@@ -0,0 +1,284 @@
+package tragdor.steps.step1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import codeprober.protocol.BinaryInputStream;
+import codeprober.protocol.BinaryOutputStream;
+import tragdor.LocatedProp;
+
+/**
+ * Dependency graph between attribute instances, in compressed sparse row (CSR)
+ * form. Nodes are identified by dense int ids. An edge from A to B means that A
+ * depends on B. Both the forward (outgoing) and reverse (incoming) adjacency is
+ * stored, as an offset array and a target array each.
+ * <p>
+ * The adjacency arrays can optionally be memory-mapped, moving them out of the
+ * Java heap. See {@link #memoryMappedIfEnabled()}.
+ */
+public class DependencyGraph {
+
+	private final LocatedProp[] props;
+	private final int[] propIds;
+	// LocatedPropTable id -> node id
+	private final Map<Integer, Integer> nodeIds;
+	private final IntBuffer outOffsets;
+	private final IntBuffer outTargets;
+	private final IntBuffer inOffsets;
+	private final IntBuffer inTargets;
+	private final boolean memoryMapped;
+
+	private DependencyGraph(LocatedProp[] props, Map<Integer, Integer> nodeIds, IntBuffer outOffsets,
+			IntBuffer outTargets, IntBuffer inOffsets, IntBuffer inTargets, boolean memoryMapped) {
+		this.props = props;
+		this.propIds = new int[props.length];
+		for (int i = 0; i < props.length; ++i) {
+			propIds[i] = props[i].getId();
+		}
+		this.nodeIds = nodeIds;
+		this.outOffsets = outOffsets;
+		this.outTargets = outTargets;
+		this.inOffsets = inOffsets;
+		this.inTargets = inTargets;
+		this.memoryMapped = memoryMapped;
+	}
+
+	public int getNumNodes() {
+		return props.length;
+	}
+
+	public int getNumEdges() {
+		return outTargets.capacity();
+	}
+
+	public LocatedProp getProp(int node) {
+		return props[node];
+	}
+
+	/**
+	 * @return the {@link tragdor.LocatedPropTable} id of the prop for the given
+	 *         node. Not the same as the node id.
+	 */
+	public int getPropId(int node) {
+		return propIds[node];
+	}
+
+	public List<LocatedProp> getProps() {
+		return Collections.unmodifiableList(Arrays.asList(props));
+	}
+
+	/**
+	 * @return the id of the node for the given prop, or -1 if it is not in the
+	 *         graph.
+	 */
+	public int getNodeId(LocatedProp prop) {
+		final Integer id = nodeIds.get(prop.getId());
+		return id != null ? id : -1;
+	}
+
+	public int getNumOutgoing(int node) {
+		return outOffsets.get(node + 1) - outOffsets.get(node);
+	}
+
+	public int getOutgoing(int node, int edgeIdx) {
+		return outTargets.get(outOffsets.get(node) + edgeIdx);
+	}
+
+	public int getNumIncoming(int node) {
+		return inOffsets.get(node + 1) - inOffsets.get(node);
+	}
+
+	public int getIncoming(int node, int edgeIdx) {
+		return inTargets.get(inOffsets.get(node) + edgeIdx);
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	public String simpleIdentity(int node) {
+		final LocatedProp identity = props[node];
+		final String[] typeParts = identity.locator.result.type.split("\\.");
+		return String.format("%s.%s",
+				typeParts.length == 0 ? identity.locator.result.type : typeParts[typeParts.length - 1],
+				identity.prop.name);
+	}
+
+	/**
+	 * Move the adjacency arrays to a memory-mapped temporary file if
+	 * 'tragdor.mmap_dependency_graph' is set to true. Returns this graph otherwise,
+	 * or if mapping fails.
+	 */
+	public DependencyGraph memoryMappedIfEnabled() {
+		if (memoryMapped || !"true".equals(System.getProperty("tragdor.mmap_dependency_graph"))) {
+			return this;
+		}
+		try {
+			final File file = File.createTempFile("tragdor-depgraph", ".bin");
+			file.deleteOnExit();
+			return memoryMapped(file);
+		} catch (IOException e) {
+			System.err.println("Failed memory-mapping dependency graph, keeping it on the heap");
+			e.printStackTrace();
+			return this;
+		}
+	}
+
+	public DependencyGraph memoryMapped(File file) throws IOException {
+		final IntBuffer[] arrays = new IntBuffer[] { outOffsets, outTargets, inOffsets, inTargets };
+		final IntBuffer[] mapped = new IntBuffer[arrays.length];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel ch = raf.getChannel()) {
+			long pos = 0;
+			for (int i = 0; i < arrays.length; ++i) {
+				final long numBytes = 4L * arrays[i].capacity();
+				final ByteBuffer buf = ch.map(MapMode.READ_WRITE, pos, numBytes).order(ByteOrder.nativeOrder());
+				final IntBuffer src = arrays[i].duplicate();
+				src.clear();
+				buf.asIntBuffer().put(src);
+				mapped[i] = buf.asIntBuffer();
+				pos += numBytes;
+			}
+		}
+		// The mappings stay valid after the channel is closed
+		return new DependencyGraph(props, nodeIds, mapped[0], mapped[1], mapped[2], mapped[3], true);
+	}
+
+	/**
+	 * Write the graph, using an external identifier for the props. The format is
+	 * the number of nodes, the prop identifier of each node, and then the number of
+	 * outgoing edges plus the edge targets for each node.
+	 */
+	public void writeTo(BinaryOutputStream dst, Function<LocatedProp, Integer> identifier) throws IOException {
+		dst.writeInt(props.length);
+		for (LocatedProp prop : props) {
+			dst.writeInt(identifier.apply(prop));
+		}
+		for (int node = 0; node < props.length; ++node) {
+			final int numOut = getNumOutgoing(node);
+			dst.writeInt(numOut);
+			for (int i = 0; i < numOut; ++i) {
+				dst.writeInt(getOutgoing(node, i));
+			}
+		}
+	}
+
+	public static DependencyGraph readFrom(BinaryInputStream src, Function<Integer, LocatedProp> identifier)
+			throws IOException {
+		final Builder builder = new Builder();
+		final int numNodes = src.readInt();
+		for (int i = 0; i < numNodes; ++i) {
+			builder.getOrCreateNode(identifier.apply(src.readInt()));
+		}
+		for (int node = 0; node < numNodes; ++node) {
+			final int numOut = src.readInt();
+			for (int i = 0; i < numOut; ++i) {
+				builder.addEdge(node, src.readInt());
+			}
+		}
+		return builder.build();
+	}
+
+	public static class Builder {
+		// Keyed by the props themselves rather than their LocatedPropTable ids. The
+		// table is global and synchronized, builders filled in parallel would
+		// otherwise take turns interning. Props are interned in build() instead.
+		private final Map<LocatedProp, Integer> nodeIndexes = new HashMap<>();
+		private final List<LocatedProp> props = new ArrayList<>();
+		private long[] edges = new long[1024];
+		private int numEdges = 0;
+
+		public int getOrCreateNode(LocatedProp prop) {
+			Integer id = nodeIndexes.get(prop);
+			if (id == null) {
+				id = props.size();
+				nodeIndexes.put(prop, id);
+				props.add(prop);
+			}
+			return id;
+		}
+
+		public int getNumNodes() {
+			return props.size();
+		}
+
+		/**
+		 * Add all nodes and edges of another builder. Nodes that don't exist yet are
+		 * created in the order they were created in the other builder.
+		 */
+		public void merge(Builder other) {
+			final int[] idMap = new int[other.props.size()];
+			for (int i = 0; i < idMap.length; ++i) {
+				idMap[i] = getOrCreateNode(other.props.get(i));
+			}
+			for (int i = 0; i < other.numEdges; ++i) {
+				addEdge(idMap[(int) (other.edges[i] >>> 32)], idMap[(int) other.edges[i]]);
+			}
+		}
+
+		/**
+		 * Add an edge, meaning that 'from' depends on 'to'. Duplicate edges are
+		 * removed when building the graph, edges to self are ignored.
+		 */
+		public void addEdge(int from, int to) {
+			if (from == to) {
+				return;
+			}
+			if (numEdges == edges.length) {
+				edges = Arrays.copyOf(edges, edges.length * 2);
+			}
+			edges[numEdges++] = ((long) from << 32) | (to & 0xFFFF_FFFFL);
+		}
+
+		public DependencyGraph build() {
+			final int numNodes = props.size();
+			// Intern in node order, so ids are assigned in the same order every run
+			final Map<Integer, Integer> nodeIds = new HashMap<>();
+			for (int i = 0; i < numNodes; ++i) {
+				nodeIds.put(props.get(i).getId(), i);
+			}
+			Arrays.sort(edges, 0, numEdges);
+			int numUnique = 0;
+			for (int i = 0; i < numEdges; ++i) {
+				if (numUnique == 0 || edges[numUnique - 1] != edges[i]) {
+					edges[numUnique++] = edges[i];
+				}
+			}
+
+			final int[] outOffsets = new int[numNodes + 1];
+			final int[] inOffsets = new int[numNodes + 1];
+			for (int i = 0; i < numUnique; ++i) {
+				++outOffsets[(int) (edges[i] >>> 32) + 1];
+				++inOffsets[(int) edges[i] + 1];
+			}
+			for (int i = 0; i < numNodes; ++i) {
+				outOffsets[i + 1] += outOffsets[i];
+				inOffsets[i + 1] += inOffsets[i];
+			}
+			final int[] outTargets = new int[numUnique];
+			final int[] inTargets = new int[numUnique];
+			final int[] inFill = Arrays.copyOf(inOffsets, numNodes);
+			for (int i = 0; i < numUnique; ++i) {
+				final int from = (int) (edges[i] >>> 32);
+				final int to = (int) edges[i];
+				// Edges are sorted by source, so the forward targets can be filled in order
+				outTargets[i] = to;
+				inTargets[inFill[to]++] = from;
+			}
+			return new DependencyGraph(props.toArray(new LocatedProp[numNodes]), nodeIds, IntBuffer.wrap(outOffsets),
+					IntBuffer.wrap(outTargets), IntBuffer.wrap(inOffsets), IntBuffer.wrap(inTargets), false);
+		}
+	}
+}
@@ -2,26 +2,33 @@ package tragdor.steps.step1;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.json.JSONException;
 
 import codeprober.protocol.data.NodeLocator;
 import codeprober.protocol.data.TALStep;
+import tragdor.AttributeProfiler;
 import tragdor.EvaluatedValue;
 import tragdor.LocatedProp;
+import tragdor.LocatedPropTable;
+import tragdor.NodeIndex;
 import tragdor.PropGathering;
 import tragdor.Tragdor;
 import tragdor.config.EntryPointConfig;
 import tragdor.config.UserConfig;
 import tragdor.util.Benchmark;
+import tragdor.util.StringPoolingDataDecoder;
+import tragdor.util.StringPoolingDataEncoder;
 
 public class EstablishReferenceValues {
 
@@ -29,7 +36,7 @@ public class EstablishReferenceValues {
 		System.out.println("Establishing reference values..");
 		final ReferenceValues pags = Benchmark.tickTockErr("gatherAllProps", () -> gatherAllPropsCached(config, true));
 
-		System.out.println("Gathered " + pags.referenceValues.size() + " values..");
+		System.out.println("Gathered " + pags.getNumValues() + " values..");
 
 		return pags;
 	}
@@ -42,116 +49,242 @@ public class EstablishReferenceValues {
 		PropGathering pg = new PropGathering(values, collectTraceValues, config);
 
 		final boolean[] anyEntryPointThrewAnExceptionPtr = new boolean[] { false };
-		final Map<LocatedProp, DependencyGraphNode> depGraphEntries = //
-				Benchmark.tickTock("evaluateTraced",
-						() -> pg.evaluateTracedWithFullDependencyGraph(rootLocator, (info, tb) -> {
-							for (EntryPointConfig entry : config.getEntryPoints()) {
-								System.out.println("Gather from " + entry);
-								pg.gatherWithoutTracingOrFlushing(info, entry.predicate, 0, Integer.MAX_VALUE,
-										entry.limit, entry.property, tb, anyEntryPointThrewAnExceptionPtr);
-							}
-						}));
+		final String prevProfilePhase = AttributeProfiler.setPhase(AttributeProfiler.PHASE_REFERENCE);
+		final DependencyGraph depGraph;
+		try {
+			depGraph = Benchmark.tickTock("evaluateTraced",
+					() -> pg.evaluateTracedWithFullDependencyGraph(rootLocator, (info, tb) -> {
+						for (EntryPointConfig entry : config.getEntryPoints()) {
+							System.out.println("Gather from " + entry);
+							pg.gatherWithoutTracingOrFlushing(info, entry.predicate, 0, Integer.MAX_VALUE,
+									entry.limit, entry.property, tb, anyEntryPointThrewAnExceptionPtr);
+						}
+					}));
+		} finally {
+			AttributeProfiler.setPhase(prevProfilePhase);
+		}
 
 		System.out.println("Gathered " + values.size() + " props..");
 		if (Tragdor.verbose) {
 			Benchmark.tickTock("dumpGraphStatistics", () -> {
-				dumpGraphStatistics(depGraphEntries.values());
+				new GraphAnalytics(depGraph).print();
 				return null;
 			});
 		}
-		return new ReferenceValues(config, values, depGraphEntries, anyEntryPointThrewAnExceptionPtr[0]);
-	}
-
-	private static void dumpGraphStatistics(Collection<DependencyGraphNode> graph) {
-		System.out.println("Number of nodes in dependency graph: " + graph.size());
-		System.out.println("Num leaf nodes: "
-				+ graph.stream().map(x -> x.outgoingEdges.size()).reduce(0, (a, b) -> a + (b == 0 ? 1 : 0)));
-		if (graph.isEmpty()) {
-			return;
-		}
-		final List<Integer> outgoingEdgeCount = graph.stream().map(x -> x.outgoingEdges.size())
-				.collect(Collectors.toList());
-		Collections.sort(outgoingEdgeCount);
-		System.out.println("Min outgoing edge count: " + outgoingEdgeCount.get(0));
-		System.out.println("Median outgoing edge count: " + outgoingEdgeCount.get(outgoingEdgeCount.size() / 2));
-		System.out.println("Average edge count: "
-				+ (outgoingEdgeCount.stream().reduce(0, (a, b) -> a + b) / outgoingEdgeCount.size()));
-		System.out.println("Max outgoing edge count: " + outgoingEdgeCount.get(outgoingEdgeCount.size() - 1));
-
-		final List<Integer> incomingEdgeCount = graph.stream().map(x -> x.incomingEdges.size())
-				.collect(Collectors.toList());
-		Collections.sort(incomingEdgeCount);
-		System.out.println("Min incoming edge count: " + incomingEdgeCount.get(0));
-		System.out.println("Median incoming edge count: " + incomingEdgeCount.get(incomingEdgeCount.size() / 2));
-		System.out.println("Average edge count: "
-				+ (incomingEdgeCount.stream().reduce(0, (a, b) -> a + b) / incomingEdgeCount.size()));
-		System.out.println("Max incoming edge count: " + incomingEdgeCount.get(incomingEdgeCount.size() - 1));
+		final ReferenceValues ret = new ReferenceValues(config, values, depGraph.memoryMappedIfEnabled(),
+				anyEntryPointThrewAnExceptionPtr[0]);
+		ret.setEvaluationCosts(pg.getEvaluationCosts());
+		return ret;
 	}
 
 	public static class ReferenceValues {
 
 		private final UserConfig config;
-		private final Map<LocatedProp, EvaluatedValue> referenceValues;
-		private final List<LocatedProp> referenceEvalOrder;
-		private final Map<LocatedProp, DependencyGraphNode> dependencyGraphNodes;
+		private final ReferenceValueStore referenceValues = new ReferenceValueStore();
+		private final int[] referenceEvalOrder;
+		private final DependencyGraph dependencyGraph;
 		private final Map<Long, List<LocatedProp>> evalOrderCache = new HashMap<>();
 		public final boolean anyEntryPropThrewAnException;
 
-		private List<DependencyGraphNode> dependencyGraphNodesCache;
+		private int[] dependencyGraphRootsCache;
+		// Indexed by LocatedPropTable id, -1 if unknown. Not included in toBytes()
+		private long[] evaluationCostNanos = new long[0];
+		private int[][] nodeGroupsCache;
+		private GraphAnalytics graphAnalyticsCache;
 
 		public ReferenceValues(UserConfig config, Map<LocatedProp, EvaluatedValue> values,
-				Map<LocatedProp, DependencyGraphNode> dependencyGraphNodes, boolean anyEntryPropThrewAnException) {
+				DependencyGraph dependencyGraph, boolean anyEntryPropThrewAnException) {
+			this(config, values, new ArrayList<>(values.keySet()), dependencyGraph, anyEntryPropThrewAnException);
+		}
+
+		private ReferenceValues(UserConfig config, Map<LocatedProp, EvaluatedValue> values,
+				List<LocatedProp> referenceEvalOrder, DependencyGraph dependencyGraph,
+				boolean anyEntryPropThrewAnException) {
 			this.config = config;
-			this.referenceValues = values;
-			this.referenceEvalOrder = new ArrayList<>(values.keySet());
-			this.dependencyGraphNodes = dependencyGraphNodes;
+			this.referenceEvalOrder = new int[referenceEvalOrder.size()];
+			for (int i = 0; i < this.referenceEvalOrder.length; ++i) {
+				final LocatedProp prop = referenceEvalOrder.get(i);
+				this.referenceEvalOrder[i] = prop.getId();
+				referenceValues.put(prop.getId(), values.get(prop));
+			}
+			referenceValues.trim();
+			if (Tragdor.verbose) {
+				System.out.printf("Stored %d reference values as %d unique values in %d bytes%n",
+						referenceValues.getNumValues(), referenceValues.getNumUniqueValues(),
+						referenceValues.getArenaSize());
+			}
+			this.dependencyGraph = dependencyGraph;
 			this.anyEntryPropThrewAnException = anyEntryPropThrewAnException;
 		}
 
+		/**
+		 * Encode the values, eval order and dependency graph. The result only contains
+		 * plain data, so it can be decoded in another classloader (or process).
+		 */
+		public byte[] toBytes() throws IOException {
+			// Each prop is written once, the graph refers to them by index
+			final List<LocatedProp> props = new ArrayList<>(referenceEvalOrder.length);
+			final Map<Integer, Integer> propIdxs = new HashMap<>();
+			for (int id : referenceEvalOrder) {
+				propIdxs.put(id, props.size());
+				props.add(LocatedPropTable.get(id));
+			}
+			for (int node = 0; node < dependencyGraph.getNumNodes(); ++node) {
+				final int id = dependencyGraph.getPropId(node);
+				if (!propIdxs.containsKey(id)) {
+					propIdxs.put(id, props.size());
+					props.add(dependencyGraph.getProp(node));
+				}
+			}
+
+			final StringPoolingDataEncoder dst = new StringPoolingDataEncoder();
+			dst.writeBoolean(anyEntryPropThrewAnException);
+			dst.writeInt(props.size());
+			dst.writeInt(referenceEvalOrder.length);
+			for (LocatedProp prop : props) {
+				prop.writeTo(dst);
+			}
+			for (int id : referenceEvalOrder) {
+				referenceValues.get(id).writeTo(dst);
+			}
+			dependencyGraph.writeTo(dst, prop -> propIdxs.get(prop.getId()));
+			return dst.getResult();
+		}
+
+		public static ReferenceValues fromBytes(UserConfig config, byte[] bytes) throws IOException {
+			final StringPoolingDataDecoder src = new StringPoolingDataDecoder(bytes);
+			final boolean anyEntryPropThrewAnException = src.readBoolean();
+			final int numProps = src.readInt();
+			final int numValues = src.readInt();
+			final List<LocatedProp> props = new ArrayList<>(numProps);
+			for (int i = 0; i < numProps; ++i) {
+				props.add(new LocatedProp(src));
+			}
+			final Map<LocatedProp, EvaluatedValue> values = new HashMap<>();
+			final List<LocatedProp> evalOrder = new ArrayList<>(props.subList(0, numValues));
+			for (LocatedProp prop : evalOrder) {
+				values.put(prop, new EvaluatedValue(src));
+			}
+			final DependencyGraph graph = DependencyGraph.readFrom(src, props::get);
+			return new ReferenceValues(config, values, evalOrder, graph.memoryMappedIfEnabled(),
+					anyEntryPropThrewAnException);
+		}
+
 		public UserConfig getConfig() {
 			return config;
 		}
 
-		public List<DependencyGraphNode> getDependencyGraphNodes() {
-			return new ArrayList<>(dependencyGraphNodes.values());
+		public DependencyGraph getDependencyGraph() {
+			return dependencyGraph;
 		}
 
-		public List<DependencyGraphNode> getDependencyGraphRoots() {
-			if (dependencyGraphNodesCache == null) {
+		/**
+		 * @return ids of all nodes in the dependency graph that are entry points, and
+		 *         that nothing else depends on.
+		 */
+		public int[] getDependencyGraphRoots() {
+			if (dependencyGraphRootsCache == null) {
 				final Set<String> entryPointNames = config.getEntryPoints().stream().map(x -> x.property)
 						.collect(Collectors.toSet());
 				final boolean allowAny = entryPointNames.contains("*");
 
-				dependencyGraphNodesCache = dependencyGraphNodes.values().stream() //
-						.filter(x -> x.incomingEdges.isEmpty()
-								&& (allowAny || entryPointNames.contains(x.identity.prop.name))) //
-						.collect(Collectors.toList());
+				dependencyGraphRootsCache = IntStream.range(0, dependencyGraph.getNumNodes()) //
+						.filter(x -> dependencyGraph.getNumIncoming(x) == 0
+								&& (allowAny || entryPointNames.contains(dependencyGraph.getProp(x).prop.name))) //
+						.toArray();
 			}
-			return dependencyGraphNodesCache;
+			return dependencyGraphRootsCache;
 
 		}
 
-		public DependencyGraphNode getDependencyNodeForProp(LocatedProp prop) {
-			return dependencyGraphNodes.get(prop);
+		public synchronized GraphAnalytics getGraphAnalytics() {
+			if (graphAnalyticsCache == null) {
+				graphAnalyticsCache = new GraphAnalytics(dependencyGraph);
+			}
+			return graphAnalyticsCache;
 		}
 
-		public List<LocatedProp> getUnshuffledEvalOrder() {
+		public int getNumValues() {
+			return referenceEvalOrder.length;
+		}
+
+		/**
+		 * @return {@link LocatedPropTable} ids of all props with a reference value, in
+		 *         the order they were gathered. Must not be modified.
+		 */
+		public int[] getUnshuffledEvalOrderIds() {
 			return referenceEvalOrder;
 		}
 
+		/**
+		 * @return a fresh copy of the eval order, shuffled by the given seed. The order
+		 *         for a seed is the same as {@link #getEvalOrder(long)} produces.
+		 */
+		public int[] getEvalOrderIds(long seed) {
+			final int[] cpy = referenceEvalOrder.clone();
+			LocatedPropTable.shuffle(cpy, new Random(seed));
+			return cpy;
+		}
+
+		public void setEvaluationCosts(Map<Integer, Long> costs) {
+			int maxId = -1;
+			for (int id : costs.keySet()) {
+				maxId = Math.max(maxId, id);
+			}
+			evaluationCostNanos = new long[maxId + 1];
+			Arrays.fill(evaluationCostNanos, -1L);
+			for (Map.Entry<Integer, Long> ent : costs.entrySet()) {
+				evaluationCostNanos[ent.getKey()] = ent.getValue();
+			}
+		}
+
+		/**
+		 * @return the time it took to evaluate the prop in the reference run, or -1
+		 *         if unknown (for example when the reference values were loaded from a
+		 *         cache).
+		 */
+		public long getEvaluationCostNanos(int propId) {
+			return propId < evaluationCostNanos.length ? evaluationCostNanos[propId] : -1L;
+		}
+
+		/**
+		 * @return {@link LocatedPropTable} ids of all props with a reference value,
+		 *         grouped by the node they belong to. Must not be modified.
+		 */
+		public int[][] getNodeGroups() {
+			if (nodeGroupsCache == null) {
+				final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+				for (int id : referenceEvalOrder) {
+					groups.computeIfAbsent(NodeIndex.getLocatorKey(LocatedPropTable.get(id).locator),
+							x -> new ArrayList<>()).add(id);
+				}
+				nodeGroupsCache = groups.values().stream() //
+						.map(x -> x.stream().mapToInt(Integer::intValue).toArray()) //
+						.toArray(int[][]::new);
+			}
+			return nodeGroupsCache;
+		}
+
 		public List<LocatedProp> getEvalOrder(long seed) {
 			final List<LocatedProp> cached = evalOrderCache.get(seed);
 			if (cached != null) {
 				return cached;
 			}
-			final List<LocatedProp> cpy = new ArrayList<>(referenceEvalOrder);
-			Collections.shuffle(cpy, new Random(seed));
-			evalOrderCache.put(seed, cpy);
-			return cpy;
+			final int[] ids = getEvalOrderIds(seed);
+			final List<LocatedProp> ret = new ArrayList<>(ids.length);
+			for (int id : ids) {
+				ret.add(LocatedPropTable.get(id));
+			}
+			evalOrderCache.put(seed, ret);
+			return ret;
+		}
+
+		public EvaluatedValue getReferenceValue(int propId) {
+			return referenceValues.get(propId);
 		}
 
 		public EvaluatedValue getReferenceValue(LocatedProp prop) {
-			return referenceValues.get(prop);
+			return getReferenceValue(prop.getId());
 		}
 	}
 }
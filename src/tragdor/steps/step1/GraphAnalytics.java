@@ -0,0 +1,416 @@
+package tragdor.steps.step1;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Structural analysis of a {@link DependencyGraph}, in O(V+E) time over plain
+ * int arrays:
+ * <ul>
+ * <li>Strongly connected components (Tarjan's algorithm, iterative).
+ * <li>The condensation DAG, where each component is collapsed to a single node.
+ * <li>Depth levels in the condensation. Components that depend on nothing are at
+ * level 0, others are one level above their deepest dependency.
+ * <li>Fan-out/fan-in histograms.
+ * </ul>
+ * Components are numbered in the order Tarjan's algorithm finishes them, which
+ * means that the dependencies of a component always have lower numbers.
+ */
+public class GraphAnalytics {
+
+	private final DependencyGraph graph;
+	private final int numComponents;
+	private final int[] componentOf;
+	// Members of each component, as offsets into componentMembers
+	private final int[] memberOffsets;
+	private final int[] componentMembers;
+	private final int[] compOutOffsets;
+	private final int[] compOutTargets;
+	private final int[] compInOffsets;
+	private final int[] compInTargets;
+	private final int[] depths;
+	private final int maxDepth;
+
+	private static final Map<Integer, JSONObject> recordedSummaries = new LinkedHashMap<>();
+
+	public GraphAnalytics(DependencyGraph graph) {
+		this.graph = graph;
+		final int numNodes = graph.getNumNodes();
+
+		// Tarjan's algorithm, with an explicit call stack
+		componentOf = new int[numNodes];
+		Arrays.fill(componentOf, -1);
+		final int[] index = new int[numNodes];
+		Arrays.fill(index, -1);
+		final int[] low = new int[numNodes];
+		final boolean[] onStack = new boolean[numNodes];
+		final int[] stack = new int[numNodes];
+		int stackSize = 0;
+		final int[] callNodes = new int[numNodes];
+		final int[] callEdgePos = new int[numNodes];
+		int callSize = 0;
+		int nextIndex = 0;
+		int numComps = 0;
+
+		for (int start = 0; start < numNodes; ++start) {
+			if (index[start] != -1) {
+				continue;
+			}
+			index[start] = low[start] = nextIndex++;
+			stack[stackSize++] = start;
+			onStack[start] = true;
+			callNodes[callSize] = start;
+			callEdgePos[callSize] = 0;
+			++callSize;
+
+			while (callSize > 0) {
+				final int v = callNodes[callSize - 1];
+				if (callEdgePos[callSize - 1] < graph.getNumOutgoing(v)) {
+					final int w = graph.getOutgoing(v, callEdgePos[callSize - 1]++);
+					if (index[w] == -1) {
+						index[w] = low[w] = nextIndex++;
+						stack[stackSize++] = w;
+						onStack[w] = true;
+						callNodes[callSize] = w;
+						callEdgePos[callSize] = 0;
+						++callSize;
+					} else if (onStack[w]) {
+						low[v] = Math.min(low[v], index[w]);
+					}
+					continue;
+				}
+				if (low[v] == index[v]) {
+					int w;
+					do {
+						w = stack[--stackSize];
+						onStack[w] = false;
+						componentOf[w] = numComps;
+					} while (w != v);
+					++numComps;
+				}
+				--callSize;
+				if (callSize > 0) {
+					final int u = callNodes[callSize - 1];
+					low[u] = Math.min(low[u], low[v]);
+				}
+			}
+		}
+		numComponents = numComps;
+
+		// Group nodes by component
+		memberOffsets = new int[numComponents + 1];
+		for (int node = 0; node < numNodes; ++node) {
+			++memberOffsets[componentOf[node] + 1];
+		}
+		for (int c = 0; c < numComponents; ++c) {
+			memberOffsets[c + 1] += memberOffsets[c];
+		}
+		componentMembers = new int[numNodes];
+		final int[] fill = Arrays.copyOf(memberOffsets, numComponents);
+		for (int node = 0; node < numNodes; ++node) {
+			componentMembers[fill[componentOf[node]]++] = node;
+		}
+
+		// Condensation edges, without duplicates. 'lastSeen' remembers which component
+		// last added an edge to each target component.
+		final int[] lastSeen = new int[numComponents];
+		Arrays.fill(lastSeen, -1);
+		compOutOffsets = new int[numComponents + 1];
+		for (int c = 0; c < numComponents; ++c) {
+			int numOut = 0;
+			for (int i = memberOffsets[c]; i < memberOffsets[c + 1]; ++i) {
+				final int node = componentMembers[i];
+				for (int j = 0; j < graph.getNumOutgoing(node); ++j) {
+					final int tc = componentOf[graph.getOutgoing(node, j)];
+					if (tc != c && lastSeen[tc] != c) {
+						lastSeen[tc] = c;
+						++numOut;
+					}
+				}
+			}
+			compOutOffsets[c + 1] = compOutOffsets[c] + numOut;
+		}
+		compOutTargets = new int[compOutOffsets[numComponents]];
+		Arrays.fill(lastSeen, -1);
+		for (int c = 0; c < numComponents; ++c) {
+			int pos = compOutOffsets[c];
+			for (int i = memberOffsets[c]; i < memberOffsets[c + 1]; ++i) {
+				final int node = componentMembers[i];
+				for (int j = 0; j < graph.getNumOutgoing(node); ++j) {
+					final int tc = componentOf[graph.getOutgoing(node, j)];
+					if (tc != c && lastSeen[tc] != c) {
+						lastSeen[tc] = c;
+						compOutTargets[pos++] = tc;
+					}
+				}
+			}
+		}
+		compInOffsets = new int[numComponents + 1];
+		for (int tc : compOutTargets) {
+			++compInOffsets[tc + 1];
+		}
+		for (int c = 0; c < numComponents; ++c) {
+			compInOffsets[c + 1] += compInOffsets[c];
+		}
+		compInTargets = new int[compOutTargets.length];
+		final int[] inFill = Arrays.copyOf(compInOffsets, numComponents);
+		for (int c = 0; c < numComponents; ++c) {
+			for (int i = compOutOffsets[c]; i < compOutOffsets[c + 1]; ++i) {
+				compInTargets[inFill[compOutTargets[i]]++] = c;
+			}
+		}
+
+		// Dependencies have lower component numbers, so one pass is enough
+		depths = new int[numComponents];
+		int deepest = 0;
+		for (int c = 0; c < numComponents; ++c) {
+			int depth = 0;
+			for (int i = compOutOffsets[c]; i < compOutOffsets[c + 1]; ++i) {
+				depth = Math.max(depth, depths[compOutTargets[i]] + 1);
+			}
+			depths[c] = depth;
+			deepest = Math.max(deepest, depth);
+		}
+		maxDepth = deepest;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public int getComponent(int node) {
+		return componentOf[node];
+	}
+
+	public int getComponentSize(int component) {
+		return memberOffsets[component + 1] - memberOffsets[component];
+	}
+
+	public int getComponentMember(int component, int memberIdx) {
+		return componentMembers[memberOffsets[component] + memberIdx];
+	}
+
+	/**
+	 * @return true if the component contains a cycle. Self-edges are never added to
+	 *         the graph, so that is the case exactly when it has more than one
+	 *         member.
+	 */
+	public boolean isCyclic(int component) {
+		return getComponentSize(component) > 1;
+	}
+
+	public int getNumComponentOutgoing(int component) {
+		return compOutOffsets[component + 1] - compOutOffsets[component];
+	}
+
+	public int getComponentOutgoing(int component, int edgeIdx) {
+		return compOutTargets[compOutOffsets[component] + edgeIdx];
+	}
+
+	public int getNumComponentIncoming(int component) {
+		return compInOffsets[component + 1] - compInOffsets[component];
+	}
+
+	public int getComponentIncoming(int component, int edgeIdx) {
+		return compInTargets[compInOffsets[component] + edgeIdx];
+	}
+
+	public int getDepth(int component) {
+		return depths[component];
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getNumCyclicComponents() {
+		int ret = 0;
+		for (int c = 0; c < numComponents; ++c) {
+			if (isCyclic(c)) {
+				++ret;
+			}
+		}
+		return ret;
+	}
+
+	public int getLargestComponentSize() {
+		int ret = 0;
+		for (int c = 0; c < numComponents; ++c) {
+			ret = Math.max(ret, getComponentSize(c));
+		}
+		return ret;
+	}
+
+	/**
+	 * A random order where all dependencies of a prop come before the prop
+	 * itself, like a reverse topological order. Props in the same cycle are placed
+	 * next to each other, in random order.
+	 *
+	 * @return {@link tragdor.LocatedPropTable} ids of all props in the graph
+	 */
+	public int[] randomDependenciesFirstOrder(Random rng) {
+		// Kahn's algorithm over the condensation, in reverse
+		final int[] remainingOutgoing = new int[numComponents];
+		final int[] ready = new int[numComponents];
+		int numReady = 0;
+		for (int c = 0; c < numComponents; ++c) {
+			remainingOutgoing[c] = getNumComponentOutgoing(c);
+			if (remainingOutgoing[c] == 0) {
+				ready[numReady++] = c;
+			}
+		}
+		final int[] ret = new int[graph.getNumNodes()];
+		int retSize = 0;
+		while (numReady > 0) {
+			final int pick = rng.nextInt(numReady);
+			final int c = ready[pick];
+			ready[pick] = ready[--numReady];
+
+			final int start = retSize;
+			for (int i = memberOffsets[c]; i < memberOffsets[c + 1]; ++i) {
+				ret[retSize++] = graph.getPropId(componentMembers[i]);
+			}
+			// Fisher-Yates within the component
+			for (int i = retSize - start; i > 1; --i) {
+				final int j = start + rng.nextInt(i);
+				final int tmp = ret[start + i - 1];
+				ret[start + i - 1] = ret[j];
+				ret[j] = tmp;
+			}
+
+			for (int i = compInOffsets[c]; i < compInOffsets[c + 1]; ++i) {
+				final int m = compInTargets[i];
+				if (--remainingOutgoing[m] == 0) {
+					ready[numReady++] = m;
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static class DegreeStats {
+		int min;
+		int median;
+		double average;
+		int max;
+		int numZero;
+		// Bucket 0 counts degree 0, bucket k counts degrees [2^(k-1), 2^k)
+		int[] buckets;
+	}
+
+	private DegreeStats getDegreeStats(boolean outgoing) {
+		final int numNodes = graph.getNumNodes();
+		final DegreeStats ret = new DegreeStats();
+		int maxDegree = 0;
+		long sum = 0;
+		for (int node = 0; node < numNodes; ++node) {
+			final int degree = outgoing ? graph.getNumOutgoing(node) : graph.getNumIncoming(node);
+			maxDegree = Math.max(maxDegree, degree);
+			sum += degree;
+		}
+		// Counting sort, for the median without sorting
+		final int[] counts = new int[maxDegree + 1];
+		for (int node = 0; node < numNodes; ++node) {
+			++counts[outgoing ? graph.getNumOutgoing(node) : graph.getNumIncoming(node)];
+		}
+		ret.buckets = new int[33 - Integer.numberOfLeadingZeros(maxDegree)];
+		int seen = 0;
+		ret.min = -1;
+		ret.median = 0;
+		for (int degree = 0; degree <= maxDegree; ++degree) {
+			if (counts[degree] == 0) {
+				continue;
+			}
+			if (ret.min == -1) {
+				ret.min = degree;
+			}
+			if (seen <= numNodes / 2 && seen + counts[degree] > numNodes / 2) {
+				ret.median = degree;
+			}
+			seen += counts[degree];
+			ret.buckets[32 - Integer.numberOfLeadingZeros(degree)] += counts[degree];
+		}
+		ret.min = Math.max(ret.min, 0);
+		ret.max = maxDegree;
+		ret.average = numNodes == 0 ? 0.0 : (sum / (double) numNodes);
+		ret.numZero = counts[0];
+		return ret;
+	}
+
+	private static JSONObject toJSON(DegreeStats stats) {
+		final JSONArray histogram = new JSONArray();
+		for (int k = 0; k < stats.buckets.length; ++k) {
+			histogram.put(new JSONObject() //
+					.put("min", k == 0 ? 0 : (1 << (k - 1))) //
+					.put("max", k == 0 ? 0 : ((1 << k) - 1)) //
+					.put("count", stats.buckets[k]));
+		}
+		return new JSONObject() //
+				.put("min", stats.min) //
+				.put("median", stats.median) //
+				.put("average", stats.average) //
+				.put("max", stats.max) //
+				.put("histogram", histogram);
+	}
+
+	public JSONObject toJSON() {
+		final int[] nodesPerDepth = new int[maxDepth + 1];
+		for (int c = 0; c < numComponents; ++c) {
+			nodesPerDepth[depths[c]] += getComponentSize(c);
+		}
+		return new JSONObject() //
+				.put("nodes", graph.getNumNodes()) //
+				.put("edges", graph.getNumEdges()) //
+				.put("components", numComponents) //
+				.put("cyclicComponents", getNumCyclicComponents()) //
+				.put("largestComponent", getLargestComponentSize()) //
+				.put("condensationEdges", compOutTargets.length) //
+				.put("maxDepth", maxDepth) //
+				.put("nodesPerDepth", new JSONArray(nodesPerDepth)) //
+				.put("fanOut", toJSON(getDegreeStats(true))) //
+				.put("fanIn", toJSON(getDegreeStats(false)));
+	}
+
+	public void print() {
+		System.out.println("Number of nodes in dependency graph: " + graph.getNumNodes());
+		System.out.println("Number of edges in dependency graph: " + graph.getNumEdges());
+		if (graph.getNumNodes() == 0) {
+			return;
+		}
+		final DegreeStats out = getDegreeStats(true);
+		final DegreeStats in = getDegreeStats(false);
+		System.out.println("Num leaf nodes: " + out.numZero);
+		System.out.printf("Outgoing edge count: min %d, median %d, average %.1f, max %d%n", out.min, out.median,
+				out.average, out.max);
+		System.out.printf("Incoming edge count: min %d, median %d, average %.1f, max %d%n", in.min, in.median,
+				in.average, in.max);
+		System.out.printf("Strongly connected components: %d, %d cyclic, largest has %d node(s)%n", numComponents,
+				getNumCyclicComponents(), getLargestComponentSize());
+		System.out.println("Max dependency depth: " + maxDepth);
+	}
+
+	/**
+	 * Remember the summary of a tool config's graph, for 'graphAnalytics' in the
+	 * root of the report.
+	 */
+	public static synchronized void record(int toolIdx, GraphAnalytics analytics) {
+		recordedSummaries.put(toolIdx, analytics.toJSON());
+	}
+
+	public static synchronized boolean isEmpty() {
+		return recordedSummaries.isEmpty();
+	}
+
+	public static synchronized JSONObject getRecorded() {
+		final JSONObject ret = new JSONObject();
+		for (Map.Entry<Integer, JSONObject> ent : recordedSummaries.entrySet()) {
+			ret.put(String.valueOf(ent.getKey()), ent.getValue());
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,125 @@
+package tragdor.steps.step1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.json.JSONObject;
+
+import tragdor.config.UserConfig;
+import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+import tragdor.util.Benchmark;
+
+/**
+ * The reference values and dependency graph from generate, saved next to
+ * reports.json so that explain doesn't have to repeat the traced reference
+ * run. The files are listed in 'referenceGraphs' in the root of the report.
+ * <p>
+ * Each file starts with the {@link ReferenceValueCache} key of the tool config
+ * it was created for. Explain only uses the file if the key still matches, i.e
+ * if the tool jar and inputs haven't changed since generate.
+ */
+public class ReferenceGraphSidecar {
+
+	public static String getFileName(int toolIdx) {
+		return String.format("reports.graph_%d.bin", toolIdx);
+	}
+
+	public static boolean isEnabled() {
+		return !"false".equals(System.getProperty("tragdor.write_reference_graph"));
+	}
+
+	/**
+	 * Remove sidecars from earlier runs, to avoid listing them in the new report.
+	 */
+	public static void deleteExisting(UserConfig config) {
+		for (int i = 0; i < config.getToolConfigs().size(); ++i) {
+			new File(getFileName(i)).delete();
+		}
+	}
+
+	public static void write(UserConfig config, int toolIdx, ReferenceValues refVals) {
+		if (!isEnabled()) {
+			return;
+		}
+		final File dst = new File(getFileName(toolIdx));
+		File tmpFile = null;
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (DataOutputStream dos = new DataOutputStream(baos)) {
+				dos.writeUTF(ReferenceValueCache.computeKey(config));
+				final byte[] encoded = Benchmark.tickTockErr("encodeReferenceGraph", refVals::toBytes);
+				dos.writeInt(encoded.length);
+				dos.write(encoded);
+			}
+			// Concurrent workers may write the same sidecar, give each a separate tmp file
+			tmpFile = File.createTempFile(dst.getName(), ".tmp", dst.getAbsoluteFile().getParentFile());
+			Files.write(tmpFile.toPath(), baos.toByteArray());
+			Files.move(tmpFile.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (Exception e) {
+			System.err.println("Failed writing reference graph to " + dst);
+			e.printStackTrace();
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return an object mapping tool indexes to sidecar file names, for all
+	 *         sidecars that exist.
+	 */
+	public static JSONObject listExisting(UserConfig config) {
+		final JSONObject ret = new JSONObject();
+		for (int i = 0; i < config.getToolConfigs().size(); ++i) {
+			if (new File(getFileName(i)).exists()) {
+				ret.put(String.valueOf(i), getFileName(i));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Load the sidecar for the active tool config, if one is listed in the report
+	 * and still matches the tool config.
+	 *
+	 * @return the loaded values, or null if they must be established again.
+	 */
+	public static ReferenceValues load(UserConfig config, File reportsFile, JSONObject reportRoot) {
+		final JSONObject graphs = reportRoot.optJSONObject("referenceGraphs");
+		if (graphs == null) {
+			return null;
+		}
+		final String fileName = graphs.optString(String.valueOf(config.getActiveToolConfigIdx()), null);
+		if (fileName == null) {
+			return null;
+		}
+		final File src = new File(reportsFile.getAbsoluteFile().getParentFile(), fileName);
+		if (!src.exists()) {
+			System.out.println("Reference graph " + src + " is missing");
+			return null;
+		}
+		try (DataInputStream dis = new DataInputStream(new FileInputStream(src))) {
+			final String key = dis.readUTF();
+			if (!key.equals(ReferenceValueCache.computeKey(config))) {
+				System.out.println("Reference graph " + src + " was created for another version of the tool or input");
+				return null;
+			}
+			final byte[] encoded = new byte[dis.readInt()];
+			dis.readFully(encoded);
+			final ReferenceValues ret = Benchmark.tickTockErr("loadReferenceGraph",
+					() -> ReferenceValues.fromBytes(config, encoded));
+			System.out.println("Loaded reference graph from " + src);
+			return ret;
+		} catch (Exception e) {
+			System.err.println("Failed loading reference graph from " + src);
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
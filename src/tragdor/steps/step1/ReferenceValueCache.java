@@ -0,0 +1,187 @@
+package tragdor.steps.step1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import tragdor.Tragdor;
+import tragdor.config.EntryPointConfig;
+import tragdor.config.ToolConfig;
+import tragdor.config.UserConfig;
+import tragdor.report.Report;
+import tragdor.report.impl.RecordedReport;
+import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+import tragdor.util.Benchmark;
+
+/**
+ * On-disk cache of {@link ReferenceValues}, to avoid repeating the (slow)
+ * traced reference run for the same tool config. Enabled by setting
+ * 'tragdor.reference_cache_dir'.
+ * <p>
+ * The cache key is a hash of everything that affects the reference run: the
+ * content of the tool jar, the args (including the content of args that are
+ * files), the entry points, the report filter and relevant flags.
+ * <p>
+ * Reports emitted during the reference run (exceptions in entry points, slow or
+ * unattached nodes, ..) are stored in the entry too, and emitted again when the
+ * entry is loaded. Otherwise reports.json would depend on whether the cache was
+ * warm.
+ */
+public class ReferenceValueCache {
+
+	// Bump this whenever the encoding of ReferenceValues changes
+	private static final int FORMAT_VERSION = 2;
+
+	public static File getCacheDir() {
+		final String dir = System.getProperty("tragdor.reference_cache_dir");
+		return dir != null ? new File(dir) : null;
+	}
+
+	/**
+	 * Load reference values for the active tool config from the cache, or
+	 * establish and cache them if there is no cached entry.
+	 */
+	public static ReferenceValues loadOrEstablish(UserConfig config) throws Exception {
+		final File cacheDir = getCacheDir();
+		if (cacheDir == null) {
+			return EstablishReferenceValues.doit(config);
+		}
+		final String key = Benchmark.tickTockErr("computeReferenceCacheKey", () -> computeKey(config));
+		final File cacheFile = new File(cacheDir, "refvals_" + key + ".bin");
+		if (cacheFile.exists()) {
+			try {
+				final byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+				final DataInputStream src = new DataInputStream(new ByteArrayInputStream(bytes));
+				final byte[] reportBytes = new byte[src.readInt()];
+				src.readFully(reportBytes);
+				final JSONArray reports = new JSONArray(new String(reportBytes, StandardCharsets.UTF_8));
+				final byte[] valueBytes = Arrays.copyOfRange(bytes, 4 + reportBytes.length, bytes.length);
+				final ReferenceValues ret = Benchmark.tickTockErr("loadCachedReferenceValues",
+						() -> ReferenceValues.fromBytes(config, valueBytes));
+				System.out.println("Loaded reference values from " + cacheFile);
+				for (int i = 0; i < reports.length(); ++i) {
+					Tragdor.report(RecordedReport.decode(reports.getJSONObject(i)));
+				}
+				return ret;
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Failed loading cached reference values from " + cacheFile + ", re-establishing");
+				e.printStackTrace();
+			}
+		}
+		final List<Report> reports = Collections.synchronizedList(new ArrayList<>());
+		final ReferenceValues ret;
+		Tragdor.setReportRecorder(reports);
+		try {
+			ret = EstablishReferenceValues.doit(config);
+		} finally {
+			Tragdor.setReportRecorder(null);
+		}
+		try {
+			cacheDir.mkdirs();
+			final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+			Files.write(tmpFile.toPath(), encodeEntry(ret, reports));
+			if (!tmpFile.renameTo(cacheFile)) {
+				System.err.println("Failed moving " + tmpFile + " to " + cacheFile);
+			} else {
+				System.out.println("Saved reference values to " + cacheFile);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed saving reference values to " + cacheFile);
+			e.printStackTrace();
+		}
+		return ret;
+	}
+
+	private static byte[] encodeEntry(ReferenceValues values, List<Report> reports) throws Exception {
+		final JSONArray encodedReports = new JSONArray();
+		synchronized (reports) {
+			for (Report rep : reports) {
+				encodedReports.put(RecordedReport.encode(rep));
+			}
+		}
+		final byte[] reportBytes = encodedReports.toString().getBytes(StandardCharsets.UTF_8);
+		final byte[] valueBytes = Benchmark.tickTockErr("encodeReferenceValues", values::toBytes);
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(4 + reportBytes.length + valueBytes.length);
+		final DataOutputStream dst = new DataOutputStream(baos);
+		dst.writeInt(reportBytes.length);
+		dst.write(reportBytes);
+		dst.write(valueBytes);
+		dst.flush();
+		return baos.toByteArray();
+	}
+
+	static String computeKey(UserConfig config) throws IOException {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		final ToolConfig cfg = config.getToolConfigs().get(config.getActiveToolConfigIdx());
+		update(md, "v" + FORMAT_VERSION);
+		update(md, "jar");
+		updateWithFile(md, new File(cfg.tool));
+		for (String arg : cfg.args) {
+			update(md, "arg");
+			update(md, arg);
+			final File argFile = new File(arg);
+			if (argFile.isFile()) {
+				updateWithFile(md, argFile);
+			}
+		}
+		for (EntryPointConfig entry : config.getEntryPoints()) {
+			update(md, "entry");
+			update(md, entry.predicate);
+			update(md, entry.property);
+			update(md, String.valueOf(entry.limit));
+		}
+		final JSONObject filter = config.getTragdorConfig().optJSONObject("filter");
+		update(md, "filter");
+		update(md, filter != null ? filter.toString() : "");
+		update(md, "ignore_circular_attribute_dependencies");
+		update(md, String.valueOf(System.getProperty("ignore_circular_attribute_dependencies")));
+		update(md, "DIRECTLY_CALL_SCANNER_PARSER");
+		update(md, String.valueOf(System.getenv("DIRECTLY_CALL_SCANNER_PARSER")));
+
+		final StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static void update(MessageDigest md, String s) {
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		md.update((byte) (bytes.length >>> 24));
+		md.update((byte) (bytes.length >>> 16));
+		md.update((byte) (bytes.length >>> 8));
+		md.update((byte) bytes.length);
+		md.update(bytes);
+	}
+
+	private static void updateWithFile(MessageDigest md, File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			final byte[] buf = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				md.update(buf, 0, read);
+			}
+		}
+	}
+}
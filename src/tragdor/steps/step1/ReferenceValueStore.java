@@ -0,0 +1,167 @@
+package tragdor.steps.step1;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import tragdor.EvaluatedValue;
+
+/**
+ * Reference values, stored in encoded form in a single byte arena. Many props
+ * produce the same value (type names, booleans, empty lists, ..), so values are
+ * deduplicated by their digest and each distinct value is only stored once.
+ * <p>
+ * Values are decoded on access. Decoded values are kept through soft
+ * references, so repeated accesses are cheap while the heap allows it.
+ */
+public class ReferenceValueStore {
+
+	private static class DigestKey {
+		final long high;
+		final long low;
+
+		DigestKey(EvaluatedValue value) {
+			this.high = value.getDigestHigh();
+			this.low = value.getDigestLow();
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (high ^ (high >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DigestKey)) {
+				return false;
+			}
+			final DigestKey other = (DigestKey) obj;
+			return high == other.high && low == other.low;
+		}
+	}
+
+	private byte[] arena = new byte[64 * 1024];
+	private int arenaSize = 0;
+
+	private final Map<DigestKey, Integer> uniqueIndexes = new HashMap<>();
+	private int[] uniqueOffsets = new int[1024];
+	private int[] uniqueLengths = new int[1024];
+	@SuppressWarnings("unchecked")
+	private SoftReference<EvaluatedValue>[] decoded = new SoftReference[1024];
+	private int numUnique = 0;
+
+	// Indexed by LocatedPropTable id, -1 for props without a value
+	private int[] propValues = new int[0];
+	private int numValues = 0;
+	private boolean trimmed = false;
+
+	private final OutputStream arenaWriter = new OutputStream() {
+		@Override
+		public void write(int b) {
+			ensureArenaCapacity(1);
+			arena[arenaSize++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureArenaCapacity(len);
+			System.arraycopy(b, off, arena, arenaSize, len);
+			arenaSize += len;
+		}
+	};
+
+	private void ensureArenaCapacity(int extra) {
+		if (arenaSize + extra > arena.length) {
+			arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + extra));
+		}
+	}
+
+	public void put(int propId, EvaluatedValue value) {
+		if (trimmed) {
+			throw new IllegalStateException("Cannot add values after trim()");
+		}
+		final DigestKey key = new DigestKey(value);
+		Integer uniqueIdx = uniqueIndexes.get(key);
+		if (uniqueIdx == null) {
+			uniqueIdx = numUnique++;
+			if (uniqueIdx == uniqueOffsets.length) {
+				uniqueOffsets = Arrays.copyOf(uniqueOffsets, uniqueIdx * 2);
+				uniqueLengths = Arrays.copyOf(uniqueLengths, uniqueIdx * 2);
+				decoded = Arrays.copyOf(decoded, uniqueIdx * 2);
+			}
+			final int start = arenaSize;
+			try {
+				value.writeTo(new DataOutputStream(arenaWriter));
+			} catch (IOException impossible) {
+				throw new RuntimeException(impossible);
+			}
+			uniqueOffsets[uniqueIdx] = start;
+			uniqueLengths[uniqueIdx] = arenaSize - start;
+			uniqueIndexes.put(key, uniqueIdx);
+		}
+
+		if (propId >= propValues.length) {
+			final int oldLen = propValues.length;
+			propValues = Arrays.copyOf(propValues, Math.max(propId + 1, oldLen * 2));
+			Arrays.fill(propValues, oldLen, propValues.length, -1);
+		}
+		if (propValues[propId] == -1) {
+			++numValues;
+		}
+		propValues[propId] = uniqueIdx;
+	}
+
+	/**
+	 * @return the value of the prop, or null if it has no value.
+	 */
+	public EvaluatedValue get(int propId) {
+		if (propId < 0 || propId >= propValues.length || propValues[propId] == -1) {
+			return null;
+		}
+		final int uniqueIdx = propValues[propId];
+		final SoftReference<EvaluatedValue> ref = decoded[uniqueIdx];
+		EvaluatedValue ret = ref != null ? ref.get() : null;
+		if (ret == null) {
+			try {
+				ret = new EvaluatedValue(new DataInputStream(
+						new ByteArrayInputStream(arena, uniqueOffsets[uniqueIdx], uniqueLengths[uniqueIdx])));
+			} catch (IOException impossible) {
+				throw new RuntimeException(impossible);
+			}
+			decoded[uniqueIdx] = new SoftReference<>(ret);
+		}
+		return ret;
+	}
+
+	public int getNumValues() {
+		return numValues;
+	}
+
+	public int getNumUniqueValues() {
+		return numUnique;
+	}
+
+	public int getArenaSize() {
+		return arenaSize;
+	}
+
+	/**
+	 * Release unused capacity. Call after the last value has been added, no more
+	 * values can be added afterwards.
+	 */
+	public void trim() {
+		trimmed = true;
+		arena = Arrays.copyOf(arena, arenaSize);
+		uniqueOffsets = Arrays.copyOf(uniqueOffsets, numUnique);
+		uniqueLengths = Arrays.copyOf(uniqueLengths, numUnique);
+		decoded = Arrays.copyOf(decoded, numUnique);
+		// The digests are not needed once all values are added
+		uniqueIndexes.clear();
+	}
+}
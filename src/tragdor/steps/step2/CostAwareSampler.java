@@ -0,0 +1,98 @@
+package tragdor.steps.step2;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
+
+/**
+ * Picks which props to evaluate in a cycle based on how expensive they are.
+ * Props that cost at most the median are always evaluated. More expensive props
+ * are evaluated with a probability inversely proportional to their cost, but
+ * never less often than 'minRate'. A prop that has been skipped for 1/minRate
+ * cycles in a row is always included in the next cycle.
+ * <p>
+ * Initial costs come from the reference run, where each prop is charged for its
+ * first computation in the trace. Props without a known cost (for example when
+ * the reference values were loaded from a cache) are always evaluated until
+ * their cost has been measured. Costs are refined with the times measured
+ * during the search, since the cost of a prop depends on what was evaluated
+ * before it.
+ */
+public class CostAwareSampler {
+
+	private static final double COST_SMOOTHING = 0.3;
+
+	private final double minRate;
+	private final int maxSkippedCycles;
+
+	// Indexed by LocatedPropTable id, negative if unknown
+	private double[] costNanos = new double[0];
+	private int[] skippedCycles = new int[0];
+
+	public CostAwareSampler(ReferenceValues refValues, int[] propIds, double minRate) {
+		this.minRate = Math.max(Math.min(minRate, 1.0), 0.0);
+		this.maxSkippedCycles = this.minRate <= 0 ? Integer.MAX_VALUE : (int) Math.ceil(1.0 / this.minRate) - 1;
+		for (int id : propIds) {
+			ensureCapacity(id);
+			costNanos[id] = refValues.getEvaluationCostNanos(id);
+		}
+	}
+
+	private void ensureCapacity(int propId) {
+		if (propId >= costNanos.length) {
+			final int oldLen = costNanos.length;
+			costNanos = Arrays.copyOf(costNanos, Math.max(propId + 1, oldLen * 2));
+			Arrays.fill(costNanos, oldLen, costNanos.length, -1.0);
+			skippedCycles = Arrays.copyOf(skippedCycles, costNanos.length);
+		}
+	}
+
+	public void recordCost(int propId, long nanos) {
+		ensureCapacity(propId);
+		final double prev = costNanos[propId];
+		costNanos[propId] = prev < 0 ? nanos : (prev * (1 - COST_SMOOTHING) + nanos * COST_SMOOTHING);
+	}
+
+	private double getMedianCost(int[] props) {
+		final double[] known = new double[props.length];
+		int numKnown = 0;
+		for (int id : props) {
+			if (id < costNanos.length && costNanos[id] >= 0) {
+				known[numKnown++] = costNanos[id];
+			}
+		}
+		if (numKnown == 0) {
+			return -1;
+		}
+		Arrays.sort(known, 0, numKnown);
+		return known[numKnown / 2];
+	}
+
+	/**
+	 * @return the props to evaluate this cycle, in the same relative order as in
+	 *         'props'.
+	 */
+	public int[] sample(int[] props, Random rng) {
+		final double median = getMedianCost(props);
+		final int[] ret = new int[props.length];
+		int numSampled = 0;
+		for (int id : props) {
+			ensureCapacity(id);
+			final double cost = costNanos[id];
+			boolean include;
+			if (cost < 0 || cost <= median || skippedCycles[id] >= maxSkippedCycles) {
+				include = true;
+			} else {
+				include = rng.nextDouble() < Math.max(minRate, median / cost);
+			}
+			if (include) {
+				skippedCycles[id] = 0;
+				ret[numSampled++] = id;
+			} else {
+				++skippedCycles[id];
+			}
+		}
+		return numSampled == ret.length ? ret : Arrays.copyOf(ret, numSampled);
+	}
+}
@@ -3,10 +3,9 @@ package tragdor.steps.step2;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -16,17 +15,24 @@ import codeprober.locator.CreateLocator;
 import codeprober.locator.MethodKindDetector;
 import codeprober.protocol.data.NodeLocator;
 import codeprober.protocol.data.PropertyArg;
+import codeprober.protocol.data.RpcBodyLine;
 import codeprober.protocol.data.TALStep;
 import codeprober.requesthandler.EvaluatePropertyHandler;
+import tragdor.AttributeProfiler;
 import tragdor.EvaluatedValue;
+import tragdor.EvaluationWatchdog;
 import tragdor.LocatedProp;
+import tragdor.LocatedPropTable;
 import tragdor.PropEvaluation;
+import tragdor.PropMethodCache;
 import tragdor.Tragdor;
 import tragdor.report.impl.ExceptionThrownReport;
 import tragdor.report.impl.FailedFindingNodeInNewAstReport;
 import tragdor.report.impl.NonIdempotentPropertyEquation;
 import tragdor.report.impl.NonIdempotentPropertyEquationAfterReset;
 import tragdor.report.impl.PropertyValueDiffInReferenceCompileReport;
+import tragdor.report.impl.SlowPropertyReport;
+import tragdor.steps.DifferentialMode;
 
 public abstract class CycleBasedRandomPropSearch extends CycleBasedSearch {
 
@@ -51,7 +57,14 @@ public abstract class CycleBasedRandomPropSearch extends CycleBasedSearch {
 
 	final Set<String> alreadyReportedPropIds = new HashSet<>();
 	protected int cycleId;
-	final Map<LocatedProp, SpotcheckInfo> transformToComputeMethodCache = new HashMap<>();
+	final Map<Integer, SpotcheckInfo> transformToComputeMethodCache = new HashMap<>();
+	// Keyed by node type, property name and argument types
+	final Map<String, SpotcheckMethods> spotcheckMethodsCache = new HashMap<>();
+	// Props abandoned by EvaluationWatchdog, these are not evaluated again
+	final Set<Integer> timedOutPropIds = new HashSet<>();
+	private CostAwareSampler costSampler;
+	private long totalEvaluationNanos;
+	private long totalNumEvaluations;
 
 	public CycleBasedRandomPropSearch(CycleSearchParams params) {
 		super(params);
@@ -66,6 +79,11 @@ public abstract class CycleBasedRandomPropSearch extends CycleBasedSearch {
 		cycleId = 0;
 
 		final CheckStyle checkStyle = getCheckStyle();
+		final double reportedAttrSamplingRate = config.getReportedAttrSamplingRate();
+		if (supportsCostAwareSampling() && config.getCostAwareSampling()) {
+			costSampler = new CostAwareSampler(refValues, refValues.getUnshuffledEvalOrderIds(),
+					config.getMinSamplingRate());
+		}
 		long nextAutoSave = System.currentTimeMillis() + 30_000L;
 
 		while (true) {
@@ -82,90 +100,150 @@ public abstract class CycleBasedRandomPropSearch extends CycleBasedSearch {
 				break;
 			}
 
-			final List<LocatedProp> props = getCycleProps();
-			Collections.shuffle(props, rng);
+			int[] props = getCycleProps();
+			orderCycleProps(props);
+			props = DifferentialMode.filterProps(props);
+			if (props.length == 0) {
+				System.out.println("No props left to search");
+				break;
+			}
+			if (costSampler != null) {
+				props = costSampler.sample(props, rng);
+			}
 			boolean didResetFirst = false;
+			final long cycleStartNanos = System.nanoTime();
+			int numCycleEvaluations = 0;
+			int numCycleSkippedReported = 0;
 
-			for (LocatedProp lp : props) {
-				final EvaluatedValue reference = refValues.getReferenceValue(lp);
+			for (int lpId : props) {
+				if (hasRunOverTimeBudget()) {
+					break;
+				}
+				if (timedOutPropIds.contains(lpId)) {
+					continue;
+				}
+				final LocatedProp lp = LocatedPropTable.get(lpId);
+				if (reportedAttrSamplingRate < 1.0 && !alreadyReportedPropIds.isEmpty()
+						&& alreadyReportedPropIds.contains(getReportKey(lp))
+						&& rng.nextDouble() >= reportedAttrSamplingRate) {
+					// Cannot produce a new report, spend the time on other attributes instead
+					++numCycleSkippedReported;
+					continue;
+				}
+				final EvaluatedValue reference = refValues.getReferenceValue(lpId);
 				if (reference == null) {
 					System.out.println("What the heck, missing reference for " + lp);
 					continue;
 				}
 
 				EvaluatedValue newVal;
-				switch (checkStyle) {
-				default: // Fall-through
-				case FRESH_PARSE_AND_INVOKE_PUBLIC_FACING: {
-					if (freshCycleAst == null) {
-						freshCycleAst = config.reparse();
-					}
-					newVal = PropEvaluation.evaluateProp(freshCycleAst, lp);
-					break;
+				if (checkStyle == CheckStyle.FRESH_PARSE_AND_INVOKE_PUBLIC_FACING && freshCycleAst == null) {
+					freshCycleAst = config.reparse();
 				}
+				final long evalStartNanos = System.nanoTime();
+				final EvaluationWatchdog.Watch watch = EvaluationWatchdog.start(lp);
+				try {
+					try {
+						switch (checkStyle) {
+						default: // Fall-through
+						case FRESH_PARSE_AND_INVOKE_PUBLIC_FACING: {
+							newVal = PropEvaluation.evaluateProp(freshCycleAst, lp, reference);
+							break;
+						}
 
-				case KEEP_AST_AND_SPOTCHECK: {
-					final SpotcheckInfo spotInfo = transformToComputeMethod(referenceValueAst, lp);
-					if (spotInfo == null) {
+						case KEEP_AST_AND_SPOTCHECK: {
+							final SpotcheckInfo spotInfo = transformToComputeMethod(referenceValueAst, lp);
+							if (spotInfo == null) {
 //							System.out.println("Missing compute method for " + prop.prop.name);
-						continue;
-					}
-					final LocatedProp sprop = spotInfo.computeProp;
-					final ResolvedNode foundNode = PropEvaluation.applyLocatorWithUncachedRetry(referenceValueAst,
-							sprop.locator);
-					if (foundNode == null) {
-						System.out.println("Cannot spot-check prop, node locator failed");
-						Tragdor.report(new FailedFindingNodeInNewAstReport(sprop.locator));
-						continue;
+								continue;
+							}
+							final LocatedProp sprop = spotInfo.computeProp;
+							final ResolvedNode foundNode = PropEvaluation.applyLocatorWithUncachedRetry(referenceValueAst,
+									sprop.locator);
+							if (foundNode == null) {
+								System.out.println("Cannot spot-check prop, node locator failed");
+								Tragdor.report(new FailedFindingNodeInNewAstReport(sprop.locator));
+								continue;
+							}
+
+							if (spotInfo.methods.resetMethod != null) {
+								didResetFirst = true;
+								try {
+									EvaluationWatchdog.callTool(
+											() -> spotInfo.methods.resetMethod.invoke(foundNode.node.underlyingAstNode));
+								} catch (InvocationTargetException e) {
+									rethrowIfStopped(e);
+									throw e;
+								}
+							}
+
+							final int numArgs = sprop.prop.args == null ? 0 : sprop.prop.args.size();
+							final Object[] argValues = new Object[numArgs];
+							for (int j = 0; j < numArgs; ++j) {
+								final PropertyArg arg = sprop.prop.args.get(j);
+								argValues[j] = EvaluatePropertyHandler.unpackAttrValue(referenceValueAst, arg, msg -> {
+								}).unpacked;
+							}
+
+							final AttributeProfiler.Sample sample = AttributeProfiler.begin();
+							try {
+								final Object computeRes;
+								try {
+									computeRes = EvaluationWatchdog.callTool(() -> spotInfo.methods.computeMethod
+											.invoke(foundNode.node.underlyingAstNode, argValues));
+								} catch (InvocationTargetException e) {
+									rethrowIfStopped(e);
+									System.out.println("Invocation problem when running " + sprop);
+									e.printStackTrace();
+									Tragdor.report(new ExceptionThrownReport(sprop, e.getCause()));
+									continue;
+								}
+
+								newVal = PropEvaluation.encodePropertyResult(referenceValueAst, sprop, computeRes,
+										reference);
+							} finally {
+								AttributeProfiler.end(lp, sample);
+							}
+							break;
+						}
+						}
+					} finally {
+						EvaluationWatchdog.stop(watch);
 					}
-
-					final Class<?> clazz = referenceValueAst.loadAstClass.apply(sprop.locator.result.type);
-					if (spotInfo.resetMthName != null) {
-						didResetFirst = true;
-						final Object unode = foundNode.node.underlyingAstNode;
-						final Method mth = clazz.getDeclaredMethod(spotInfo.resetMthName);
-						mth.setAccessible(true);
-						mth.invoke(unode);
+				} catch (ThreadDeath td) {
+					if (watch == null || !watch.isTimedOut()) {
+						throw td;
 					}
-
-					final int numArgs = sprop.prop.args == null ? 0 : sprop.prop.args.size();
-					final Class<?>[] argTypes = new Class<?>[numArgs];
-					final Object[] argValues = new Object[numArgs];
-					for (int j = 0; j < numArgs; ++j) {
-						final PropertyArg arg = sprop.prop.args.get(j);
-						argTypes[j] = EvaluatePropertyHandler.getValueType(referenceValueAst, arg);
-						argValues[j] = EvaluatePropertyHandler.unpackAttrValue(referenceValueAst, arg, msg -> {
-						}).unpacked;
-					}
-
-					final Method mth = clazz.getDeclaredMethod(sprop.prop.name, argTypes);
-					mth.setAccessible(true);
-					final Object computeRes;
-					try {
-						computeRes = mth.invoke(foundNode.node.underlyingAstNode, argValues);
-					} catch (InvocationTargetException e) {
-						System.out.println("Invocation problem when running " + sprop);
-						e.printStackTrace();
-						Tragdor.report(new ExceptionThrownReport(sprop, e.getCause()));
-						continue;
+					newVal = null;
+				}
+				if (watch != null && watch.isTimedOut()) {
+					// Either stopped, or finished too late (if the JVM cannot stop threads, or
+					// the time ran out outside of the tool)
+					onEvaluationTimedOut(lpId, watch);
+					if (checkStyle == CheckStyle.FRESH_PARSE_AND_INVOKE_PUBLIC_FACING) {
+						freshCycleAst = null;
 					}
-
-					newVal = PropEvaluation.encodePropertyResult(referenceValueAst, sprop, computeRes);
-					break;
+					continue;
 				}
+				++numCycleEvaluations;
+				final long evalNanos = System.nanoTime() - evalStartNanos;
+				totalEvaluationNanos += evalNanos;
+				++totalNumEvaluations;
+				if (costSampler != null) {
+					costSampler.recordCost(lpId, evalNanos);
 				}
 
 				if (newVal.equals(reference)) {
 					// OK
 					continue;
 				}
-				final String propId = lp.locator.result.type + " + " + lp.prop.name;
+				final String propId = getReportKey(lp);
 				final boolean isNewPropId = alreadyReportedPropIds.add(propId);
 				if (isNewPropId) {
 					System.out.println("Found uniq issue: " + propId);
 				}
 				if (isNewPropId) {
-					final EvaluatedValue fresh = PropEvaluation.evaluateProp(config.reparse(), lp);
+					final EvaluatedValue fresh = evaluateFreshWatched(lp);
 					if (checkStyle == CheckStyle.FRESH_PARSE_AND_INVOKE_PUBLIC_FACING) {
 						Tragdor.report(new PropertyValueDiffInReferenceCompileReport(lp, reference.value, //
 								newVal.value, //
@@ -182,6 +260,18 @@ public abstract class CycleBasedRandomPropSearch extends CycleBasedSearch {
 				}
 			}
 
+			final String statsMode = costSampler != null ? (getCycleOrderMode() + "+cost_weighted")
+					: getCycleOrderMode();
+			SearchStats.recordCycle(getClass().getSimpleName(), statsMode, numCycleEvaluations,
+					System.nanoTime() - cycleStartNanos);
+			if (numCycleSkippedReported > 0) {
+				// Estimate the recovered time from the average evaluation time so far
+				final long avgEvalNanos = totalNumEvaluations == 0 ? 0
+						: (totalEvaluationNanos / totalNumEvaluations);
+				SearchStats.recordSkippedReported(getClass().getSimpleName(), statsMode, numCycleSkippedReported,
+						numCycleSkippedReported * avgEvalNanos);
+			}
+
 			if (debugCycle) {
 				System.out.println("Cycle done in " + (System.currentTimeMillis() - cycleStart) + "ms");
 			}
@@ -198,85 +288,188 @@ public abstract class CycleBasedRandomPropSearch extends CycleBasedSearch {
 		}
 	}
 
-	private SpotcheckInfo transformToComputeMethod(AstInfo referenceValueAst, LocatedProp prop) {
-		if (!transformToComputeMethodCache.containsKey(prop)) {
-			Class<?> clazz;
-			try {
-				clazz = referenceValueAst.loadAstClass.apply(prop.locator.result.type);
-			} catch (RuntimeException e) {
-				System.out.println("Could not load requested type '" + prop.locator.result.type + "'");
-				transformToComputeMethodCache.put(prop, null);
-				return null;
-			}
-			final int numArgs = prop.prop.args == null ? 0 : prop.prop.args.size();
-			final Class<?>[] argTypes = new Class<?>[numArgs];
-			for (int i = 0; i < numArgs; ++i) {
-				argTypes[i] = EvaluatePropertyHandler.getValueType(referenceValueAst, prop.prop.args.get(i));
-			}
+	private static String getReportKey(LocatedProp lp) {
+		return lp.locator.result.type + " + " + lp.prop.name;
+	}
+
+	private void onEvaluationTimedOut(int lpId, EvaluationWatchdog.Watch watch) {
+		final LocatedProp lp = LocatedPropTable.get(lpId);
+		System.out.println("Abandoned " + lp + " after " + watch.getElapsedMs() + "ms");
+		Tragdor.report(new SlowPropertyReport(lp, watch.getElapsedMs(), EvaluationWatchdog.getTimeoutMs()));
+		timedOutPropIds.add(lpId);
+		if (getCheckStyle() == CheckStyle.KEEP_AST_AND_SPOTCHECK) {
+			// The evaluation was stopped halfway, the AST may be in any state
+			referenceValueAst = config.reparse();
+		}
+	}
 
-			final Method userFacingMethod;
+	/**
+	 * Evaluate a prop in a freshly parsed AST, for comparison in a report. Stopped
+	 * by {@link EvaluationWatchdog} like the evaluations in the search.
+	 */
+	private EvaluatedValue evaluateFreshWatched(LocatedProp lp) {
+		final AstInfo freshAst = config.reparse();
+		final EvaluationWatchdog.Watch watch = EvaluationWatchdog.start(lp);
+		EvaluatedValue ret;
+		try {
 			try {
-				userFacingMethod = clazz.getMethod(prop.prop.name, argTypes);
-			} catch (NoSuchMethodException e) {
-				System.out.println("Failed finding requested method '" + prop.prop.name + "' on " + clazz.getName());
-				transformToComputeMethodCache.put(prop, null);
-				return null;
+				ret = PropEvaluation.evaluateProp(freshAst, lp);
+			} finally {
+				EvaluationWatchdog.stop(watch);
 			}
-			if (userFacingMethod.getReturnType() == Void.TYPE) {
-				transformToComputeMethodCache.put(prop, null);
-				return null;
-			}
-			if (MethodKindDetector.isNta(userFacingMethod)) {
-				// It is an nta, so the compute method will produce an unattached node, which we
-				// cannot compare with. ignore.
-				// TODO ..but maybe we can invalidate the cache? No, I don't think thats a good
-				// idea, will likely incur issues with equations that use identity comparisons
-				transformToComputeMethodCache.put(prop, null);
-				return null;
+		} catch (ThreadDeath td) {
+			if (watch == null || !watch.isTimedOut()) {
+				throw td;
 			}
+			ret = null;
+		}
+		if (watch != null && watch.isTimedOut()) {
+			System.out.println("Abandoned fresh evaluation of " + lp + " after " + watch.getElapsedMs() + "ms");
+			return new EvaluatedValue(EvaluatedValue.Kind.EXCEPTION, RpcBodyLine
+					.fromStderr("Evaluation did not finish within " + EvaluationWatchdog.getTimeoutMs() + "ms"));
+		}
+		return ret;
+	}
+
+	private static void rethrowIfStopped(InvocationTargetException e) {
+		if (e.getCause() instanceof ThreadDeath) {
+			throw (ThreadDeath) e.getCause();
+		}
+	}
+
+	private SpotcheckInfo transformToComputeMethod(AstInfo referenceValueAst, LocatedProp prop) {
+		if (!transformToComputeMethodCache.containsKey(prop.getId())) {
+			transformToComputeMethodCache.put(prop.getId(), createSpotcheckInfo(referenceValueAst, prop));
+		}
+		return transformToComputeMethodCache.get(prop.getId());
+	}
 
-			final Class<?> declClazz = userFacingMethod.getDeclaringClass();
+	private SpotcheckInfo createSpotcheckInfo(AstInfo referenceValueAst, LocatedProp prop) {
+		final Class<?>[] argTypes = PropMethodCache.getArgTypes(referenceValueAst, prop.prop.args);
+		final String methodsKey = prop.locator.result.type + "." + prop.prop.name + Arrays.toString(argTypes);
+		if (!spotcheckMethodsCache.containsKey(methodsKey)) {
+			spotcheckMethodsCache.put(methodsKey,
+					findSpotcheckMethods(referenceValueAst, prop.locator.result.type, prop.prop.name, argTypes));
+		}
+		final SpotcheckMethods methods = spotcheckMethodsCache.get(methodsKey);
+		if (methods == null) {
+			return null;
+		}
 
-			final TALStep prevResult = prop.locator.result;
-			final NodeLocator declLocator = new NodeLocator(new TALStep(declClazz.getName(), prevResult.label,
-					prevResult.start, prevResult.end, prevResult.depth), prop.locator.steps);
+		final TALStep prevResult = prop.locator.result;
+		final NodeLocator declLocator = new NodeLocator(new TALStep(methods.declClazz.getName(), prevResult.label,
+				prevResult.start, prevResult.end, prevResult.depth), prop.locator.steps);
 
-			final LocatedProp fixedProp = new LocatedProp(declLocator, prop.prop);
+		return new SpotcheckInfo(new LocatedProp(declLocator, prop.prop), methods);
+	}
 
-			String guessedResetMthName = prop.prop.name;
-			final Type[] genParams = userFacingMethod.getGenericParameterTypes();
-			for (Type t : genParams) {
-				guessedResetMthName += "_" + CreateLocator.convTypeNameToSignature(CreateLocator.extractSimpleNames(t));
-			}
-			guessedResetMthName += "_reset";
-			try {
-				declClazz.getDeclaredMethod(guessedResetMthName);
-				// Got a cache field!
-				final SpotcheckInfo si = new SpotcheckInfo(fixedProp, guessedResetMthName);
-				transformToComputeMethodCache.put(prop, si);
-				return si;
-
-			} catch (NoSuchMethodException e2) {
-				// No reset, just call the original method
-				final SpotcheckInfo si = new SpotcheckInfo(fixedProp, null);
-				transformToComputeMethodCache.put(prop, si);
-				return si;
+	private SpotcheckMethods findSpotcheckMethods(AstInfo referenceValueAst, String type, String propName,
+			Class<?>[] argTypes) {
+		Class<?> clazz;
+		try {
+			clazz = referenceValueAst.loadAstClass.apply(type);
+		} catch (RuntimeException e) {
+			System.out.println("Could not load requested type '" + type + "'");
+			return null;
+		}
 
-			}
+		final Method userFacingMethod;
+		try {
+			userFacingMethod = PropMethodCache.getMethod(clazz, propName, argTypes).method;
+		} catch (NoSuchMethodException e) {
+			System.out.println("Failed finding requested method '" + propName + "' on " + clazz.getName());
+			return null;
+		}
+		if (userFacingMethod.getReturnType() == Void.TYPE) {
+			return null;
+		}
+		if (MethodKindDetector.isNta(userFacingMethod)) {
+			// It is an nta, so the compute method will produce an unattached node, which we
+			// cannot compare with. ignore.
+			// TODO ..but maybe we can invalidate the cache? No, I don't think thats a good
+			// idea, will likely incur issues with equations that use identity comparisons
+			return null;
+		}
+
+		final Class<?> declClazz = userFacingMethod.getDeclaringClass();
+		final PropMethodCache.Invoker computeMethod;
+		try {
+			computeMethod = PropMethodCache.getDeclaredMethod(declClazz, propName, argTypes);
+		} catch (NoSuchMethodException e) {
+			// Cannot happen, getDeclaringClass declares it
+			return null;
+		}
+
+		String guessedResetMthName = propName;
+		final Type[] genParams = userFacingMethod.getGenericParameterTypes();
+		for (Type t : genParams) {
+			guessedResetMthName += "_" + CreateLocator.convTypeNameToSignature(CreateLocator.extractSimpleNames(t));
+		}
+		guessedResetMthName += "_reset";
+		try {
+			// Got a cache field!
+			return new SpotcheckMethods(declClazz, computeMethod,
+					PropMethodCache.getDeclaredMethod(declClazz, guessedResetMthName));
+
+		} catch (NoSuchMethodException e2) {
+			// No reset, just call the original method
+			return new SpotcheckMethods(declClazz, computeMethod, null);
 		}
-		return transformToComputeMethodCache.get(prop);
 	};
 
-	protected abstract List<LocatedProp> getCycleProps();
+	/**
+	 * Decide the order to check the props from {@link #getCycleProps()} in.
+	 * Shuffles them by default.
+	 */
+	protected void orderCycleProps(int[] props) {
+		LocatedPropTable.shuffle(props, rng);
+	}
+
+	/**
+	 * @return the name of the ordering used in the current cycle, for
+	 *         {@link SearchStats}.
+	 */
+	protected String getCycleOrderMode() {
+		return "shuffled";
+	}
+
+	/**
+	 * Whether the props returned by {@link #getCycleProps()} can be sampled by
+	 * {@link CostAwareSampler} when 'cost_aware_sampling' is enabled. Searches
+	 * that rely on the exact set of props in a cycle should return false.
+	 */
+	protected boolean supportsCostAwareSampling() {
+		return false;
+	}
+
+	/**
+	 * @return {@link LocatedPropTable} ids of the props to check this cycle. The
+	 *         array is shuffled in place, so it must not be shared.
+	 */
+	protected abstract int[] getCycleProps();
 
 	private static class SpotcheckInfo {
 
 		public final LocatedProp computeProp;
-		public final String resetMthName;
+		public final SpotcheckMethods methods;
 
-		public SpotcheckInfo(LocatedProp computeProp, String resetMthName) {
+		public SpotcheckInfo(LocatedProp computeProp, SpotcheckMethods methods) {
 			this.computeProp = computeProp;
-			this.resetMthName = resetMthName;
+			this.methods = methods;
+		}
+	}
+
+	private static class SpotcheckMethods {
+
+		public final Class<?> declClazz;
+		public final PropMethodCache.Invoker computeMethod;
+		public final PropMethodCache.Invoker resetMethod;
+
+		public SpotcheckMethods(Class<?> declClazz, PropMethodCache.Invoker computeMethod,
+				PropMethodCache.Invoker resetMethod) {
+			this.declClazz = declClazz;
+			this.computeMethod = computeMethod;
+			this.resetMethod = resetMethod;
 		}
 	}
 
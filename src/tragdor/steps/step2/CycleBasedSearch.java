@@ -1,6 +1,7 @@
 package tragdor.steps.step2;
 
 import java.util.Random;
+import java.util.function.LongSupplier;
 
 import codeprober.AstInfo;
 import tragdor.config.UserConfig;
@@ -12,6 +13,7 @@ public abstract class CycleBasedSearch {
 		protected final ReferenceValues refValues;
 		protected final long searchBudgetMs;
 		private AstInfo referenceValueAst;
+		private LongSupplier budgetExtender;
 
 		public CycleSearchParams(ReferenceValues refValues, long searchBudgetMs,
 				AstInfo referenceValueAst) {
@@ -19,20 +21,31 @@ public abstract class CycleBasedSearch {
 			this.searchBudgetMs = searchBudgetMs;
 			this.referenceValueAst = referenceValueAst;
 		}
+
+		/**
+		 * Set a source of extra budget, asked when the search has used up its budget.
+		 * Should return 0 when there is no more.
+		 */
+		public CycleSearchParams setBudgetExtender(LongSupplier budgetExtender) {
+			this.budgetExtender = budgetExtender;
+			return this;
+		}
 	}
 
 	protected final UserConfig config;
 	protected final ReferenceValues refValues;
-	protected final long searchBudgetMs;
+	protected long searchBudgetMs;
+	private final LongSupplier budgetExtender;
 
 	private long searchStartMs;
 	protected final Random rng;
-	protected final AstInfo referenceValueAst;
+	protected AstInfo referenceValueAst;
 
 	public CycleBasedSearch(CycleSearchParams params) {
 		this.config = params.refValues.getConfig();
 		this.refValues = params.refValues;
 		this.searchBudgetMs = params.searchBudgetMs;
+		this.budgetExtender = params.budgetExtender;
 		this.rng = new Random();
 		this.referenceValueAst = params.referenceValueAst;
 	}
@@ -49,6 +62,17 @@ public abstract class CycleBasedSearch {
 	}
 
 	protected boolean hasRunOverTimeBudget() {
-		return (System.currentTimeMillis() - searchStartMs) >= searchBudgetMs;
+		if ((System.currentTimeMillis() - searchStartMs) < searchBudgetMs) {
+			return false;
+		}
+		if (budgetExtender != null) {
+			final long extraMs = budgetExtender.getAsLong();
+			if (extraMs > 0) {
+				System.out.println("Extending search budget by " + extraMs + "ms");
+				searchBudgetMs += extraMs;
+				return (System.currentTimeMillis() - searchStartMs) >= searchBudgetMs;
+			}
+		}
+		return true;
 	}
 }
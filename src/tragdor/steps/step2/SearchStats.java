@@ -0,0 +1,129 @@
+package tragdor.steps.step2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Throughput of the searches in this run, per search algorithm and cycle order
+ * mode. Saved as 'searchStats' in the root of the report.
+ */
+public class SearchStats {
+
+	private static class ModeStats {
+		public long numCycles;
+		public long numEvaluations;
+		public long nanos;
+		public long numSkippedReported;
+		public long recoveredNanos;
+	}
+
+	private static final Map<String, Map<String, ModeStats>> stats = new LinkedHashMap<>();
+
+	// Per evaluation, so kept outside of the lock
+	private static final LongAdder numPlainValueMatches = new LongAdder();
+	private static final LongAdder plainValueMatchNanos = new LongAdder();
+	private static final LongAdder numFullEncodes = new LongAdder();
+	private static final LongAdder fullEncodeNanos = new LongAdder();
+
+	public static synchronized void recordCycle(String algorithm, String mode, int numEvaluations, long nanos) {
+		final ModeStats mstats = stats.computeIfAbsent(algorithm, x -> new LinkedHashMap<>()).computeIfAbsent(mode,
+				x -> new ModeStats());
+		++mstats.numCycles;
+		mstats.numEvaluations += numEvaluations;
+		mstats.nanos += nanos;
+	}
+
+	/**
+	 * Record evaluations that were skipped because their attribute type had already
+	 * been reported, see 'reported_attr_sampling_rate'.
+	 */
+	public static synchronized void recordSkippedReported(String algorithm, String mode, int numSkipped,
+			long estimatedNanos) {
+		final ModeStats mstats = stats.computeIfAbsent(algorithm, x -> new LinkedHashMap<>()).computeIfAbsent(mode,
+				x -> new ModeStats());
+		mstats.numSkippedReported += numSkipped;
+		mstats.recoveredNanos += estimatedNanos;
+	}
+
+	/**
+	 * Record how an evaluated value was compared to its reference value. Either
+	 * directly as a plain value, or by running the full encoder.
+	 */
+	public static void recordValueEncoding(boolean plainMatch, long nanos) {
+		if (plainMatch) {
+			numPlainValueMatches.increment();
+			plainValueMatchNanos.add(nanos);
+		} else {
+			numFullEncodes.increment();
+			fullEncodeNanos.add(nanos);
+		}
+	}
+
+	private static JSONObject getValueEncodingJSON() {
+		final long numPlain = numPlainValueMatches.sum();
+		final long numFull = numFullEncodes.sum();
+		return new JSONObject() //
+				.put("plainMatches", numPlain) //
+				.put("plainMatchAvgNanos", numPlain == 0 ? 0 : plainValueMatchNanos.sum() / numPlain) //
+				.put("fullEncodes", numFull) //
+				.put("fullEncodeAvgNanos", numFull == 0 ? 0 : fullEncodeNanos.sum() / numFull);
+	}
+
+	public static synchronized boolean isEmpty() {
+		return stats.isEmpty();
+	}
+
+	public static synchronized JSONObject toJSON() {
+		final JSONObject ret = new JSONObject();
+		for (Entry<String, Map<String, ModeStats>> algo : stats.entrySet()) {
+			final JSONObject modes = new JSONObject();
+			for (Entry<String, ModeStats> mode : algo.getValue().entrySet()) {
+				final ModeStats mstats = mode.getValue();
+				final JSONObject modeObj = new JSONObject() //
+						.put("cycles", mstats.numCycles) //
+						.put("evaluations", mstats.numEvaluations) //
+						.put("ms", mstats.nanos / 1_000_000L) //
+						.put("evaluationsPerSec", getEvaluationsPerSec(mstats));
+				if (mstats.numSkippedReported > 0) {
+					modeObj.put("skippedReportedEvaluations", mstats.numSkippedReported);
+					modeObj.put("recoveredMs", mstats.recoveredNanos / 1_000_000L);
+				}
+				modes.put(mode.getKey(), modeObj);
+			}
+			ret.put(algo.getKey(), modes);
+		}
+		if (numPlainValueMatches.sum() + numFullEncodes.sum() > 0) {
+			ret.put("valueEncoding", getValueEncodingJSON());
+		}
+		return ret;
+	}
+
+	public static synchronized void print() {
+		for (Entry<String, Map<String, ModeStats>> algo : stats.entrySet()) {
+			for (Entry<String, ModeStats> mode : algo.getValue().entrySet()) {
+				final ModeStats mstats = mode.getValue();
+				System.out.printf("%s/%s: %d evaluations in %d cycles, %.1f evaluations/sec%n", algo.getKey(),
+						mode.getKey(), mstats.numEvaluations, mstats.numCycles, getEvaluationsPerSec(mstats));
+				if (mstats.numSkippedReported > 0) {
+					System.out.printf("  skipped %d evaluations of already reported attributes, ~%dms recovered%n",
+							mstats.numSkippedReported, mstats.recoveredNanos / 1_000_000L);
+				}
+			}
+		}
+		final long numPlain = numPlainValueMatches.sum();
+		final long numFull = numFullEncodes.sum();
+		if (numPlain + numFull > 0) {
+			System.out.printf("Values compared as plain: %d (avg %dns), fully encoded: %d (avg %dns)%n", numPlain,
+					numPlain == 0 ? 0 : plainValueMatchNanos.sum() / numPlain, numFull,
+					numFull == 0 ? 0 : fullEncodeNanos.sum() / numFull);
+		}
+	}
+
+	private static double getEvaluationsPerSec(ModeStats mstats) {
+		return mstats.nanos == 0 ? 0.0 : (mstats.numEvaluations * 1e9 / mstats.nanos);
+	}
+}
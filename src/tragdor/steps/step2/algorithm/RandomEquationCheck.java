@@ -1,8 +1,5 @@
 package tragdor.steps.step2.algorithm;
 
-import java.util.List;
-
-import tragdor.LocatedProp;
 import tragdor.Tragdor;
 import tragdor.steps.step2.CycleBasedRandomPropSearch;
 
@@ -16,12 +13,17 @@ public class RandomEquationCheck extends CycleBasedRandomPropSearch {
 	}
 
 	@Override
-	protected List<LocatedProp> getCycleProps() {
-		return refValues.getEvalOrder(rng.nextLong());
+	protected int[] getCycleProps() {
+		return refValues.getEvalOrderIds(rng.nextLong());
 	}
 
 	@Override
 	protected CheckStyle getCheckStyle() {
 		return CheckStyle.KEEP_AST_AND_SPOTCHECK;
 	}
+
+	@Override
+	protected boolean supportsCostAwareSampling() {
+		return true;
+	}
 }
@@ -1,18 +1,71 @@
 package tragdor.steps.step2.algorithm;
 
-import java.util.List;
-
-import tragdor.LocatedProp;
+import tragdor.LocatedPropTable;
 import tragdor.steps.step2.CycleBasedRandomPropSearch;
 
 public class RandomOrder extends CycleBasedRandomPropSearch {
 
+	private final boolean nodeGrouped;
+	private final double crossNodeShuffleRatio;
+	private boolean groupedCycle;
+
 	public RandomOrder(CycleSearchParams params) {
 		super(params);
+		nodeGrouped = config.getNodeGroupedOrder();
+		crossNodeShuffleRatio = config.getCrossNodeShuffleRatio();
+	}
+
+	@Override
+	protected int[] getCycleProps() {
+		groupedCycle = nodeGrouped && rng.nextDouble() >= crossNodeShuffleRatio;
+		if (!groupedCycle) {
+			return refValues.getEvalOrderIds(rng.nextLong());
+		}
+
+		// Shuffle the nodes, then the props within each node. All props of a node are
+		// evaluated after each other, so the node locator only needs to be resolved once.
+		final int[][] groups = refValues.getNodeGroups();
+		final int[] groupOrder = new int[groups.length];
+		for (int i = 0; i < groupOrder.length; ++i) {
+			groupOrder[i] = i;
+		}
+		LocatedPropTable.shuffle(groupOrder, rng);
+
+		final int[] ret = new int[refValues.getNumValues()];
+		int pos = 0;
+		for (int groupIdx : groupOrder) {
+			final int[] group = groups[groupIdx];
+			final int groupStart = pos;
+			System.arraycopy(group, 0, ret, pos, group.length);
+			pos += group.length;
+			// Fisher-Yates within the group
+			for (int i = group.length; i > 1; --i) {
+				final int j = groupStart + rng.nextInt(i);
+				final int tmp = ret[groupStart + i - 1];
+				ret[groupStart + i - 1] = ret[j];
+				ret[j] = tmp;
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	protected void orderCycleProps(int[] props) {
+		if (!groupedCycle) {
+			super.orderCycleProps(props);
+		}
+	}
+
+	@Override
+	protected String getCycleOrderMode() {
+		if (!nodeGrouped) {
+			return super.getCycleOrderMode();
+		}
+		return groupedCycle ? "node_grouped" : "cross_node";
 	}
 
 	@Override
-	protected List<LocatedProp> getCycleProps() {
-		return refValues.getEvalOrder(rng.nextLong());
+	protected boolean supportsCostAwareSampling() {
+		return true;
 	}
 }
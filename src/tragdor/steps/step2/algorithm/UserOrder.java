@@ -1,19 +1,17 @@
 package tragdor.steps.step2.algorithm;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.function.BiConsumer;
 
-import codeprober.util.ASTProvider;
 import tragdor.EvaluatedValue;
 import tragdor.LocatedProp;
+import tragdor.LocatedPropTable;
 import tragdor.PropEvaluation;
 import tragdor.Tragdor;
 import tragdor.config.UserConfig;
 import tragdor.report.impl.FlakyPropertyInReferenceRunReport;
 import tragdor.report.impl.FlakyPropertyReport;
-import tragdor.steps.step1.DependencyGraphNode;
 import tragdor.steps.step1.EstablishReferenceValues;
 import tragdor.steps.step1.EstablishReferenceValues.ReferenceValues;
 
@@ -25,7 +23,7 @@ public class UserOrder {
 	public static void doit(ReferenceValues refVals, UserConfig config, long timeoutMs) throws Exception {
 		final Set<String> alreadyReportedPropIds = new HashSet<>();
 
-		final List<DependencyGraphNode> referenceGraphRoots = refVals.getDependencyGraphRoots();
+		final int[] referenceGraphRoots = refVals.getDependencyGraphRoots();
 
 		final long startMs = System.currentTimeMillis();
 
@@ -71,34 +69,34 @@ public class UserOrder {
 				// they want to know if a "normal compile" is deterministic, and "normal
 				// compiles" almost exclusively run once and then close the VM.
 				// Therefore, purgeCache
-				ASTProvider.purgeCache();
+				config.purgeToolCache();
 			}
 
 			System.out.println("Doing repeat run " + repeatRunId);
 			final ReferenceValues repeatVals = EstablishReferenceValues.doit(config);
-			final List<DependencyGraphNode> repeatGraphRoots = refVals.getDependencyGraphRoots();
+			final int[] repeatGraphRoots = refVals.getDependencyGraphRoots();
 
 			System.out.println("Comparing initial<->repeat, run " + repeatRunId);
-			if (repeatVals.getUnshuffledEvalOrder().size() != refVals.getUnshuffledEvalOrder().size()) {
-				System.err.println(
-						"Different amount of properties invoked! Reference: " + refVals.getUnshuffledEvalOrder().size()
-								+ "; repeat: " + repeatVals.getUnshuffledEvalOrder().size());
+			if (repeatVals.getNumValues() != refVals.getNumValues()) {
+				System.err.println("Different amount of properties invoked! Reference: " + refVals.getNumValues()
+						+ "; repeat: " + repeatVals.getNumValues());
 			}
 
-			if (referenceGraphRoots.size() != repeatGraphRoots.size()) {
+			if (referenceGraphRoots.length != repeatGraphRoots.length) {
 				System.err.println("Different amount of root dependency graph nodes! Reference: "
-						+ referenceGraphRoots.size() + "; repeat: " + repeatGraphRoots.size());
+						+ referenceGraphRoots.length + "; repeat: " + repeatGraphRoots.length);
 			}
 
 			System.out.println("Comparing all props w/ each other instead..");
-			for (LocatedProp prop : repeatVals.getUnshuffledEvalOrder()) {
+			for (int propId : repeatVals.getUnshuffledEvalOrderIds()) {
 				++numPerformedComparisons;
-				final EvaluatedValue repeatVal = repeatVals.getReferenceValue(prop);
-				final EvaluatedValue refVal = refVals.getReferenceValue(prop);
+				final EvaluatedValue repeatVal = repeatVals.getReferenceValue(propId);
+				final EvaluatedValue refVal = refVals.getReferenceValue(propId);
 				if (refVal == null) {
-					System.err.println("Prop only invoked in repeat run, not in reference val: " + prop);
+					System.err.println(
+							"Prop only invoked in repeat run, not in reference val: " + LocatedPropTable.get(propId));
 				} else if (!repeatVal.equals(refVal)) {
-					onFlakyIssueFound.accept(prop, repeatVal);
+					onFlakyIssueFound.accept(LocatedPropTable.get(propId), repeatVal);
 
 				}
 			}
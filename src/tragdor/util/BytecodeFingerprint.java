@@ -0,0 +1,384 @@
+package tragdor.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fingerprints of attribute equations, based on the bytecode of the methods
+ * that implement them. Constant pool references in the bytecode are replaced
+ * with what they refer to, so that unrelated changes to a class (that shift
+ * constant pool indexes) don't change the fingerprint.
+ * <p>
+ * The fingerprint of an attribute on a node type covers all methods in the
+ * class hierarchy of the node type that are named like the attribute
+ * ('attr', 'attr_compute', 'attr_reset', lambdas declared in them, ..). JastAdd
+ * puts equations for inherited attributes in 'Define_attr' methods in the parent
+ * node types, so those are included from all classes passed to
+ * {@link #fingerprint(Class, String, Collection)}.
+ */
+public class BytecodeFingerprint {
+
+	// Digest of each matching method, keyed by class, then method name + descriptor
+	private final Map<Class<?>, Map<String, byte[]>> methodDigests = new HashMap<>();
+
+	/**
+	 * @return a hex fingerprint of the attribute, or null if the bytecode of a
+	 *         class in the hierarchy is unavailable.
+	 */
+	public String fingerprint(Class<?> nodeType, String attrName, Collection<Class<?>> inhEquationClasses) {
+		final MessageDigest md = newDigest();
+		for (Class<?> clazz = nodeType; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			if (!addMatchingMethods(md, clazz, attrName, false)) {
+				return null;
+			}
+		}
+		final TreeMap<String, Class<?>> sortedInh = new TreeMap<>();
+		for (Class<?> clazz : inhEquationClasses) {
+			sortedInh.put(clazz.getName(), clazz);
+		}
+		for (Class<?> clazz : sortedInh.values()) {
+			if (!addMatchingMethods(md, clazz, attrName, true)) {
+				return null;
+			}
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private boolean addMatchingMethods(MessageDigest md, Class<?> clazz, String attrName, boolean inhEquations) {
+		final Map<String, byte[]> digests = getMethodDigests(clazz);
+		if (digests == null) {
+			return false;
+		}
+		final String defineName = "Define_" + attrName;
+		for (Map.Entry<String, byte[]> ent : digests.entrySet()) {
+			final String mthName = ent.getKey().substring(0, ent.getKey().indexOf('('));
+			final boolean matches = inhEquations //
+					? (mthName.equals(defineName) || mthName.startsWith("lambda$" + defineName + "$"))
+					: (mthName.equals(attrName) || mthName.startsWith(attrName + "_")
+							|| mthName.startsWith("lambda$" + attrName));
+			if (matches) {
+				md.update(clazz.getName().getBytes(StandardCharsets.UTF_8));
+				md.update(ent.getKey().getBytes(StandardCharsets.UTF_8));
+				md.update(ent.getValue());
+			}
+		}
+		return true;
+	}
+
+	private Map<String, byte[]> getMethodDigests(Class<?> clazz) {
+		if (!methodDigests.containsKey(clazz)) {
+			Map<String, byte[]> digests = null;
+			final ClassLoader loader = clazz.getClassLoader();
+			if (loader != null) {
+				try (InputStream is = loader.getResourceAsStream(clazz.getName().replace('.', '/') + ".class")) {
+					if (is != null) {
+						final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+						final byte[] buf = new byte[8192];
+						int read;
+						while ((read = is.read(buf)) != -1) {
+							baos.write(buf, 0, read);
+						}
+						digests = parseMethodDigests(baos.toByteArray());
+					}
+				} catch (IOException | RuntimeException e) {
+					System.err.println("Failed reading bytecode of " + clazz.getName() + ": " + e);
+				}
+			}
+			methodDigests.put(clazz, digests);
+		}
+		return methodDigests.get(clazz);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException impossible) {
+			throw new RuntimeException(impossible);
+		}
+	}
+
+	/**
+	 * Parse a class file, and digest the code of each method.
+	 *
+	 * @return method digests keyed by name + descriptor, sorted by key
+	 */
+	static Map<String, byte[]> parseMethodDigests(byte[] classFile) throws IOException {
+		final DataInputStream src = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (src.readInt() != 0xCAFEBABE) {
+			throw new IOException("Not a class file");
+		}
+		src.readUnsignedShort(); // minor
+		src.readUnsignedShort(); // major
+		final ConstantPool cp = new ConstantPool(src);
+		src.readUnsignedShort(); // access
+		src.readUnsignedShort(); // this
+		src.readUnsignedShort(); // super
+		src.skipBytes(2 * src.readUnsignedShort()); // interfaces
+
+		final int numFields = src.readUnsignedShort();
+		for (int i = 0; i < numFields; ++i) {
+			src.skipBytes(6);
+			skipAttributes(src);
+		}
+
+		final Map<String, byte[]> ret = new TreeMap<>();
+		final int numMethods = src.readUnsignedShort();
+		for (int i = 0; i < numMethods; ++i) {
+			src.readUnsignedShort(); // access
+			final String name = cp.getUtf8(src.readUnsignedShort());
+			final String desc = cp.getUtf8(src.readUnsignedShort());
+			byte[] codeDigest = new byte[0];
+			final int numAttrs = src.readUnsignedShort();
+			for (int j = 0; j < numAttrs; ++j) {
+				final String attrName = cp.getUtf8(src.readUnsignedShort());
+				final byte[] attr = new byte[src.readInt()];
+				src.readFully(attr);
+				if ("Code".equals(attrName)) {
+					codeDigest = digestCode(attr, cp);
+				}
+			}
+			ret.put(name + desc, codeDigest);
+		}
+		return ret;
+	}
+
+	private static void skipAttributes(DataInputStream src) throws IOException {
+		final int numAttrs = src.readUnsignedShort();
+		for (int i = 0; i < numAttrs; ++i) {
+			src.readUnsignedShort();
+			src.skipBytes(src.readInt());
+		}
+	}
+
+	private static byte[] digestCode(byte[] codeAttr, ConstantPool cp) throws IOException {
+		final DataInputStream src = new DataInputStream(new ByteArrayInputStream(codeAttr));
+		src.readUnsignedShort(); // max_stack
+		src.readUnsignedShort(); // max_locals
+		final byte[] code = new byte[src.readInt()];
+		src.readFully(code);
+
+		final MessageDigest md = newDigest();
+		int pc = 0;
+		while (pc < code.length) {
+			final int op = code[pc] & 0xFF;
+			final int len = getInstructionLength(code, pc);
+			md.update((byte) op);
+			final int cpIdx = getConstantPoolOperand(code, pc, op);
+			if (cpIdx >= 0) {
+				md.update(cp.describe(cpIdx).getBytes(StandardCharsets.UTF_8));
+				// invokeinterface has a trailing count, multianewarray has dimensions
+				final int cpOperandLen = op == 0x12 ? 1 : 2;
+				md.update(code, pc + 1 + cpOperandLen, len - 1 - cpOperandLen);
+			} else {
+				md.update(code, pc + 1, len - 1);
+			}
+			pc += len;
+		}
+		return md.digest();
+	}
+
+	private static int u2(byte[] code, int pos) {
+		return ((code[pos] & 0xFF) << 8) | (code[pos + 1] & 0xFF);
+	}
+
+	private static int s4(byte[] code, int pos) {
+		return ((code[pos] & 0xFF) << 24) | ((code[pos + 1] & 0xFF) << 16) | ((code[pos + 2] & 0xFF) << 8)
+				| (code[pos + 3] & 0xFF);
+	}
+
+	private static int getConstantPoolOperand(byte[] code, int pc, int op) {
+		switch (op) {
+		case 0x12: // ldc
+			return code[pc + 1] & 0xFF;
+		case 0x13: // ldc_w
+		case 0x14: // ldc2_w
+		case 0xb2: // getstatic
+		case 0xb3: // putstatic
+		case 0xb4: // getfield
+		case 0xb5: // putfield
+		case 0xb6: // invokevirtual
+		case 0xb7: // invokespecial
+		case 0xb8: // invokestatic
+		case 0xb9: // invokeinterface
+		case 0xba: // invokedynamic
+		case 0xbb: // new
+		case 0xbd: // anewarray
+		case 0xc0: // checkcast
+		case 0xc1: // instanceof
+		case 0xc5: // multianewarray
+			return u2(code, pc + 1);
+		default:
+			return -1;
+		}
+	}
+
+	private static int getInstructionLength(byte[] code, int pc) {
+		final int op = code[pc] & 0xFF;
+		switch (op) {
+		case 0x10: // bipush
+		case 0x12: // ldc
+		case 0xa9: // ret
+		case 0xbc: // newarray
+			return 2;
+		case 0x11: // sipush
+		case 0x13: // ldc_w
+		case 0x14: // ldc2_w
+		case 0x84: // iinc
+		case 0xb2: // getstatic..invokestatic
+		case 0xb3:
+		case 0xb4:
+		case 0xb5:
+		case 0xb6:
+		case 0xb7:
+		case 0xb8:
+		case 0xbb: // new
+		case 0xbd: // anewarray
+		case 0xc0: // checkcast
+		case 0xc1: // instanceof
+		case 0xc6: // ifnull
+		case 0xc7: // ifnonnull
+			return 3;
+		case 0xc5: // multianewarray
+			return 4;
+		case 0xb9: // invokeinterface
+		case 0xba: // invokedynamic
+		case 0xc8: // goto_w
+		case 0xc9: // jsr_w
+			return 5;
+		case 0xc4: // wide
+			return (code[pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+		case 0xaa: { // tableswitch
+			final int base = pc + 1 + ((4 - ((pc + 1) % 4)) % 4);
+			final int low = s4(code, base + 4);
+			final int high = s4(code, base + 8);
+			return base - pc + 12 + 4 * (high - low + 1);
+		}
+		case 0xab: { // lookupswitch
+			final int base = pc + 1 + ((4 - ((pc + 1) % 4)) % 4);
+			final int numPairs = s4(code, base + 4);
+			return base - pc + 8 + 8 * numPairs;
+		}
+		default:
+			if ((op >= 0x15 && op <= 0x19) || (op >= 0x36 && op <= 0x3a)) {
+				// Loads and stores with a local variable index
+				return 2;
+			}
+			if (op >= 0x99 && op <= 0xa8) {
+				// Branches
+				return 3;
+			}
+			return 1;
+		}
+	}
+
+	private static class ConstantPool {
+		private final int[] tags;
+		private final Object[] entries;
+
+		ConstantPool(DataInputStream src) throws IOException {
+			final int count = src.readUnsignedShort();
+			tags = new int[count];
+			entries = new Object[count];
+			for (int i = 1; i < count; ++i) {
+				final int tag = src.readUnsignedByte();
+				tags[i] = tag;
+				switch (tag) {
+				case 1: // Utf8
+					entries[i] = src.readUTF();
+					break;
+				case 3: // Integer
+					entries[i] = src.readInt();
+					break;
+				case 4: // Float
+					entries[i] = src.readFloat();
+					break;
+				case 5: // Long
+					entries[i] = src.readLong();
+					++i;
+					break;
+				case 6: // Double
+					entries[i] = src.readDouble();
+					++i;
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					entries[i] = new int[] { src.readUnsignedShort() };
+					break;
+				case 15: // MethodHandle
+					entries[i] = new int[] { src.readUnsignedByte(), src.readUnsignedShort() };
+					break;
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					entries[i] = new int[] { src.readUnsignedShort(), src.readUnsignedShort() };
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+		}
+
+		String getUtf8(int idx) {
+			return (String) entries[idx];
+		}
+
+		String describe(int idx) {
+			final Object entry = entries[idx];
+			if (!(entry instanceof int[])) {
+				return String.valueOf(entry);
+			}
+			final int[] refs = (int[]) entry;
+			switch (tags[idx]) {
+			case 8:
+				return "\"" + describe(refs[0]) + "\"";
+			case 15:
+				return "handle" + refs[0] + ":" + describe(refs[1]);
+			case 9:
+			case 10:
+			case 11:
+				return describe(refs[0]) + "." + describe(refs[1]);
+			case 12:
+				return describe(refs[0]) + ":" + describe(refs[1]);
+			case 17:
+			case 18:
+				// The bootstrap method index is not stable, describe the call site only
+				return "dynamic:" + describe(refs[1]);
+			default:
+				return describe(refs[0]);
+			}
+		}
+	}
+
+	/**
+	 * @return the class and its superclasses, excluding Object.
+	 */
+	public static List<Class<?>> getHierarchy(Class<?> clazz) {
+		final List<Class<?>> ret = new ArrayList<>();
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			ret.add(c);
+		}
+		return ret;
+	}
+}
@@ -444,6 +444,14 @@ function createRow(entry, config) {
       break;
     }
 
+    case 'SLOW_PROPERTY': {
+      details.appendChild(createSubject(entry.details.subject));
+      details.appendChild(createProp(entry.details.property));
+      details.appendChild(createMessage(`${entry.details.elapsedMs}ms (limit: ${entry.details.timeoutMs}ms)`, 'Elapsed:'));
+      details.appendChild(createRawSummary(entry));
+      break;
+    }
+
     case 'FAILED_FINDING_NODE_IN_NEW_AST': {
       details.appendChild(createSubject(entry.details.subject));
       // details.appendChild(createCprButton(entry.details.subject, entry.details.property));